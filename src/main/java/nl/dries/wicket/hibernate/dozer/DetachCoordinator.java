@@ -0,0 +1,162 @@
+package nl.dries.wicket.hibernate.dozer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.dries.wicket.hibernate.dozer.visitor.DetachContext;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request scoped coordinator, the models register themselves when they are detached after the request ended (i.e. by
+ * the components of the page) and are detached together once the components are detached (see
+ * {@link DozerRequestCycleListener#onDetach}). Models only read during the request are not registered. The walks of all
+ * the models share one {@link DetachContext}, so the sessions, class metadata and visitable fields are looked up once
+ * per class and the seen set is reused. The number of models, nodes and proxies handled and the time taken are logged
+ * (debug) and available afterwards.
+ *
+ * @author dries
+ */
+public class DetachCoordinator
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(DetachCoordinator.class);
+
+	/** Meta data key, holds the coordinator of the current request */
+	public static final MetaDataKey<DetachCoordinator> KEY = new MetaDataKey<DetachCoordinator>()
+	{
+		/** Default */
+		private static final long serialVersionUID = 1L;
+	};
+
+	/** Registered models */
+	private final List<DozerModel<?>> models = new ArrayList<>();
+
+	/** Whether the request is ending */
+	private boolean ending;
+
+	/** Whether the models were detached */
+	private boolean done;
+
+	/** Context of the last {@link #detachAll()} */
+	private DetachContext context;
+
+	/** Duration of the last {@link #detachAll()} */
+	private long nanos;
+
+	/**
+	 * @return the coordinator of the current request, <code>null</code> when there is no request (or the listener is
+	 *         not registered)
+	 */
+	public static DetachCoordinator get()
+	{
+		RequestCycle requestCycle = RequestCycle.get();
+		return requestCycle == null ? null : requestCycle.getMetaData(KEY);
+	}
+
+	/**
+	 * Register a model to detach at the end of the request, the model keeps track of its registration so registering
+	 * it again is cheap. Ignored after {@link #detachAll()}.
+	 *
+	 * @param model
+	 *            the {@link DozerModel}
+	 */
+	public void register(DozerModel<?> model)
+	{
+		if (!done && model.register(this))
+		{
+			models.add(model);
+		}
+	}
+
+	/**
+	 * Detach all the registered models, models registering later are detached by themselves
+	 */
+	public void detachAll()
+	{
+		long start = System.nanoTime();
+
+		context = new DetachContext(SessionFinderHolder.getSessionFinder());
+		done = true;
+		for (DozerModel<?> model : models)
+		{
+			model.detachCoordinated(context);
+		}
+
+		nanos = System.nanoTime() - start;
+
+		LOG.debug("Detached {} of {} registered models ({} nodes, {} proxies) in {} us", new Object[] {
+				context.getModelCount(), models.size(), context.getNodeCount(), context.getProxyCount(),
+				nanos / 1000 });
+
+		models.clear();
+	}
+
+	/**
+	 * @return whether the request is ending
+	 */
+	public boolean isEnding()
+	{
+		return ending;
+	}
+
+	/**
+	 * @param ending
+	 *            whether the request is ending
+	 */
+	void setEnding(boolean ending)
+	{
+		this.ending = ending;
+	}
+
+	/**
+	 * @return whether the models were detached
+	 */
+	public boolean isDone()
+	{
+		return done;
+	}
+
+	/**
+	 * @return number of models registered (and not detached yet)
+	 */
+	public int getRegisteredCount()
+	{
+		return models.size();
+	}
+
+	/**
+	 * @return number of models detached by {@link #detachAll()}
+	 */
+	public int getModelCount()
+	{
+		return context == null ? 0 : context.getModelCount();
+	}
+
+	/**
+	 * @return number of objects walked by {@link #detachAll()}
+	 */
+	public int getNodeCount()
+	{
+		return context == null ? 0 : context.getNodeCount();
+	}
+
+	/**
+	 * @return number of lightweight proxies registered by {@link #detachAll()}
+	 */
+	public int getProxyCount()
+	{
+		return context == null ? 0 : context.getProxyCount();
+	}
+
+	/**
+	 * @return duration of {@link #detachAll()} in nanoseconds
+	 */
+	public long getNanos()
+	{
+		return nanos;
+	}
+}
@@ -1,12 +1,15 @@
 package nl.dries.wicket.hibernate.dozer;
 
+import nl.dries.wicket.hibernate.dozer.store.MemoryBudgetRegistry;
+import nl.dries.wicket.hibernate.dozer.store.SpillFileRegistry;
+
 import org.apache.wicket.Application;
 import org.apache.wicket.IInitializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Initializer for the Dozer request cycle listener
+ * Initializer for the Dozer request cycle listener and the spill file and memory budget cleanup
  * 
  * @author dries
  */
@@ -23,6 +26,9 @@ public class DozerInitializer implements IInitializer
 	{
 		application.getRequestCycleListeners().add(new DozerRequestCycleListener());
 		LOG.info("Dozer request cycle listener registered");
+
+		application.getSessionStore().registerUnboundListener(new SpillFileRegistry());
+		application.getSessionStore().registerUnboundListener(new MemoryBudgetRegistry());
 	}
 
 	/**
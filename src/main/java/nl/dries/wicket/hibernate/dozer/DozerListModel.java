@@ -1,13 +1,38 @@
 package nl.dries.wicket.hibernate.dozer;
 
+import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import nl.dries.wicket.hibernate.dozer.helper.Attacher;
+import nl.dries.wicket.hibernate.dozer.helper.HibernateProperty;
+import nl.dries.wicket.hibernate.dozer.helper.ModelKey;
+import nl.dries.wicket.hibernate.dozer.helper.ObjectHelper;
+import nl.dries.wicket.hibernate.dozer.helper.VersionChecker;
+import nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition;
+import nl.dries.wicket.hibernate.dozer.store.SpillingList;
 
 import org.apache.wicket.model.IModel;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * List model implementation of the {@link DozerModel}
+ * List model implementation of the {@link DozerModel}. When {@link DozerSettings#getSpillResidentRows()} is set only
+ * that many (most recently used) rows stay on the heap after detach, the others are kept in a memory-mapped spill file
+ * and read back when accessed.
  * 
  * @author dries
  * 
@@ -19,9 +44,18 @@ public class DozerListModel<T> implements IModel<List<T>>
 	/** Default */
 	private static final long serialVersionUID = 1L;
 
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(DozerListModel.class);
+
 	/** Wrapped list of models */
 	private List<DozerModel<T>> models;
 
+	/** Stale entities found on the last attach */
+	private transient List<HibernateProperty> staleEntities;
+
+	/** Number of rows per entity key, built on first use */
+	private transient Map<ModelKey, Integer> keyIndex;
+
 	/**
 	 * Construct
 	 * 
@@ -39,7 +73,309 @@ public class DozerListModel<T> implements IModel<List<T>>
 	 */
 	public DozerListModel()
 	{
-		this.models = new ArrayList<>();
+		this.models = newModelList();
+	}
+
+	/**
+	 * Builds a list model from scrollable results, reading them in chunks: each chunk is removed from the session and
+	 * detached (as for the end of a request) before the next chunk is read, so the persistence context does not grow
+	 * with the number of rows. Combined with {@link DozerSettings#getSpillResidentRows()} the detached rows beyond the
+	 * resident count are spilled after every chunk as well. The results are not closed.
+	 * 
+	 * @param results
+	 *            the {@link ScrollableResults}, the first column of each row is the model object
+	 * @param chunkSize
+	 *            number of rows per chunk
+	 * @param clearSession
+	 *            clear the whole session after each chunk (pending changes should be flushed first), otherwise the
+	 *            root entities of the chunk and every other entity loaded since the first row (the associations of
+	 *            the detached graphs) are evicted, the entities the session held before stay
+	 * @return the list model
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> DozerListModel<T> fromResults(ScrollableResults results, int chunkSize, boolean clearSession)
+	{
+		DozerListModel<T> listModel = new DozerListModel<>();
+		SessionFinder sessionFinder = SessionFinderHolder.getSessionFinder();
+
+		List<DozerModel<T>> chunk = new ArrayList<>(chunkSize);
+		Set<Session> sessions = Collections.newSetFromMap(new IdentityHashMap<Session, Boolean>());
+		Map<Session, Set<Object>> heldBefore = new IdentityHashMap<>();
+		boolean more = results.next();
+		while (more)
+		{
+			T object = (T) results.get(0);
+			DozerModel<T> model = new DozerModel<>(object);
+			listModel.addModel(model);
+			chunk.add(model);
+
+			Session session = sessionFinder.getHibernateSession(ObjectHelper.getEntityClass(object));
+			sessions.add(session);
+			if (!clearSession && !heldBefore.containsKey(session))
+			{
+				// The first row is already loaded, it is evicted with the other roots
+				heldBefore.put(session, new HashSet<Object>(session.getStatistics().getEntityKeys()));
+			}
+
+			// The next row is read after the chunk is removed from the session, so it is not removed with it
+			if (chunk.size() >= chunkSize)
+			{
+				listModel.detachChunk(chunk, sessions, heldBefore, clearSession);
+			}
+			more = results.next();
+		}
+
+		if (!chunk.isEmpty())
+		{
+			listModel.detachChunk(chunk, sessions, heldBefore, clearSession);
+		}
+		return listModel;
+	}
+
+	/**
+	 * Remove a chunk of rows read by {@link #fromResults(ScrollableResults, int, boolean)} from their sessions and
+	 * detach them
+	 * 
+	 * @param chunk
+	 *            the models of the chunk, cleared afterwards
+	 * @param sessions
+	 *            the sessions of the chunk, cleared afterwards
+	 * @param heldBefore
+	 *            keys of the entities the sessions held before the first row, by session (when not clearing)
+	 * @param clearSession
+	 *            clear the sessions instead of evicting
+	 */
+	@SuppressWarnings("unchecked")
+	private void detachChunk(List<DozerModel<T>> chunk, Set<Session> sessions, Map<Session, Set<Object>> heldBefore,
+		boolean clearSession)
+	{
+		// Remove the chunk from the session first, the detached graph no longer holds Hibernate collections
+		for (Session session : sessions)
+		{
+			if (clearSession)
+			{
+				session.clear();
+			}
+			else
+			{
+				for (DozerModel<T> chunkModel : chunk)
+				{
+					if (session.contains(chunkModel.getObject()))
+					{
+						session.evict(chunkModel.getObject());
+					}
+				}
+			}
+		}
+
+		for (DozerModel<T> chunkModel : chunk)
+		{
+			chunkModel.detachNow();
+		}
+
+		// Evict the associations that were loaded with (or while detaching) the chunk as well
+		for (Session session : heldBefore.keySet())
+		{
+			evictLoaded(session, heldBefore.get(session));
+		}
+
+		if (models instanceof SpillingList)
+		{
+			((SpillingList<DozerModel<T>>) models).spill();
+		}
+
+		LOG.debug("Detached a chunk of {} rows, {} in total", chunk.size(), size());
+
+		chunk.clear();
+		sessions.clear();
+	}
+
+	/**
+	 * Evict the entities that were loaded into a session since the list model started reading
+	 * 
+	 * @param session
+	 *            the session
+	 * @param heldBefore
+	 *            keys of the entities the session held before, they stay
+	 */
+	private static void evictLoaded(Session session, Set<Object> heldBefore)
+	{
+		PersistenceContext context = ((SessionImplementor) session).getPersistenceContext();
+		for (Object key : new ArrayList<>(session.getStatistics().getEntityKeys()))
+		{
+			// An evict may cascade, so check each entity
+			Object entity = heldBefore.contains(key) ? null : context.getEntity((EntityKey) key);
+			if (entity != null)
+			{
+				session.evict(entity);
+			}
+		}
+	}
+
+	/**
+	 * @return a new (possibly spilling) list for the models
+	 */
+	private List<DozerModel<T>> newModelList()
+	{
+		int residentRows = DozerSettings.getSpillResidentRows();
+		if (residentRows > 0)
+		{
+			return new SpillingList<>(residentRows, new RowKeyFunction<T>());
+		}
+		return new ArrayList<>();
+	}
+
+	/**
+	 * Replace the list of models, deleting the spill file of the previous list
+	 * 
+	 * @param newModels
+	 *            the new list
+	 */
+	private void replaceModels(List<DozerModel<T>> newModels)
+	{
+		if (models instanceof SpillingList)
+		{
+			((SpillingList<DozerModel<T>>) models).close();
+		}
+		models = newModels;
+		keyIndex = null;
+	}
+
+	/**
+	 * @return the number of rows per entity key, built from the keys of the (detached) models when needed; the keys of
+	 *         spilled rows are kept next to them, so they are not read back
+	 */
+	private Map<ModelKey, Integer> getKeyIndex()
+	{
+		if (keyIndex == null)
+		{
+			keyIndex = new HashMap<>();
+			for (int i = 0; i < models.size(); i++)
+			{
+				indexAdd(getRowKey(i));
+			}
+		}
+		return keyIndex;
+	}
+
+	/**
+	 * @param key
+	 *            the key of an added row, may be <code>null</code>
+	 */
+	private void indexAdd(ModelKey key)
+	{
+		if (key != null)
+		{
+			Integer count = keyIndex.get(key);
+			keyIndex.put(key, count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * @param index
+	 *            the index
+	 * @return the key of the row, without reading it back when spilled
+	 */
+	@SuppressWarnings("unchecked")
+	private ModelKey getRowKey(int index)
+	{
+		if (models instanceof SpillingList)
+		{
+			return (ModelKey) ((SpillingList<DozerModel<T>>) models).getKey(index);
+		}
+		return models.get(index).getKey();
+	}
+
+	/**
+	 * @param index
+	 *            the index
+	 * @return the model of the row when it is on the heap, <code>null</code> when spilled (a spilled row is a copy,
+	 *         so never holds a given instance)
+	 */
+	@SuppressWarnings("unchecked")
+	private DozerModel<T> getResidentModel(int index)
+	{
+		if (models instanceof SpillingList && ((SpillingList<DozerModel<T>>) models).isSpilled(index))
+		{
+			return null;
+		}
+		return models.get(index);
+	}
+
+	/**
+	 * Removes a row, keeping the index up to date
+	 * 
+	 * @param index
+	 *            the index
+	 * @param key
+	 *            its key, <code>null</code> when the row has none
+	 */
+	private void removeRow(int index, ModelKey key)
+	{
+		models.remove(index);
+		if (keyIndex != null && key != null)
+		{
+			indexRemove(key);
+		}
+	}
+
+	/**
+	 * Finds the position of the first row of an entity key, the rows are only searched when the index contains the key
+	 * 
+	 * @param key
+	 *            the {@link ModelKey}
+	 * @return its index, <code>-1</code> when not found
+	 */
+	private int indexOfKey(ModelKey key)
+	{
+		if (getKeyIndex().containsKey(key))
+		{
+			for (int i = 0; i < models.size(); i++)
+			{
+				if (key.equals(getRowKey(i)))
+				{
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the row of an object by identity, spilled rows are not read back
+	 * 
+	 * @param object
+	 *            the root object
+	 * @return its index, <code>-1</code> when not found
+	 */
+	private int indexOfRoot(Object object)
+	{
+		for (int i = 0; i < models.size(); i++)
+		{
+			DozerModel<T> model = getResidentModel(i);
+			if (model != null && model.isRoot(object))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param key
+	 *            the key of a removed row
+	 */
+	private void indexRemove(ModelKey key)
+	{
+		Integer count = keyIndex.get(key);
+		if (count == null || count <= 1)
+		{
+			keyIndex.remove(key);
+		}
+		else
+		{
+			keyIndex.put(key, count - 1);
+		}
 	}
 
 	/**
@@ -49,11 +385,10 @@ public class DozerListModel<T> implements IModel<List<T>>
 	 */
 	private void innerSet(List<T> objects)
 	{
-		models = new ArrayList<>();
+		replaceModels(newModelList());
 
 		if (objects != null)
 		{
-			models = new ArrayList<>();
 			for (T obj : objects)
 			{
 				models.add(new DozerModel<>(obj));
@@ -67,26 +402,117 @@ public class DozerListModel<T> implements IModel<List<T>>
 	@Override
 	public void detach()
 	{
-		for (DozerModel<T> model : models)
+		if (models instanceof SpillingList)
 		{
-			model.detach();
+			// Spilled rows are detached already
+			SpillingList<DozerModel<T>> spilling = (SpillingList<DozerModel<T>>) models;
+			for (DozerModel<T> model : spilling.getResident())
+			{
+				model.detach();
+			}
+			spilling.spill();
+		}
+		else
+		{
+			for (DozerModel<T> model : models)
+			{
+				model.detach();
+			}
 		}
 	}
 
 	/**
-	 * Returns a read-only list
+	 * Returns a live read-only view, a row is only attached when it is read ({@link List#size()} attaches nothing).
+	 * Only the rows on the heap with a detached state that is not serialized are prepared together: when
+	 * {@link DozerSettings#isBatchAttach()} is enabled their detached entities (and the models detached as reference)
+	 * are loaded grouped by type first, and their versioned entities are checked together (see
+	 * {@link DozerSettings#getStalePolicy()}). Spilled rows and rows with a compressed or off-heap state are not read
+	 * back here, they attach (and check) themselves when they are read.
 	 * 
 	 * @see org.apache.wicket.model.IModel#getObject()
 	 */
 	@Override
 	public List<T> getObject()
 	{
-		List<T> objects = new ArrayList<>(models.size());
-		for (DozerModel<T> model : models)
+		boolean batch = DozerSettings.isBatchAttach();
+		boolean prefetch = batch && !DozerSettings.isLazyRestore();
+		boolean check = DozerSettings.getStalePolicy() != StalePolicy.NONE;
+
+		List<HibernateProperty> references = new ArrayList<>();
+		List<Object> versioned = new ArrayList<>();
+		List<AbstractPropertyDefinition> pending = new ArrayList<>();
+		for (int i = 0; i < models.size(); i++)
+		{
+			DozerModel<T> model = getResidentModel(i);
+			if (model == null)
+			{
+				continue;
+			}
+
+			// The budget may downgrade an idle row from another thread
+			model.lockState();
+			try
+			{
+				if (batch && model.getReference() != null)
+				{
+					references.add(model.getReference());
+				}
+				if (check)
+				{
+					versioned.addAll(model.getRestoredVersionedEntities());
+					model.getRestoredVersionedEntities().clear();
+				}
+				if (prefetch)
+				{
+					pending.addAll(model.getPendingProperties());
+				}
+			}
+			finally
+			{
+				model.unlockState();
+			}
+		}
+
+		if (batch)
+		{
+			Attacher.prefetchReferences(references);
+		}
+
+		staleEntities = null;
+		if (!versioned.isEmpty())
 		{
-			objects.add(model.getObject());
+			staleEntities = VersionChecker.check(versioned, SessionFinderHolder.getSessionFinder(),
+				DozerSettings.getStalePolicy());
 		}
-		return Collections.unmodifiableList(objects);
+
+		if (prefetch)
+		{
+			Attacher.prefetch(pending);
+		}
+
+		return new RowView();
+	}
+
+	/**
+	 * @return the stale (or deleted) entities found by the version check of the last attach and by the checks of the
+	 *         rows read since, see {@link DozerSettings#getStalePolicy()}
+	 */
+	public List<HibernateProperty> getStaleEntities()
+	{
+		List<HibernateProperty> stale = new ArrayList<>();
+		if (staleEntities != null)
+		{
+			stale.addAll(staleEntities);
+		}
+		for (int i = 0; i < models.size(); i++)
+		{
+			DozerModel<T> model = getResidentModel(i);
+			if (model != null)
+			{
+				stale.addAll(model.getStaleEntities());
+			}
+		}
+		return stale;
 	}
 
 	/**
@@ -116,14 +542,32 @@ public class DozerListModel<T> implements IModel<List<T>>
 	public void addModel(DozerModel<T> model)
 	{
 		models.add(model);
+		if (keyIndex != null)
+		{
+			indexAdd(model.getKey());
+		}
 	}
 
 	/**
+	 * Removes the row of the given object, see {@link #contains(Object)}
+	 * 
 	 * @see java.util.List#remove(Object))
 	 */
 	public boolean remove(T object)
 	{
-		return removeModel(new DozerModel<>(object));
+		ModelKey key = ModelKey.of(object, SessionFinderHolder.getSessionFinder());
+		if (key != null)
+		{
+			return removeKey(key);
+		}
+
+		int index = indexOfRoot(object);
+		if (index >= 0)
+		{
+			removeRow(index, null);
+			return true;
+		}
+		return false;
 	}
 
 	/**
@@ -135,7 +579,52 @@ public class DozerListModel<T> implements IModel<List<T>>
 	 */
 	public boolean removeModel(DozerModel<T> model)
 	{
-		return models.remove(model);
+		ModelKey key = model.getKey();
+		if (key != null)
+		{
+			return removeKey(key);
+		}
+
+		for (int i = 0; i < models.size(); i++)
+		{
+			if (getResidentModel(i) == model)
+			{
+				removeRow(i, null);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the first row with the given key
+	 * 
+	 * @param key
+	 *            the {@link ModelKey}
+	 * @return <code>true</code> if removed
+	 */
+	private boolean removeKey(ModelKey key)
+	{
+		int index = indexOfKey(key);
+		if (index >= 0)
+		{
+			removeRow(index, key);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a single row, only attaching (and reading back when spilled) that row
+	 * 
+	 * @param index
+	 *            the index
+	 * @return the object of the row
+	 * @see java.util.List#get(int)
+	 */
+	public T get(int index)
+	{
+		return models.get(index).getObject();
 	}
 
 	/**
@@ -155,11 +644,21 @@ public class DozerListModel<T> implements IModel<List<T>>
 	}
 
 	/**
+	 * Entities are looked up by entity name and identifier in an index, other objects (and transient entities) are
+	 * compared by identity with the rows on the heap; the rows are not attached and spilled rows are not read back. A
+	 * row added while its entity was transient has no key (see {@link DozerModel#getKey()}), so it is not found by the
+	 * saved entity.
+	 * 
 	 * @see java.util.List#contains(java.lang.Object)
 	 */
 	public boolean contains(Object o)
 	{
-		return models.contains(new DozerModel<>(o));
+		ModelKey key = ModelKey.of(o, SessionFinderHolder.getSessionFinder());
+		if (key != null)
+		{
+			return getKeyIndex().containsKey(key);
+		}
+		return indexOfRoot(o) >= 0;
 	}
 
 	/**
@@ -167,6 +666,58 @@ public class DozerListModel<T> implements IModel<List<T>>
 	 */
 	public void clear()
 	{
-		this.models = new ArrayList<>();
+		replaceModels(newModelList());
+	}
+
+	/**
+	 * Key of a (spilled) row
+	 * 
+	 * @author dries
+	 * 
+	 * @param <T>
+	 *            model object type
+	 */
+	private static final class RowKeyFunction<T> implements SpillingList.KeyFunction<DozerModel<T>>
+	{
+		/** Default */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @see nl.dries.wicket.hibernate.dozer.store.SpillingList.KeyFunction#getKey(java.lang.Object)
+		 */
+		@Override
+		public Object getKey(DozerModel<T> row)
+		{
+			return row.getKey();
+		}
+	}
+
+	/**
+	 * Read-only view on the rows, attaching a row when it is read
+	 * 
+	 * @author dries
+	 */
+	private class RowView extends AbstractList<T> implements RandomAccess, Serializable
+	{
+		/** Default */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public T get(int index)
+		{
+			return models.get(index).getObject();
+		}
+
+		/**
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size()
+		{
+			return models.size();
+		}
 	}
 }
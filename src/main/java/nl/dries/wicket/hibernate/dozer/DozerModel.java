@@ -1,32 +1,59 @@
 package nl.dries.wicket.hibernate.dozer;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
+import nl.dries.wicket.hibernate.dozer.helper.AdaptivePrefetch;
 import nl.dries.wicket.hibernate.dozer.helper.Attacher;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics.Counter;
+import nl.dries.wicket.hibernate.dozer.helper.CompactFormat;
+import nl.dries.wicket.hibernate.dozer.helper.HibernateProperty;
 import nl.dries.wicket.hibernate.dozer.helper.ModelCallback;
+import nl.dries.wicket.hibernate.dozer.helper.ModelKey;
 import nl.dries.wicket.hibernate.dozer.helper.ObjectHelper;
+import nl.dries.wicket.hibernate.dozer.helper.SnapshotChecker;
+import nl.dries.wicket.hibernate.dozer.helper.StateSerializer;
+import nl.dries.wicket.hibernate.dozer.helper.VersionChecker;
 import nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition;
+import nl.dries.wicket.hibernate.dozer.store.MemoryBudget;
+import nl.dries.wicket.hibernate.dozer.store.MemoryBudgetRegistry;
+import nl.dries.wicket.hibernate.dozer.store.OffHeapArena;
+import nl.dries.wicket.hibernate.dozer.visitor.DetachContext;
 import nl.dries.wicket.hibernate.dozer.visitor.ObjectVisitor;
 
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Dozer Wicket Hibernate model. This model wil act as a detachable model. When detaching all un-initalized proxies in
  * the object graph are replaced with lightweight proxies (not containing Hibernate state). When the object is
- * re-attached these proxies will be restored as 'normal' Hibernate proxies that will get initialized on access.
- * 
+ * re-attached these proxies will be restored as 'normal' Hibernate proxies that will get initialized on access. When
+ * {@link DozerSettings#isLazyRestore()} is enabled the proxies are only restored when they are invoked. The model is
+ * written in the compact format of {@link CompactFormat}. Because the model is {@link Externalizable} the fields of
+ * subclasses are not written unless they override {@link #writeExternal(ObjectOutput)} and
+ * {@link #readExternal(ObjectInput)}, and subclasses need a public no-arg constructor (so anonymous subclasses can not
+ * be serialized, writing them fails). Models are equal when their (mapped)
+ * root objects have the same entity name and identifier, other models are only equal to themselves; this never attaches
+ * the model.
+ *
  * @author dries
  * 
  * @param <T>
  *            type of model object
  */
-public class DozerModel<T> implements IModel<T>, ModelCallback
+public class DozerModel<T> implements IModel<T>, ModelCallback, Externalizable, MemoryBudget.Downgradable
 {
 	/** Default */
 	private static final long serialVersionUID = 1L;
@@ -43,6 +70,57 @@ public class DozerModel<T> implements IModel<T>, ModelCallback
 	/** Detached object instance */
 	private T detachedObject;
 
+	/** Reference to the detached (unmodified) object, see {@link DozerSettings#isReferenceDetach()} */
+	private HibernateProperty reference;
+
+	/** Versioned entities in the detached graph, see {@link DozerSettings#getStalePolicy()} */
+	private final List<Object> versionedEntities = new ArrayList<>();
+
+	/** Stale entities found on the last attach */
+	private transient List<HibernateProperty> staleEntities;
+
+	/** Serialized detached state, see {@link DozerSettings#isCompressDetached()} */
+	private byte[] serializedState;
+
+	/** Whether the serialized state is compressed */
+	private boolean serializedDeflated;
+
+	/** Arena holding the serialized state, see {@link DozerSettings#getOffHeapArena()} */
+	private transient OffHeapArena arena;
+
+	/** Handle of the serialized state in the arena, <code>-1</code> when not stored there */
+	private transient long arenaHandle = -1;
+
+	/** Key of the root object, <code>null</code> when not a saved entity (identity), fixed when the object is set */
+	private ModelKey key;
+
+	/** Whether the key is captured */
+	private boolean keyCaptured;
+
+	/** Coordinator this model is registered with, see {@link DetachCoordinator} */
+	private transient DetachCoordinator coordinator;
+
+	/** Budget the detached state is charged to, see {@link DozerSettings#getSessionBudget()} */
+	private transient MemoryBudget budget;
+
+	/** Handle of the charge, <code>-1</code> when not charged */
+	private transient long budgetHandle = -1;
+
+	/** Entity class of the charged root, to downgrade to a reference */
+	private transient Class<? extends Serializable> budgetClass;
+
+	/** Whether the model was downgraded to a reference by its budget */
+	private transient boolean downgraded;
+
+	/** Whether the charged state equals the loaded state, read by the budget from other threads */
+	private transient volatile boolean cleanState;
+
+	/** Whether the budget asked for a downgrade, applied when the model is idle or at the end of its detach */
+	private transient volatile boolean downgradeRequested;
+
+	/** Guards the detached state against a downgrade requested from the thread of another request */
+	private final transient ReentrantLock stateLock = new ReentrantLock();
+
 	/**
 	 * Construct
 	 * 
@@ -52,6 +130,7 @@ public class DozerModel<T> implements IModel<T>, ModelCallback
 	{
 		this();
 		this.object = object;
+		captureKey();
 	}
 
 	/**
@@ -66,6 +145,7 @@ public class DozerModel<T> implements IModel<T>, ModelCallback
 		this();
 
 		this.object = (T) SessionFinderHolder.getSessionFinder().getHibernateSession(objectClass).load(objectClass, id);
+		captureKey();
 	}
 
 	/**
@@ -78,26 +158,215 @@ public class DozerModel<T> implements IModel<T>, ModelCallback
 	/**
 	 * @see org.apache.wicket.model.IModel#getObject()
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public T getObject()
 	{
-		// Possibly restore detached state
-		if (object == null && detachedObject != null)
+		stateLock.lock();
+		try
 		{
-			List<AbstractPropertyDefinition> proxiedClone = new ArrayList<>(proxiedProperties);
-			for (AbstractPropertyDefinition def : proxiedClone)
+			// Attaching releases the charge, so a requested downgrade is moot
+			downgradeRequested = false;
+			releaseBudget();
+			restoreState();
+
+			// Reload an unmodified (or downgraded) object
+			if (object == null && reference != null)
 			{
-				ObjectHelper.setValue(def.getOwner(), def.getProperty(), new Attacher(def).attach());
+				object = (T) getSessionFinder().getHibernateSession(reference.getEntityClass()).load(
+					reference.getEntityClass(), reference.getId());
+				reference = null;
+
+				DozerStatistics.increment(Counter.MODEL_ATTACHES);
+				if (downgraded)
+				{
+					DozerStatistics.increment(Counter.BUDGET_RELOADS);
+					downgraded = false;
+				}
 			}
-			proxiedProperties.clear();
 
-			object = detachedObject;
+			// Possibly restore detached state
+			if (object == null && detachedObject != null)
+			{
+				DozerStatistics.increment(Counter.MODEL_ATTACHES);
+
+				staleEntities = null;
+				if (!versionedEntities.isEmpty() && DozerSettings.getStalePolicy() != StalePolicy.NONE)
+				{
+					staleEntities = VersionChecker.check(versionedEntities, getSessionFinder(),
+						DozerSettings.getStalePolicy());
+				}
+				versionedEntities.clear();
 
-			// Remove detached state
+				// In lazy mode the proxies stay in place, they attach themselves when invoked
+				if (!DozerSettings.isLazyRestore())
+				{
+					attach(new ArrayList<>(proxiedProperties), DozerSettings.isBatchAttach());
+				}
+				else if (DozerSettings.isAdaptivePrefetch())
+				{
+					attachHotProperties();
+				}
+				proxiedProperties.clear();
+
+				object = detachedObject;
+
+				// Remove detached state
+				detachedObject = null;
+			}
+
+			return object;
+		}
+		finally
+		{
+			stateLock.unlock();
+		}
+	}
+
+	/**
+	 * Serialize the detached state, keeping it in the off-heap arena when available
+	 * 
+	 * @param deflate
+	 *            compress the serialized state
+	 * @param targetArena
+	 *            the arena to store the state in, may be <code>null</code>
+	 */
+	private void serializeState(boolean deflate, OffHeapArena targetArena)
+	{
+		Object[] state = new Object[] { detachedObject, new ArrayList<>(proxiedProperties),
+			new ArrayList<>(versionedEntities) };
+
+		byte[] bytes = StateSerializer.write(state, this, deflate);
+		if (bytes != null)
+		{
 			detachedObject = null;
+			proxiedProperties.clear();
+			versionedEntities.clear();
+
+			serializedDeflated = deflate;
+			keepState(bytes, targetArena);
+		}
+	}
+
+	/**
+	 * Keep serialized state, off-heap when possible
+	 * 
+	 * @param bytes
+	 *            the serialized state
+	 * @param targetArena
+	 *            the arena to store the state in, may be <code>null</code>
+	 */
+	private void keepState(byte[] bytes, OffHeapArena targetArena)
+	{
+		long handle = targetArena == null ? -1 : targetArena.store(bytes, this);
+		if (handle < 0)
+		{
+			serializedState = bytes;
+		}
+		else
+		{
+			arena = targetArena;
+			arenaHandle = handle;
+		}
+	}
+
+	/**
+	 * @param remove
+	 *            remove the state from the arena
+	 * @return the serialized state (if any)
+	 */
+	private byte[] getSerializedState(boolean remove)
+	{
+		if (arenaHandle < 0)
+		{
+			return serializedState;
+		}
+
+		byte[] bytes = remove ? arena.remove(arenaHandle) : arena.read(arenaHandle);
+		if (remove)
+		{
+			arena = null;
+			arenaHandle = -1;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Release the serialized state without reading it
+	 */
+	private void releaseState()
+	{
+		if (arenaHandle >= 0)
+		{
+			arena.free(arenaHandle);
+			arena = null;
+			arenaHandle = -1;
+		}
+		serializedState = null;
+	}
+
+	/**
+	 * Restore the serialized detached state (if any)
+	 */
+	@SuppressWarnings("unchecked")
+	private void restoreState()
+	{
+		byte[] bytes = getSerializedState(true);
+		serializedState = null;
+		if (bytes != null)
+		{
+			Object[] state = (Object[]) StateSerializer.read(bytes, this, serializedDeflated);
+
+			detachedObject = (T) state[0];
+			proxiedProperties.addAll((List<AbstractPropertyDefinition>) state[1]);
+			versionedEntities.addAll((List<?>) state[2]);
+		}
+	}
+
+	/**
+	 * Attach detached properties, replacing the lightweight proxies
+	 * 
+	 * @param defs
+	 *            the {@link AbstractPropertyDefinition}s to attach
+	 * @param batch
+	 *            load the entities and collections grouped by type first
+	 */
+	private void attach(List<AbstractPropertyDefinition> defs, boolean batch)
+	{
+		if (batch)
+		{
+			Attacher.prefetch(defs);
+		}
+
+		for (AbstractPropertyDefinition def : defs)
+		{
+			ObjectHelper.setValue(def.getOwner(), def.getProperty(), new Attacher(def).attach());
+		}
+	}
+
+	/**
+	 * Attach the properties that are usually touched after a lazy restore, the others stay lazy
+	 */
+	private void attachHotProperties()
+	{
+		Class<?> rootType = detachedObject.getClass();
+
+		List<AbstractPropertyDefinition> hot = new ArrayList<>();
+		for (AbstractPropertyDefinition def : proxiedProperties)
+		{
+			if (AdaptivePrefetch.isHot(rootType, def))
+			{
+				hot.add(def);
+			}
+			else
+			{
+				AdaptivePrefetch.restored(rootType, def);
+			}
 		}
 
-		return object;
+		LOG.debug("Attaching {} hot properties of {}", hot.size(), proxiedProperties.size());
+
+		attach(hot, true);
 	}
 
 	/**
@@ -106,43 +375,300 @@ public class DozerModel<T> implements IModel<T>, ModelCallback
 	@Override
 	public void setObject(T object)
 	{
-		// Reset previous object state
-		detachedObject = null;
+		stateLock.lock();
+		try
+		{
+			// Reset previous object state
+			releaseBudget();
+			downgraded = false;
+			downgradeRequested = false;
+			cleanState = false;
+			detachedObject = null;
+			reference = null;
+			versionedEntities.clear();
+			releaseState();
 
-		this.object = object;
+			this.object = object;
+			captureKey();
+		}
+		finally
+		{
+			stateLock.unlock();
+		}
 	}
 
 	/**
 	 * @see org.apache.wicket.model.IDetachable#detach()
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public void detach()
 	{
 		boolean doDetach = true;
+		DetachCoordinator current = null;
 
 		RequestCycle requestCycle = RequestCycle.get();
 		if (requestCycle != null)
 		{
-			Boolean val = requestCycle.getMetaData(DozerRequestCycleListener.ENDING_REQUEST);
-			doDetach = val == null || val.booleanValue();
+			current = requestCycle.getMetaData(DetachCoordinator.KEY);
+			if (current != null)
+			{
+				doDetach = current.isEnding();
+			}
+			else
+			{
+				Boolean val = requestCycle.getMetaData(DozerRequestCycleListener.ENDING_REQUEST);
+				doDetach = val == null || val.booleanValue();
+			}
 		}
 
 		LOG.debug("Detaching in onEndRequest? {}", doDetach);
 
-		if (doDetach && object != null && detachedObject == null)
+		if (doDetach && current != null && !current.isDone())
+		{
+			// Detached together with the other models of the request
+			current.register(this);
+		}
+		else if (doDetach)
+		{
+			coordinator = null;
+			detachNow(null);
+		}
+	}
+
+	/**
+	 * @param candidate
+	 *            the {@link DetachCoordinator} of the current request
+	 * @return <code>false</code> when already registered with it
+	 */
+	boolean register(DetachCoordinator candidate)
+	{
+		if (coordinator == candidate)
+		{
+			return false;
+		}
+		coordinator = candidate;
+		return true;
+	}
+
+	/**
+	 * Detach as part of the pass of a {@link DetachCoordinator}
+	 * 
+	 * @param context
+	 *            the {@link DetachContext} shared by the models of the request
+	 */
+	void detachCoordinated(DetachContext context)
+	{
+		coordinator = null;
+		detachNow(context);
+	}
+
+	/**
+	 * Detach the object, also when the request is not ending
+	 */
+	void detachNow()
+	{
+		detachNow(null);
+	}
+
+	/**
+	 * Detach the object, also when the request is not ending
+	 * 
+	 * @param context
+	 *            the {@link DetachContext} to share, may be <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	private void detachNow(DetachContext context)
+	{
+		stateLock.lock();
+		try
 		{
-			if (object instanceof HibernateProxy)
+			if (object != null && detachedObject == null)
 			{
-				HibernateProxy proxy = (HibernateProxy) object;
-				object = (T) proxy.getHibernateLazyInitializer().getImplementation();
+				long budgetBytes = 0;
+				getKey();
+
+				if (object instanceof HibernateProxy)
+				{
+					LazyInitializer initializer = ((HibernateProxy) object).getHibernateLazyInitializer();
+					if (DozerSettings.isReferenceDetach() && initializer.isUninitialized())
+					{
+						// Never loaded, so unmodified
+						reference = new HibernateProperty(
+							(Class<? extends Serializable>) initializer.getPersistentClass(),
+							initializer.getIdentifier());
+					}
+					else
+					{
+						object = (T) initializer.getImplementation();
+					}
+				}
+
+				if (DozerSettings.isReferenceDetach() && reference == null)
+				{
+					reference = SnapshotChecker.createReference(object, getSessionFinder());
+				}
+
+				if (reference != null)
+				{
+					DozerStatistics.increment(Counter.REFERENCE_DETACHES);
+					if (context != null)
+					{
+						context.modelDetached(0, 0);
+					}
+				}
+				else
+				{
+					cleanState = DozerSettings.getSessionBudget() > 0
+						&& SnapshotChecker.isClean(object, getSessionFinder());
+
+					ObjectVisitor<T> walker = context == null ? new ObjectVisitor<>(object, getSessionFinder(), this)
+						: new ObjectVisitor<>(object, context, this);
+					detachedObject = walker.walk();
+
+					DozerStatistics.increment(Counter.FULL_DETACHES);
+					if (context != null)
+					{
+						context.modelDetached(walker.getVisitedCount(), proxiedProperties.size());
+					}
+
+					boolean deflate = DozerSettings.isCompressDetached()
+						&& walker.getVisitedCount() >= DozerSettings.getCompressThreshold();
+					OffHeapArena targetArena = DozerSettings.getOffHeapArena();
+					if (deflate || targetArena != null)
+					{
+						serializeState(deflate, targetArena);
+					}
+
+					budgetClass = (Class<? extends Serializable>) ObjectHelper.getEntityClass(object);
+					budgetBytes = serializedState != null ? serializedState.length : MemoryBudget.estimate(walker
+						.getVisitedCount());
+				}
+
+				object = null;
+
+				if (budgetBytes > 0)
+				{
+					chargeBudget(budgetBytes);
+				}
 			}
 
-			ObjectVisitor<T> walker = new ObjectVisitor<>(object, getSessionFinder(), this);
-			detachedObject = walker.walk();
+			if (object == null)
+			{
+				downgradeIfRequested();
+			}
+		}
+		finally
+		{
+			stateLock.unlock();
+		}
+	}
 
-			object = null;
+	/**
+	 * Charge the detached state to the budget of the session (when enabled), this may mark this or other models for a
+	 * downgrade
+	 * 
+	 * @param bytes
+	 *            estimated size of the state
+	 */
+	private void chargeBudget(long bytes)
+	{
+		long limit = DozerSettings.getSessionBudget();
+		if (limit > 0 && key != null)
+		{
+			budget = MemoryBudgetRegistry.getBudget(limit);
+			if (budget != null)
+			{
+				budgetHandle = budget.charge(this, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Release the charge of the detached state (if any)
+	 */
+	private void releaseBudget()
+	{
+		if (budgetHandle >= 0)
+		{
+			budget.release(budgetHandle);
 		}
+		budget = null;
+		budgetHandle = -1;
+	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.store.MemoryBudget.Downgradable#isClean()
+	 */
+	@Override
+	public boolean isClean()
+	{
+		return cleanState;
+	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.store.MemoryBudget.Downgradable#requestDowngrade()
+	 */
+	@Override
+	public void requestDowngrade()
+	{
+		downgradeRequested = true;
+
+		// An idle model drops its state right away, one in use does so at the end of its detach
+		if (!stateLock.isHeldByCurrentThread() && stateLock.tryLock())
+		{
+			try
+			{
+				if (object == null)
+				{
+					downgradeIfRequested();
+				}
+			}
+			finally
+			{
+				stateLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Apply a downgrade requested by the {@link MemoryBudget}, the state lock must be held
+	 */
+	private void downgradeIfRequested()
+	{
+		if (downgradeRequested)
+		{
+			downgradeRequested = false;
+			if (cleanState && downgrade())
+			{
+				DozerStatistics.increment(Counter.BUDGET_DOWNGRADES);
+			}
+		}
+	}
+
+	/**
+	 * Drops the unmodified detached state, keeping only a reference to the root entity that is reloaded on the next
+	 * {@link #getObject()}
+	 * 
+	 * @return <code>true</code> when downgraded
+	 */
+	private boolean downgrade()
+	{
+		if (object != null || reference != null || key == null || budgetClass == null)
+		{
+			return false;
+		}
+
+		releaseBudget();
+		releaseState();
+		detachedObject = null;
+		proxiedProperties.clear();
+		versionedEntities.clear();
+		cleanState = false;
+		reference = new HibernateProperty(budgetClass, key.getId());
+		downgraded = true;
+
+		LOG.debug("Downgraded {} to a reference", key);
+		return true;
 	}
 
 	/**
@@ -164,48 +690,380 @@ public class DozerModel<T> implements IModel<T>, ModelCallback
 	}
 
 	/**
-	 * @see java.lang.Object#hashCode()
+	 * @see nl.dries.wicket.hibernate.dozer.helper.ModelCallback#addVersionedEntity(java.lang.Object)
 	 */
 	@Override
-	public int hashCode()
+	public void addVersionedEntity(Object entity)
 	{
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((getObject() == null) ? 0 : getObject().hashCode());
-		return result;
+		versionedEntities.add(entity);
 	}
 
 	/**
-	 * @see java.lang.Object#equals(java.lang.Object)
+	 * @return the stale (or deleted) entities found by the version check of the last attach, see
+	 *         {@link DozerSettings#getStalePolicy()}
+	 */
+	public List<HibernateProperty> getStaleEntities()
+	{
+		return staleEntities == null ? Collections.<HibernateProperty> emptyList() : staleEntities;
+	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.helper.ModelCallback#propertyTouched
+	 *      (nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition)
+	 */
+	@Override
+	public void propertyTouched(AbstractPropertyDefinition property)
+	{
+		T root = object == null ? detachedObject : object;
+		if (DozerSettings.isAdaptivePrefetch() && root != null)
+		{
+			AdaptivePrefetch.touched(root.getClass(), property);
+		}
+	}
+
+	/**
+	 * Fail when writing instead of when reading, an {@link Externalizable} class is created with its public no-arg
+	 * constructor
+	 * 
+	 * @throws NotSerializableException
+	 *             when the class has no public no-arg constructor
+	 */
+	private void checkConstructor() throws NotSerializableException
+	{
+		if (getClass() != DozerModel.class)
+		{
+			try
+			{
+				getClass().getConstructor();
+			}
+			catch (NoSuchMethodException e)
+			{
+				throw new NotSerializableException(getClass().getName()
+					+ " has no public no-arg constructor, needed to read the externalizable model");
+			}
+		}
+	}
+
+	/**
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException
+	{
+		checkConstructor();
+
+		stateLock.lock();
+		try
+		{
+			if (coordinator != null && coordinator.isEnding())
+			{
+				// Serialized before the pass of the coordinator
+				coordinator = null;
+				detachNow();
+			}
+
+			boolean compact = CompactFormat.writeFormat(out);
+			out.writeObject(object);
+			out.writeObject(detachedObject);
+
+			if (compact)
+			{
+				CompactFormat.writeVarInt(out, proxiedProperties.size());
+				for (AbstractPropertyDefinition def : proxiedProperties)
+				{
+					out.writeObject(def);
+				}
+			}
+			else
+			{
+				out.writeObject(new ArrayList<>(proxiedProperties));
+			}
+
+			if (compact)
+			{
+				CompactFormat.writeClass(out, reference == null ? null : reference.getEntityClass(), true);
+				if (reference != null)
+				{
+					CompactFormat.writeId(out, reference.getId(), true);
+				}
+			}
+			else
+			{
+				out.writeObject(reference);
+			}
+
+			if (compact)
+			{
+				CompactFormat.writeVarInt(out, versionedEntities.size());
+				for (Object entity : versionedEntities)
+				{
+					out.writeObject(entity);
+				}
+			}
+			else
+			{
+				out.writeObject(new ArrayList<>(versionedEntities));
+			}
+
+			byte[] bytes = getSerializedState(false);
+			if (compact)
+			{
+				CompactFormat.writeVarInt(out, bytes == null ? 0 : bytes.length + 1);
+				if (bytes != null)
+				{
+					out.writeBoolean(serializedDeflated);
+					out.write(bytes);
+				}
+			}
+			else
+			{
+				out.writeObject(bytes);
+				out.writeBoolean(serializedDeflated);
+			}
+
+			if (compact)
+			{
+				CompactFormat.writeVarInt(out, !keyCaptured ? 0 : key == null ? 1 : 2);
+				if (key != null)
+				{
+					CompactFormat.writeName(out, key.getEntityName(), true);
+					CompactFormat.writeId(out, key.getId(), true);
+				}
+			}
+			else
+			{
+				out.writeBoolean(keyCaptured);
+				out.writeObject(key);
+			}
+		}
+		finally
+		{
+			stateLock.unlock();
+		}
+	}
+
+	/**
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
 	 */
 	@SuppressWarnings("unchecked")
 	@Override
-	public boolean equals(Object obj)
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
 	{
-		if (this == obj)
+		boolean compact = CompactFormat.readFormat(in);
+		object = (T) in.readObject();
+		detachedObject = (T) in.readObject();
+
+		proxiedProperties.clear();
+		if (compact)
 		{
-			return true;
+			int size = CompactFormat.readVarInt(in);
+			for (int i = 0; i < size; i++)
+			{
+				proxiedProperties.add((AbstractPropertyDefinition) in.readObject());
+			}
 		}
-		if (obj == null)
+		else
 		{
-			return false;
+			proxiedProperties.addAll((List<AbstractPropertyDefinition>) in.readObject());
+		}
+
+		if (compact)
+		{
+			Class<? extends Serializable> entityClass = (Class<? extends Serializable>) CompactFormat.readClass(in,
+				true);
+			if (entityClass != null)
+			{
+				reference = new HibernateProperty(entityClass, CompactFormat.readId(in, true));
+			}
 		}
-		if (!IModel.class.isAssignableFrom(obj.getClass()))
+		else
 		{
-			return false;
+			reference = (HibernateProperty) in.readObject();
 		}
-		IModel<T> other = (IModel<T>) obj;
-		if (getObject() == null)
+
+		versionedEntities.clear();
+		if (compact)
 		{
-			if (other.getObject() != null)
+			int size = CompactFormat.readVarInt(in);
+			for (int i = 0; i < size; i++)
 			{
-				return false;
+				versionedEntities.add(in.readObject());
 			}
 		}
-		else if (!getObject().equals(other.getObject()))
+		else
+		{
+			versionedEntities.addAll((List<?>) in.readObject());
+		}
+
+		byte[] bytes;
+		if (compact)
+		{
+			int length = CompactFormat.readVarInt(in);
+			bytes = length == 0 ? null : new byte[length - 1];
+			if (bytes != null)
+			{
+				serializedDeflated = in.readBoolean();
+				in.readFully(bytes);
+			}
+		}
+		else
+		{
+			bytes = (byte[]) in.readObject();
+			serializedDeflated = in.readBoolean();
+		}
+
+		releaseState();
+		if (bytes != null)
+		{
+			keepState(bytes, DozerSettings.getOffHeapArena());
+		}
+
+		if (compact)
+		{
+			int keyState = CompactFormat.readVarInt(in);
+			keyCaptured = keyState > 0;
+			key = keyState == 2 ? new ModelKey(CompactFormat.readName(in, true), CompactFormat.readId(in, true)) : null;
+		}
+		else
+		{
+			keyCaptured = in.readBoolean();
+			key = (ModelKey) in.readObject();
+		}
+	}
+
+	/**
+	 * Lock the detached state, so the budget does not downgrade the model while its state is read
+	 */
+	void lockState()
+	{
+		stateLock.lock();
+	}
+
+	/**
+	 * Unlock the detached state, see {@link #lockState()}
+	 */
+	void unlockState()
+	{
+		stateLock.unlock();
+	}
+
+	/**
+	 * @return the properties that will be attached on the next {@link #getObject()}, empty when not detached or when
+	 *         the state is serialized (it is not restored, the model attaches it when it is read)
+	 */
+	List<AbstractPropertyDefinition> getPendingProperties()
+	{
+		if (object == null && detachedObject != null)
+		{
+			return proxiedProperties;
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return the versioned entities that will be checked on the next {@link #getObject()}, empty when not detached or
+	 *         when the state is serialized (it is not restored, the model checks it when it is attached)
+	 */
+	List<Object> getRestoredVersionedEntities()
+	{
+		if (object == null && detachedObject != null)
+		{
+			return versionedEntities;
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return the reference to the detached (unmodified) object, <code>null</code> when not detached as reference
+	 */
+	HibernateProperty getReference()
+	{
+		return object == null ? reference : null;
+	}
+
+	/**
+	 * Determine the key of the root object once, an uninitialized proxy is not initialized
+	 */
+	private void captureKey()
+	{
+		if (object != null)
+		{
+			key = ModelKey.of(object, getSessionFinder());
+		}
+		else if (reference != null)
+		{
+			key = ModelKey.of(reference, getSessionFinder());
+		}
+		else
+		{
+			key = ModelKey.of(detachedObject, getSessionFinder());
+		}
+		keyCaptured = true;
+	}
+
+	/**
+	 * Returns the key of the root object, determined when the object is set (constructor or
+	 * {@link #setObject(Object)}) and kept until the object is replaced. A model of a transient root has no key and
+	 * keeps comparing by identity after the root is saved, so {@link #hashCode()} does not change while the model is
+	 * in a hashed collection.
+	 * 
+	 * @return the key, <code>null</code> when the root was not a saved entity when it was set
+	 */
+	public ModelKey getKey()
+	{
+		if (!keyCaptured)
+		{
+			captureKey();
+		}
+		return key;
+	}
+
+	/**
+	 * @param candidate
+	 *            an object
+	 * @return <code>true</code> when the given object is the (attached or detached) root instance of this model, the
+	 *         model is not attached
+	 */
+	boolean isRoot(Object candidate)
+	{
+		return candidate != null && (candidate == object || object == null && candidate == detachedObject);
+	}
+
+	/**
+	 * Uses the key fixed when the object was set, the session is not used
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode()
+	{
+		ModelKey modelKey = getKey();
+		return modelKey == null ? System.identityHashCode(this) : modelKey.hashCode();
+	}
+
+	/**
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+		if (!(obj instanceof IModel))
 		{
 			return false;
 		}
-		return true;
+
+		ModelKey modelKey = getKey();
+		if (obj instanceof DozerModel)
+		{
+			return modelKey != null && modelKey.equals(((DozerModel<?>) obj).getKey());
+		}
+
+		// Other models hold their object anyway
+		Object otherObject = ((IModel<?>) obj).getObject();
+		return modelKey == null ? isRoot(otherObject) : modelKey.equals(ModelKey.of(otherObject, getSessionFinder()));
 	}
 }
@@ -7,7 +7,8 @@ import org.apache.wicket.request.cycle.RequestCycle;
 /**
  * Dozer request cycle listener, records when a request is ending, but before everything is detached. We are using this
  * to record when we end a request because Wicket also calls <code>onDetatch</code> while replacing components and we
- * only want to detach when the request is over.
+ * only want to detach when the request is over. Also holds the {@link DetachCoordinator} of the request, detaching the
+ * registered models in one pass after the components are detached.
  * 
  * @author dries
  */
@@ -29,6 +30,7 @@ public class DozerRequestCycleListener extends AbstractRequestCycleListener
 	public void onBeginRequest(RequestCycle cycle)
 	{
 		cycle.setMetaData(ENDING_REQUEST, false);
+		cycle.setMetaData(DetachCoordinator.KEY, new DetachCoordinator());
 	}
 
 	/**
@@ -38,5 +40,25 @@ public class DozerRequestCycleListener extends AbstractRequestCycleListener
 	public void onEndRequest(RequestCycle cycle)
 	{
 		cycle.setMetaData(ENDING_REQUEST, true);
+
+		DetachCoordinator coordinator = cycle.getMetaData(DetachCoordinator.KEY);
+		if (coordinator != null)
+		{
+			coordinator.setEnding(true);
+		}
+	}
+
+	/**
+	 * @see org.apache.wicket.request.cycle.AbstractRequestCycleListener#onDetach(org.apache.wicket.request.cycle.RequestCycle)
+	 */
+	@Override
+	public void onDetach(RequestCycle cycle)
+	{
+		DetachCoordinator coordinator = cycle.getMetaData(DetachCoordinator.KEY);
+		if (coordinator != null)
+		{
+			coordinator.setEnding(true);
+			coordinator.detachAll();
+		}
 	}
 }
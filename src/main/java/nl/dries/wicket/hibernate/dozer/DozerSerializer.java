@@ -0,0 +1,80 @@
+package nl.dries.wicket.hibernate.dozer;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import nl.dries.wicket.hibernate.dozer.helper.CanonicalCache;
+import nl.dries.wicket.hibernate.dozer.helper.EntityTable;
+
+import org.apache.wicket.serialize.java.JavaSerializer;
+
+/**
+ * Page serializer that writes every detached entity state only once per page. When several models on a page hold
+ * different instances of the same entity (e.g. loaded in different requests, or a list row and a detail model) with
+ * the same state, all references are written to the first instance, which restores a shared identity when the page is
+ * read. Install it with:
+ * 
+ * <pre>
+ * getFrameworkSettings().setSerializer(new DozerSerializer(getApplicationKey()));
+ * </pre>
+ * 
+ * @author dries
+ */
+public class DozerSerializer extends JavaSerializer
+{
+	/**
+	 * Construct
+	 * 
+	 * @param applicationKey
+	 *            the application key
+	 */
+	public DozerSerializer(String applicationKey)
+	{
+		super(applicationKey);
+	}
+
+	/**
+	 * @see org.apache.wicket.serialize.java.JavaSerializer#newObjectOutputStream(java.io.OutputStream)
+	 */
+	@Override
+	protected ObjectOutputStream newObjectOutputStream(OutputStream out) throws IOException
+	{
+		return new DeduplicatingObjectOutputStream(out, new EntityTable(SessionFinderHolder.getSessionFinder()));
+	}
+
+	/**
+	 * Output stream replacing duplicate entities with their canonical instance
+	 * 
+	 * @author dries
+	 */
+	private static class DeduplicatingObjectOutputStream extends ObjectOutputStream
+	{
+		/** Entities written to this stream */
+		private final EntityTable entityTable;
+
+		/**
+		 * Construct
+		 * 
+		 * @param out
+		 * @param entityTable
+		 * @throws IOException
+		 */
+		public DeduplicatingObjectOutputStream(OutputStream out, EntityTable entityTable) throws IOException
+		{
+			super(out);
+			this.entityTable = entityTable;
+			enableReplaceObject(true);
+		}
+
+		/**
+		 * @see java.io.ObjectOutputStream#replaceObject(java.lang.Object)
+		 */
+		@Override
+		protected Object replaceObject(Object obj) throws IOException
+		{
+			Object replaced = CanonicalCache.replace(obj);
+			return replaced == obj ? entityTable.canonicalize(obj) : replaced;
+		}
+	}
+}
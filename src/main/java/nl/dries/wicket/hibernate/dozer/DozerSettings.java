@@ -0,0 +1,372 @@
+package nl.dries.wicket.hibernate.dozer;
+
+import nl.dries.wicket.hibernate.dozer.store.OffHeapArena;
+
+/**
+ * Static holder for the (application wide) settings of the Dozer models
+ *
+ * @author dries
+ */
+public final class DozerSettings
+{
+	/** Restore detached properties lazily */
+	private static volatile boolean lazyRestore;
+
+	/** Attach detached properties in batches */
+	private static volatile boolean batchAttach;
+
+	/** Maximum number of identifiers in one batch query */
+	private static volatile int batchSize = 50;
+
+	/** Look for detached entities in the second level cache first */
+	private static volatile boolean secondLevelCacheFirst;
+
+	/** Attach frequently touched properties directly in lazy restore mode */
+	private static volatile boolean adaptivePrefetch;
+
+	/** Maximum number of entries in the adaptive prefetch statistics */
+	private static volatile int adaptivePrefetchMaxEntries = 1000;
+
+	/** Write the models in the compact wire format */
+	private static volatile boolean compactSerialization = true;
+
+	/** Detach unmodified entities as a reference only */
+	private static volatile boolean referenceDetach;
+
+	/** Version check of detached entities on attach */
+	private static volatile StalePolicy stalePolicy = StalePolicy.NONE;
+
+	/** Compress large detached states */
+	private static volatile boolean compressDetached;
+
+	/** Minimal number of objects in a detached graph before it is compressed */
+	private static volatile int compressThreshold = 200;
+
+	/** Arena for detached states, <code>null</code> keeps them on the heap */
+	private static volatile OffHeapArena offHeapArena;
+
+	/** Number of rows of a list model kept on the heap after detach, 0 keeps all rows */
+	private static volatile int spillResidentRows;
+
+	/** Maximum estimated size of the detached state of the models of one session, 0 to disable */
+	private static volatile long sessionBudget;
+
+	/** Share one instance of immutable leaf entities between all detached graphs */
+	private static volatile boolean canonicalReferenceData;
+
+	/** Util -> private */
+	private DozerSettings()
+	{
+	}
+
+	/**
+	 * @return <code>true</code> when detached properties are only re-attached when they are invoked
+	 */
+	public static boolean isLazyRestore()
+	{
+		return lazyRestore;
+	}
+
+	/**
+	 * When enabled {@link DozerModel#getObject()} leaves the lightweight proxies in place, they are re-attached to the
+	 * Hibernate session when invoked. When disabled (default) all detached properties are attached directly.
+	 *
+	 * @param lazyRestore
+	 *            the lazyRestore to set
+	 */
+	public static void setLazyRestore(boolean lazyRestore)
+	{
+		DozerSettings.lazyRestore = lazyRestore;
+	}
+
+	/**
+	 * @return <code>true</code> when detached entities are loaded grouped by type on attach
+	 */
+	public static boolean isBatchAttach()
+	{
+		return batchAttach;
+	}
+
+	/**
+	 * When enabled the detached entities and collections of a model (or all models of a {@link DozerListModel}) are
+	 * loaded with one query per entity type / collection role when attaching, instead of one query per entity or
+	 * collection when they are accessed.
+	 *
+	 * @param batchAttach
+	 *            the batchAttach to set
+	 */
+	public static void setBatchAttach(boolean batchAttach)
+	{
+		DozerSettings.batchAttach = batchAttach;
+	}
+
+	/**
+	 * @return the maximum number of identifiers in one batch query
+	 */
+	public static int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the batchSize to set
+	 */
+	public static void setBatchSize(int batchSize)
+	{
+		DozerSettings.batchSize = batchSize;
+	}
+
+	/**
+	 * @return <code>true</code> when detached entities are looked up in the second level cache on attach
+	 */
+	public static boolean isSecondLevelCacheFirst()
+	{
+		return secondLevelCacheFirst;
+	}
+
+	/**
+	 * When enabled a detached entity of a cached entity type is looked up in the second level cache on attach, when
+	 * found the hydrated instance is returned instead of a new uninitialized proxy. Hits and misses are counted in
+	 * {@link DozerStatistics}.
+	 *
+	 * @param secondLevelCacheFirst
+	 *            the secondLevelCacheFirst to set
+	 */
+	public static void setSecondLevelCacheFirst(boolean secondLevelCacheFirst)
+	{
+		DozerSettings.secondLevelCacheFirst = secondLevelCacheFirst;
+	}
+
+	/**
+	 * @return <code>true</code> when frequently touched properties are attached directly in lazy restore mode
+	 */
+	public static boolean isAdaptivePrefetch()
+	{
+		return adaptivePrefetch;
+	}
+
+	/**
+	 * When enabled (together with {@link #isLazyRestore()}) it is recorded how often lazily restored properties are
+	 * touched, per page class, model root type and property. Properties that are usually touched are attached (in
+	 * batch) on the next {@link DozerModel#getObject()}, the others stay lazy.
+	 *
+	 * @param adaptivePrefetch
+	 *            the adaptivePrefetch to set
+	 */
+	public static void setAdaptivePrefetch(boolean adaptivePrefetch)
+	{
+		DozerSettings.adaptivePrefetch = adaptivePrefetch;
+	}
+
+	/**
+	 * @return the maximum number of entries in the adaptive prefetch statistics
+	 */
+	public static int getAdaptivePrefetchMaxEntries()
+	{
+		return adaptivePrefetchMaxEntries;
+	}
+
+	/**
+	 * @param adaptivePrefetchMaxEntries
+	 *            the adaptivePrefetchMaxEntries to set
+	 */
+	public static void setAdaptivePrefetchMaxEntries(int adaptivePrefetchMaxEntries)
+	{
+		DozerSettings.adaptivePrefetchMaxEntries = adaptivePrefetchMaxEntries;
+	}
+
+	/**
+	 * @return <code>true</code> when the models are written in the compact wire format
+	 */
+	public static boolean isCompactSerialization()
+	{
+		return compactSerialization;
+	}
+
+	/**
+	 * When enabled (default) the models and their detached properties are written with a per-stream dictionary for
+	 * class names, field indexes instead of property names and variable-length identifiers. When disabled the values
+	 * are written as plain objects. Both formats can always be read.
+	 *
+	 * @param compactSerialization
+	 *            the compactSerialization to set
+	 */
+	public static void setCompactSerialization(boolean compactSerialization)
+	{
+		DozerSettings.compactSerialization = compactSerialization;
+	}
+
+	/**
+	 * @return <code>true</code> when unmodified entities are detached as a reference only
+	 */
+	public static boolean isReferenceDetach()
+	{
+		return referenceDetach;
+	}
+
+	/**
+	 * When enabled a model whose root entity and all initialized entities and collections reachable from it still
+	 * match their loaded state in the Hibernate session is detached as a reference (class and identifier) and reloaded
+	 * in its current state on the next {@link DozerModel#getObject()}, like a <code>LoadableDetachableModel</code>.
+	 * Modified graphs keep their full detached state. Non-persistent fields of such a root are not kept. The number of
+	 * reference and full detaches is counted in {@link DozerStatistics}.
+	 *
+	 * @param referenceDetach
+	 *            the referenceDetach to set
+	 */
+	public static void setReferenceDetach(boolean referenceDetach)
+	{
+		DozerSettings.referenceDetach = referenceDetach;
+	}
+
+	/**
+	 * @return the {@link StalePolicy}
+	 */
+	public static StalePolicy getStalePolicy()
+	{
+		return stalePolicy;
+	}
+
+	/**
+	 * When not {@link StalePolicy#NONE} the versioned entities in a detached graph are recorded on detach, and on the
+	 * next {@link DozerModel#getObject()} their versions are checked with one query per entity type. Stale entities
+	 * are handled according to the policy.
+	 *
+	 * @param stalePolicy
+	 *            the stalePolicy to set
+	 */
+	public static void setStalePolicy(StalePolicy stalePolicy)
+	{
+		DozerSettings.stalePolicy = stalePolicy == null ? StalePolicy.NONE : stalePolicy;
+	}
+
+	/**
+	 * @return <code>true</code> when large detached states are compressed
+	 */
+	public static boolean isCompressDetached()
+	{
+		return compressDetached;
+	}
+
+	/**
+	 * When enabled the detached state of a model with at least {@link #getCompressThreshold()} objects in its graph is
+	 * kept as a compressed byte array until the next {@link DozerModel#getObject()}. Sizes and times are counted in
+	 * {@link DozerStatistics}. Every model is compressed on its own, so an entity shared by the graphs of several
+	 * models becomes one copy per model after the next {@link DozerModel#getObject()}; changes to one copy are not
+	 * visible through the other models. Leave it disabled for pages whose models share entity instances.
+	 *
+	 * @param compressDetached
+	 *            the compressDetached to set
+	 */
+	public static void setCompressDetached(boolean compressDetached)
+	{
+		DozerSettings.compressDetached = compressDetached;
+	}
+
+	/**
+	 * @return the minimal number of objects in a detached graph before it is compressed
+	 */
+	public static int getCompressThreshold()
+	{
+		return compressThreshold;
+	}
+
+	/**
+	 * @param compressThreshold
+	 *            the compressThreshold to set
+	 */
+	public static void setCompressThreshold(int compressThreshold)
+	{
+		DozerSettings.compressThreshold = compressThreshold;
+	}
+
+	/**
+	 * @return the arena for detached states, <code>null</code> when they are kept on the heap
+	 */
+	public static OffHeapArena getOffHeapArena()
+	{
+		return offHeapArena;
+	}
+
+	/**
+	 * When set the serialized detached state of a fully detached model is kept in the given off-heap arena until the
+	 * next {@link DozerModel#getObject()}, the model only keeps a handle. Combine with {@link #isCompressDetached()} to
+	 * deflate large states first. Like compressed states every state is serialized on its own, entities shared between
+	 * models are restored as one copy per model.
+	 *
+	 * @param offHeapArena
+	 *            the offHeapArena to set, <code>null</code> to disable
+	 */
+	public static void setOffHeapArena(OffHeapArena offHeapArena)
+	{
+		DozerSettings.offHeapArena = offHeapArena;
+	}
+
+	/**
+	 * @return number of rows of a {@link DozerListModel} kept on the heap after detach, 0 when all rows are kept
+	 */
+	public static int getSpillResidentRows()
+	{
+		return spillResidentRows;
+	}
+
+	/**
+	 * When set the {@link DozerListModel}s created afterwards keep only the given number of (most recently used) rows
+	 * on the heap after detach, the other detached rows are serialized into a memory-mapped temporary file and read
+	 * back when accessed. The files are deleted when the list is replaced or the session is unbound.
+	 *
+	 * @param spillResidentRows
+	 *            the spillResidentRows to set, 0 to disable
+	 */
+	public static void setSpillResidentRows(int spillResidentRows)
+	{
+		DozerSettings.spillResidentRows = spillResidentRows;
+	}
+
+	/**
+	 * @return maximum estimated size of the detached state of the models of one session, 0 when disabled
+	 */
+	public static long getSessionBudget()
+	{
+		return sessionBudget;
+	}
+
+	/**
+	 * When set the estimated size of the detached state of every fully detached entity model is charged to a
+	 * {@link nl.dries.wicket.hibernate.dozer.store.MemoryBudget} of the Wicket session. When the budget is exceeded the
+	 * least recently used models without unsaved changes downgrade themselves to a reference (class and identifier),
+	 * right away when idle or at the end of their detach when in use, and the entity is reloaded on the next access.
+	 * Their bytes stay charged until the state is dropped. Models with unsaved changes keep their state.
+	 *
+	 * @param sessionBudget
+	 *            the sessionBudget to set in bytes, 0 to disable
+	 */
+	public static void setSessionBudget(long sessionBudget)
+	{
+		DozerSettings.sessionBudget = sessionBudget;
+	}
+
+	/**
+	 * @return <code>true</code> when detached graphs share the instances of reference data
+	 */
+	public static boolean isCanonicalReferenceData()
+	{
+		return canonicalReferenceData;
+	}
+
+	/**
+	 * When enabled initialized references to leaf entities (without associations) that are mapped immutable are
+	 * replaced by a shared instance on detach, see {@link nl.dries.wicket.hibernate.dozer.helper.CanonicalCache}.
+	 * Entities that are only loaded read-only are not shared. The shared instance is set in the fields of the graphs
+	 * of all sessions, so calling a setter on it changes the reference data of every user: the shared instances must
+	 * not be modified.
+	 *
+	 * @param canonicalReferenceData
+	 *            the canonicalReferenceData to set
+	 */
+	public static void setCanonicalReferenceData(boolean canonicalReferenceData)
+	{
+		DozerSettings.canonicalReferenceData = canonicalReferenceData;
+	}
+}
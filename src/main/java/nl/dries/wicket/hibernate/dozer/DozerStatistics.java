@@ -0,0 +1,107 @@
+package nl.dries.wicket.hibernate.dozer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Static (application wide) counters of the Dozer models
+ *
+ * @author dries
+ */
+public final class DozerStatistics
+{
+	/**
+	 * Available counters
+	 *
+	 * @author dries
+	 */
+	public enum Counter
+	{
+		/** Detached entities found in the second level cache on attach */
+		SECOND_LEVEL_CACHE_HITS,
+		/** Detached entities not found in the second level cache on attach */
+		SECOND_LEVEL_CACHE_MISSES,
+		/** Duplicate entity states written as a reference to an equal instance during page serialization */
+		DEDUPLICATED_ENTITIES,
+		/** Models detached as a reference (class and identifier) only */
+		REFERENCE_DETACHES,
+		/** Models detached with their full object graph */
+		FULL_DETACHES,
+		/** Version check queries on attach */
+		VERSION_CHECK_QUERIES,
+		/** Stale (or deleted) detached entities found on attach */
+		STALE_ENTITIES,
+		/** Models whose detached state was compressed */
+		COMPRESSED_DETACHES,
+		/** Uncompressed size of the compressed detached states */
+		COMPRESSION_RAW_BYTES,
+		/** Compressed size of the compressed detached states */
+		COMPRESSION_COMPRESSED_BYTES,
+		/** Time spent compressing detached states */
+		COMPRESSION_NANOS,
+		/** Time spent inflating detached states */
+		DECOMPRESSION_NANOS,
+		/** Detached states stored in the off-heap arena */
+		OFF_HEAP_STORES,
+		/** Detached states evicted from the off-heap arena to the heap */
+		OFF_HEAP_EVICTIONS,
+		/** Models attached again (restoring their detached state or reloading their reference) */
+		MODEL_ATTACHES,
+		/** Models downgraded to a reference because the session budget was exceeded */
+		BUDGET_DOWNGRADES,
+		/** Downgraded models reloaded on access */
+		BUDGET_RELOADS,
+		/** References to reference data replaced by an existing shared instance */
+		CANONICAL_HITS,
+		/** Shared instances of reference data created */
+		CANONICAL_MISSES;
+	}
+
+	/** Counter values, indexed by {@link Counter#ordinal()} */
+	private static final AtomicLongArray COUNTERS = new AtomicLongArray(Counter.values().length);
+
+	/** Util -> private */
+	private DozerStatistics()
+	{
+	}
+
+	/**
+	 * @param counter
+	 *            the {@link Counter} to increment
+	 */
+	public static void increment(Counter counter)
+	{
+		add(counter, 1L);
+	}
+
+	/**
+	 * @param counter
+	 *            the {@link Counter} to add to
+	 * @param delta
+	 *            the value to add
+	 */
+	public static void add(Counter counter, long delta)
+	{
+		COUNTERS.addAndGet(counter.ordinal(), delta);
+	}
+
+	/**
+	 * @param counter
+	 *            the {@link Counter}
+	 * @return its current value
+	 */
+	public static long get(Counter counter)
+	{
+		return COUNTERS.get(counter.ordinal());
+	}
+
+	/**
+	 * Resets all counters
+	 */
+	public static void reset()
+	{
+		for (int i = 0; i < COUNTERS.length(); i++)
+		{
+			COUNTERS.set(i, 0L);
+		}
+	}
+}
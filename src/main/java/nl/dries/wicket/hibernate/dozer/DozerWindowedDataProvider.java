@@ -0,0 +1,134 @@
+package nl.dries.wicket.hibernate.dozer;
+
+import java.util.Iterator;
+
+import org.apache.wicket.markup.repeater.data.IDataProvider;
+import org.apache.wicket.model.IModel;
+
+/**
+ * Data provider for paged views backed by a {@link DozerWindowedListModel}, the page being rendered becomes the window
+ * and the row models share its detached state
+ *
+ * @author dries
+ *
+ * @param <T>
+ *            model object type
+ */
+public class DozerWindowedDataProvider<T> implements IDataProvider<T>
+{
+	/** Default */
+	private static final long serialVersionUID = 1L;
+
+	/** The list model */
+	private final DozerWindowedListModel<T> listModel;
+
+	/**
+	 * Construct
+	 *
+	 * @param listModel
+	 *            the {@link DozerWindowedListModel}
+	 */
+	public DozerWindowedDataProvider(DozerWindowedListModel<T> listModel)
+	{
+		this.listModel = listModel;
+	}
+
+	/**
+	 * @see org.apache.wicket.markup.repeater.data.IDataProvider#iterator(long, long)
+	 */
+	@Override
+	public Iterator<? extends T> iterator(long first, long count)
+	{
+		return listModel.getWindow((int) first, (int) count).iterator();
+	}
+
+	/**
+	 * @see org.apache.wicket.markup.repeater.data.IDataProvider#size()
+	 */
+	@Override
+	public long size()
+	{
+		return listModel.size();
+	}
+
+	/**
+	 * @see org.apache.wicket.markup.repeater.data.IDataProvider#model(java.lang.Object)
+	 */
+	@Override
+	public IModel<T> model(T object)
+	{
+		int index = listModel.indexOfWindowObject(object);
+		return index < 0 ? new DozerModel<>(object) : new RowModel<>(listModel, index);
+	}
+
+	/**
+	 * @see org.apache.wicket.model.IDetachable#detach()
+	 */
+	@Override
+	public void detach()
+	{
+		listModel.detach();
+	}
+
+	/**
+	 * Model of one row, reading it from the list model
+	 *
+	 * @author dries
+	 *
+	 * @param <T>
+	 */
+	private static final class RowModel<T> implements IModel<T>
+	{
+		/** Default */
+		private static final long serialVersionUID = 1L;
+
+		/** The list model */
+		private final DozerWindowedListModel<T> listModel;
+
+		/** Row index */
+		private final int index;
+
+		/**
+		 * Construct
+		 *
+		 * @param listModel
+		 * @param index
+		 */
+		RowModel(DozerWindowedListModel<T> listModel, int index)
+		{
+			this.listModel = listModel;
+			this.index = index;
+		}
+
+		/**
+		 * @see org.apache.wicket.model.IModel#getObject()
+		 */
+		@Override
+		public T getObject()
+		{
+			return listModel.get(index);
+		}
+
+		/**
+		 * Rows are read-only
+		 *
+		 * @see org.apache.wicket.model.IModel#setObject(java.lang.Object)
+		 */
+		@Override
+		public void setObject(T object)
+		{
+			throw new UnsupportedOperationException("Rows of a windowed list model are read-only");
+		}
+
+		/**
+		 * The list model detaches the window
+		 *
+		 * @see org.apache.wicket.model.IDetachable#detach()
+		 */
+		@Override
+		public void detach()
+		{
+			listModel.detach();
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package nl.dries.wicket.hibernate.dozer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nl.dries.wicket.hibernate.dozer.helper.Attacher;
+import nl.dries.wicket.hibernate.dozer.helper.HibernateProperty;
+import nl.dries.wicket.hibernate.dozer.helper.ModelKey;
+import nl.dries.wicket.hibernate.dozer.helper.ObjectHelper;
+
+import org.apache.wicket.model.IModel;
+
+/**
+ * List model for paged views on a large list of entities. All rows are kept as references (class and identifier),
+ * only the rows of the current window are kept as full {@link DozerModel}s. When the window moves the entities of the
+ * new rows are loaded with one (batched) query per entity type, see {@link #getWindow(int, int)}.
+ *
+ * @author dries
+ *
+ * @param <T>
+ *            model object type
+ */
+public class DozerWindowedListModel<T> implements IModel<List<T>>
+{
+	/** Default */
+	private static final long serialVersionUID = 1L;
+
+	/** References to all rows */
+	private final List<HibernateProperty> references = new ArrayList<>();
+
+	/** Models of the rows in the current window */
+	private final List<DozerModel<T>> window = new ArrayList<>();
+
+	/** Index of the first row of the window */
+	private int windowStart;
+
+	/**
+	 * Construct
+	 *
+	 * @param objects
+	 *            the entities
+	 */
+	public DozerWindowedListModel(List<T> objects)
+	{
+		setObject(objects);
+	}
+
+	/**
+	 * Moves the window and returns its rows, the rows that were not in the previous window are loaded first
+	 *
+	 * @param first
+	 *            index of the first row
+	 * @param count
+	 *            maximum number of rows
+	 * @return the (attached) rows of the window
+	 */
+	public List<T> getWindow(int first, int count)
+	{
+		int start = Math.max(0, Math.min(first, references.size()));
+		int end = Math.min(references.size(), start + Math.max(0, count));
+
+		List<DozerModel<T>> newWindow = new ArrayList<>(end - start);
+		List<HibernateProperty> missing = new ArrayList<>();
+		for (int i = start; i < end; i++)
+		{
+			DozerModel<T> model = getWindowModel(i);
+			newWindow.add(model);
+			if (model == null)
+			{
+				missing.add(references.get(i));
+			}
+		}
+
+		Attacher.prefetchReferences(missing);
+		for (int i = start; i < end; i++)
+		{
+			if (newWindow.get(i - start) == null)
+			{
+				newWindow.set(i - start, new DozerModel<>(load(references.get(i))));
+			}
+		}
+
+		window.clear();
+		window.addAll(newWindow);
+		windowStart = start;
+
+		return getObject();
+	}
+
+	/**
+	 * Returns a single row, loading it when it is not in the current window (without moving the window)
+	 *
+	 * @param index
+	 *            the index
+	 * @return the object of the row
+	 */
+	public T get(int index)
+	{
+		DozerModel<T> model = getWindowModel(index);
+		return model == null ? load(references.get(index)) : model.getObject();
+	}
+
+	/**
+	 * @return the total number of rows
+	 */
+	public int size()
+	{
+		return references.size();
+	}
+
+	/**
+	 * @return index of the first row of the window
+	 */
+	public int getWindowStart()
+	{
+		return windowStart;
+	}
+
+	/**
+	 * @return number of rows in the window
+	 */
+	public int getWindowSize()
+	{
+		return window.size();
+	}
+
+	/**
+	 * @param object
+	 *            an object
+	 * @return the index of the row in the window with the given (root) object, <code>-1</code> if not found
+	 */
+	int indexOfWindowObject(Object object)
+	{
+		for (int i = 0; i < window.size(); i++)
+		{
+			if (window.get(i).isRoot(object))
+			{
+				return windowStart + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param index
+	 *            row index
+	 * @return its model, <code>null</code> when the row is not in the window
+	 */
+	private DozerModel<T> getWindowModel(int index)
+	{
+		int offset = index - windowStart;
+		return offset >= 0 && offset < window.size() ? window.get(offset) : null;
+	}
+
+	/**
+	 * @param reference
+	 *            the reference
+	 * @return the entity (from the persistence context when prefetched)
+	 */
+	@SuppressWarnings("unchecked")
+	private T load(HibernateProperty reference)
+	{
+		return (T) SessionFinderHolder.getSessionFinder().getHibernateSession(reference.getEntityClass())
+			.load(reference.getEntityClass(), reference.getId());
+	}
+
+	/**
+	 * Returns the rows of the current window
+	 *
+	 * @see org.apache.wicket.model.IModel#getObject()
+	 */
+	@Override
+	public List<T> getObject()
+	{
+		List<T> objects = new ArrayList<>(window.size());
+		for (DozerModel<T> model : window)
+		{
+			objects.add(model.getObject());
+		}
+		return Collections.unmodifiableList(objects);
+	}
+
+	/**
+	 * Replaces all rows, the window is emptied
+	 *
+	 * @param objects
+	 *            the entities
+	 * @see org.apache.wicket.model.IModel#setObject(java.lang.Object)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void setObject(List<T> objects)
+	{
+		references.clear();
+		window.clear();
+		windowStart = 0;
+
+		if (objects != null)
+		{
+			SessionFinder sessionFinder = SessionFinderHolder.getSessionFinder();
+			for (T object : objects)
+			{
+				ModelKey key = ModelKey.of(object, sessionFinder);
+				if (key == null)
+				{
+					throw new IllegalArgumentException("Not a saved entity: " + object);
+				}
+
+				Class<? extends Serializable> entityClass = (Class<? extends Serializable>) ObjectHelper
+					.getEntityClass(object);
+				references.add(new HibernateProperty(entityClass, key.getId()));
+			}
+		}
+	}
+
+	/**
+	 * @see org.apache.wicket.model.IDetachable#detach()
+	 */
+	@Override
+	public void detach()
+	{
+		for (DozerModel<T> model : window)
+		{
+			model.detach();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package nl.dries.wicket.hibernate.dozer;
+
+import java.util.Collection;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+/**
+ * {@link SessionFinder} for several session factories. When set in the {@link SessionFinderHolder} the classes are
+ * routed to their factory by a {@link RoutingSessionFinder}, built once from the metadata of the factories; this
+ * finder is then only asked for the session bound to a factory. Classes that are not mapped (or mapped by more than
+ * one factory) are still passed to {@link #getHibernateSession(Class)}.
+ *
+ * @author dries
+ */
+public interface FactorySessionFinder extends SessionFinder
+{
+	/**
+	 * @return the session factories to route to
+	 */
+	Collection<SessionFactory> getSessionFactories();
+
+	/**
+	 * @param sessionFactory
+	 *            one of the {@link #getSessionFactories()}
+	 * @return the Hibernate {@link Session} bound to the factory
+	 */
+	Session getHibernateSession(SessionFactory sessionFactory);
+}
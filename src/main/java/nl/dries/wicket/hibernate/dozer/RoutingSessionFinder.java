@@ -0,0 +1,189 @@
+package nl.dries.wicket.hibernate.dozer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.CompositeType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes classes to their session factory with an index built once from the metadata of the factories of a
+ * {@link FactorySessionFinder}: the mapped entity classes and their embedded (component) classes. Subclasses (e.g.
+ * proxy classes) are resolved through their superclasses once and remembered. Classes mapped by more than one factory
+ * (and their subclasses) are not routed, they are left to {@link FactorySessionFinder#getHibernateSession(Class)}. The
+ * index is immutable and published
+ * through a final field, the resolved classes are kept in a concurrent map, so the finder can be shared by all
+ * threads.
+ *
+ * @author dries
+ */
+public class RoutingSessionFinder implements SessionFinder
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(RoutingSessionFinder.class);
+
+	/** The routed finder */
+	private final FactorySessionFinder finder;
+
+	/** Factory per mapped class */
+	private final Map<Class<?>, SessionFactory> index;
+
+	/** Classes mapped by more than one factory */
+	private final Set<Class<?>> ambiguous;
+
+	/** Factory per resolved subclass */
+	private final ConcurrentMap<Class<?>, SessionFactory> resolved = new ConcurrentHashMap<>();
+
+	/** Classes without (a single) factory */
+	private final ConcurrentMap<Class<?>, Boolean> unrouted = new ConcurrentHashMap<>();
+
+	/**
+	 * Construct
+	 *
+	 * @param finder
+	 *            the {@link FactorySessionFinder}
+	 */
+	public RoutingSessionFinder(FactorySessionFinder finder)
+	{
+		this.finder = finder;
+
+		Map<Class<?>, SessionFactory> classes = new HashMap<>();
+		Set<Class<?>> ambiguous = new HashSet<>();
+		for (SessionFactory factory : finder.getSessionFactories())
+		{
+			for (ClassMetadata metadata : factory.getAllClassMetadata().values())
+			{
+				if (metadata.getMappedClass() != null)
+				{
+					add(classes, ambiguous, metadata.getMappedClass(), factory);
+				}
+				addComponents(classes, ambiguous, metadata.getIdentifierType(), factory);
+				for (Type type : metadata.getPropertyTypes())
+				{
+					addComponents(classes, ambiguous, type, factory);
+				}
+			}
+		}
+		classes.keySet().removeAll(ambiguous);
+		index = Collections.unmodifiableMap(classes);
+		this.ambiguous = Collections.unmodifiableSet(ambiguous);
+
+		LOG.info("Routing {} classes to {} session factories, {} classes mapped by several factories", new Object[] {
+				index.size(), finder.getSessionFactories().size(), ambiguous.size() });
+	}
+
+	/**
+	 * @param classes
+	 *            the index being built
+	 * @param ambiguous
+	 *            classes mapped by more than one factory
+	 * @param clazz
+	 *            the class
+	 * @param factory
+	 *            its factory
+	 */
+	private static void add(Map<Class<?>, SessionFactory> classes, Set<Class<?>> ambiguous, Class<?> clazz,
+		SessionFactory factory)
+	{
+		SessionFactory previous = classes.put(clazz, factory);
+		if (previous != null && previous != factory)
+		{
+			ambiguous.add(clazz);
+		}
+	}
+
+	/**
+	 * Add the (nested) component classes of a type
+	 *
+	 * @param classes
+	 *            the index being built
+	 * @param ambiguous
+	 *            classes mapped by more than one factory
+	 * @param type
+	 *            the property type
+	 * @param factory
+	 *            its factory
+	 */
+	private static void addComponents(Map<Class<?>, SessionFactory> classes, Set<Class<?>> ambiguous, Type type,
+		SessionFactory factory)
+	{
+		if (type != null && type.isComponentType())
+		{
+			add(classes, ambiguous, type.getReturnedClass(), factory);
+			for (Type subtype : ((CompositeType) type).getSubtypes())
+			{
+				addComponents(classes, ambiguous, subtype, factory);
+			}
+		}
+	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.SessionFinder#getHibernateSession(java.lang.Class)
+	 */
+	@Override
+	public Session getHibernateSession(Class<?> clazz)
+	{
+		SessionFactory factory = getSessionFactory(clazz);
+		return factory == null ? finder.getHibernateSession(clazz) : finder.getHibernateSession(factory);
+	}
+
+	/**
+	 * @param clazz
+	 *            the class
+	 * @return the factory mapping the class (or one of its superclasses), <code>null</code> when none or when the
+	 *         class or one of the superclasses up to the mapped one is mapped by more than one factory
+	 */
+	public SessionFactory getSessionFactory(Class<?> clazz)
+	{
+		SessionFactory factory = index.get(clazz);
+		if (factory == null && clazz != null && !unrouted.containsKey(clazz))
+		{
+			factory = resolved.get(clazz);
+			if (factory == null)
+			{
+				// Stop at the first ambiguous class, a mapped ancestor does not tell which factory maps the subclass
+				for (Class<?> current = clazz; factory == null && current != null && !ambiguous.contains(current);
+					current = current.getSuperclass())
+				{
+					factory = index.get(current);
+				}
+
+				if (factory == null)
+				{
+					unrouted.put(clazz, Boolean.TRUE);
+				}
+				else
+				{
+					resolved.put(clazz, factory);
+				}
+			}
+		}
+		return factory;
+	}
+
+	/**
+	 * @return the routed {@link FactorySessionFinder}
+	 */
+	public FactorySessionFinder getFinder()
+	{
+		return finder;
+	}
+
+	/**
+	 * @return number of indexed classes
+	 */
+	public int getIndexSize()
+	{
+		return index.size();
+	}
+}
@@ -1,17 +1,19 @@
 package nl.dries.wicket.hibernate.dozer;
 
 /**
- * Static holder for the {@link SessionFinder}
+ * Static holder for the {@link SessionFinder}. A {@link FactorySessionFinder} is wrapped in a
+ * {@link RoutingSessionFinder} when it is set, so its routing index is built once.
  * 
  * @author dries
  */
 public final class SessionFinderHolder
 {
-	/** Known finder */
-	private static SessionFinder sessionFinder;
+	/** Known finder, volatile so it is safely published to all threads */
+	private static volatile SessionFinder sessionFinder;
 
 	/**
-	 * @return the current {@link SessionFinder}
+	 * @return the current {@link SessionFinder}, a {@link RoutingSessionFinder} when a {@link FactorySessionFinder}
+	 *         was set (see {@link #getConfiguredSessionFinder()})
 	 */
 	public static SessionFinder getSessionFinder()
 	{
@@ -19,11 +21,31 @@ public final class SessionFinderHolder
 	}
 
 	/**
+	 * @return the {@link SessionFinder} as it was set, i.e. without the {@link RoutingSessionFinder} wrapping a
+	 *         {@link FactorySessionFinder}
+	 */
+	public static SessionFinder getConfiguredSessionFinder()
+	{
+		SessionFinder current = sessionFinder;
+		return current instanceof RoutingSessionFinder ? ((RoutingSessionFinder) current).getFinder() : current;
+	}
+
+	/**
+	 * Set the finder, a {@link FactorySessionFinder} is wrapped in a {@link RoutingSessionFinder} so
+	 * {@link #getSessionFinder()} returns the wrapper
+	 * 
 	 * @param sessionFinder
 	 *            the {@link SessionFinder} to set
 	 */
 	public static void setSessionFinder(SessionFinder sessionFinder)
 	{
-		SessionFinderHolder.sessionFinder = sessionFinder;
+		if (sessionFinder instanceof FactorySessionFinder)
+		{
+			SessionFinderHolder.sessionFinder = new RoutingSessionFinder((FactorySessionFinder) sessionFinder);
+		}
+		else
+		{
+			SessionFinderHolder.sessionFinder = sessionFinder;
+		}
 	}
 }
@@ -0,0 +1,19 @@
+package nl.dries.wicket.hibernate.dozer;
+
+/**
+ * What to do with stale versioned entities found when a detached graph is attached, see
+ * {@link DozerSettings#setStalePolicy(StalePolicy)}
+ * 
+ * @author dries
+ */
+public enum StalePolicy
+{
+	/** No version check (default) */
+	NONE,
+	/** Log and count the stale entities, they are available from {@link DozerModel#getStaleEntities()} */
+	REPORT,
+	/** Like {@link #REPORT}, and copy the current (non association) state and version into the detached instance */
+	REFRESH,
+	/** Throw a <code>StaleObjectStateException</code> for the first stale entity */
+	FAIL;
+}
@@ -0,0 +1,168 @@
+package nl.dries.wicket.hibernate.dozer.helper;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.dries.wicket.hibernate.dozer.DozerSettings;
+import nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition;
+
+import org.apache.wicket.core.request.handler.IPageClassRequestHandler;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Records how often detached properties are touched after a (lazy) restore, per page class, model root type and
+ * property. Properties that are touched in most restores are 'hot' and will be attached directly on the next restore,
+ * the others stay lazy. The statistics table is bounded by {@link DozerSettings#getAdaptivePrefetchMaxEntries()}, the
+ * least recently used entries are dropped.
+ *
+ * @author dries
+ */
+public final class AdaptivePrefetch
+{
+	/** Minimal number of lazy restores before a property can become hot */
+	private static final long MIN_SAMPLES = 3;
+
+	/** Statistics table */
+	private static final Map<String, Entry> TABLE = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(
+		16, 0.75f, true)
+	{
+		/** Default */
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+		{
+			return size() > DozerSettings.getAdaptivePrefetchMaxEntries();
+		}
+	});
+
+	/** Util -> private */
+	private AdaptivePrefetch()
+	{
+	}
+
+	/**
+	 * Checks if a property is hot, meaning it was touched in at least half of the lazy restores
+	 *
+	 * @param rootType
+	 *            the model root type
+	 * @param def
+	 *            the {@link AbstractPropertyDefinition}
+	 * @return <code>true</code> if hot
+	 */
+	public static boolean isHot(Class<?> rootType, AbstractPropertyDefinition def)
+	{
+		Entry entry = TABLE.get(createKey(rootType, def));
+		if (entry == null)
+		{
+			return false;
+		}
+
+		long restored = entry.restored.get();
+		return restored >= MIN_SAMPLES && entry.touched.get() * 2 >= restored;
+	}
+
+	/**
+	 * Record a lazy restore of a detached property
+	 *
+	 * @param rootType
+	 *            the model root type
+	 * @param def
+	 *            the {@link AbstractPropertyDefinition}
+	 */
+	public static void restored(Class<?> rootType, AbstractPropertyDefinition def)
+	{
+		getEntry(createKey(rootType, def)).restored.incrementAndGet();
+	}
+
+	/**
+	 * Record a touch of a lazily restored property
+	 *
+	 * @param rootType
+	 *            the model root type
+	 * @param def
+	 *            the {@link AbstractPropertyDefinition}
+	 */
+	public static void touched(Class<?> rootType, AbstractPropertyDefinition def)
+	{
+		getEntry(createKey(rootType, def)).touched.incrementAndGet();
+	}
+
+	/**
+	 * @return number of entries in the statistics table
+	 */
+	public static int size()
+	{
+		return TABLE.size();
+	}
+
+	/**
+	 * Clears the statistics table
+	 */
+	public static void clear()
+	{
+		TABLE.clear();
+	}
+
+	/**
+	 * @param key
+	 *            the key
+	 * @return the (possibly new) {@link Entry}
+	 */
+	private static Entry getEntry(String key)
+	{
+		synchronized (TABLE)
+		{
+			Entry entry = TABLE.get(key);
+			if (entry == null)
+			{
+				entry = new Entry();
+				TABLE.put(key, entry);
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Creates the key for a property, the property path is the declaring class and name of the property
+	 *
+	 * @param rootType
+	 *            the model root type
+	 * @param def
+	 *            the {@link AbstractPropertyDefinition}
+	 * @return the key
+	 */
+	private static String createKey(Class<?> rootType, AbstractPropertyDefinition def)
+	{
+		String page = "";
+
+		RequestCycle requestCycle = RequestCycle.get();
+		if (requestCycle != null)
+		{
+			IRequestHandler handler = requestCycle.getActiveRequestHandler();
+			if (handler instanceof IPageClassRequestHandler)
+			{
+				page = ((IPageClassRequestHandler) handler).getPageClass().getName();
+			}
+		}
+
+		return page + '|' + rootType.getName() + '|' + def.getOwner().getClass().getName() + '.' + def.getProperty();
+	}
+
+	/**
+	 * Statistics entry
+	 *
+	 * @author dries
+	 */
+	private static class Entry
+	{
+		/** Number of lazy restores */
+		private final AtomicLong restored = new AtomicLong();
+
+		/** Number of touches after a lazy restore */
+		private final AtomicLong touched = new AtomicLong();
+	}
+}
@@ -1,21 +1,43 @@
 package nl.dries.wicket.hibernate.dozer.helper;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
+import nl.dries.wicket.hibernate.dozer.DozerSettings;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics.Counter;
 import nl.dries.wicket.hibernate.dozer.SessionFinder;
+import nl.dries.wicket.hibernate.dozer.SessionFinderHolder;
 import nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition;
 import nl.dries.wicket.hibernate.dozer.properties.CollectionPropertyDefinition;
 import nl.dries.wicket.hibernate.dozer.properties.SimplePropertyDefinition;
 
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.cache.spi.CacheKey;
 import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.criterion.Restrictions;
 import org.hibernate.engine.spi.CollectionKey;
 import org.hibernate.engine.spi.EntityKey;
 import org.hibernate.engine.spi.PersistenceContext;
 import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.loader.collection.BasicCollectionLoader;
+import org.hibernate.loader.collection.CollectionLoader;
+import org.hibernate.loader.collection.OneToManyLoader;
 import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.collection.QueryableCollection;
 import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Hibernate object (re-)attacher
@@ -24,6 +46,9 @@ import org.hibernate.persister.entity.EntityPersister;
  */
 public class Attacher
 {
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(Attacher.class);
+
 	/** The Hibernate session */
 	private final SessionFinder sessionFinder;
 
@@ -54,7 +79,7 @@ public class Attacher
 		SessionImplementor sessionImpl = (SessionImplementor) sessionFinder.getHibernateSession(def
 			.getHibernateProperty().getEntityClass());
 
-		EntityPersister persister = getPersister(def.getHibernateProperty(), sessionImpl);
+		EntityPersister persister = getPersister(def, sessionImpl);
 		PersistenceContext persistenceContext = sessionImpl.getPersistenceContext();
 
 		EntityKey key = new EntityKey(def.getHibernateProperty().getId(), persister);
@@ -67,22 +92,64 @@ public class Attacher
 		{
 			// Also no proxy found, generate new one
 			Object existing = persistenceContext.getProxy(key);
-			if (existing == null)
+			if (existing != null)
+			{
+				instance = persistenceContext.narrowProxy(existing, persister, key, null);
+			}
+			else if (DozerSettings.isSecondLevelCacheFirst() && persister.hasCache())
+			{
+				instance = getCachedInstance(def, persister, sessionImpl);
+			}
+
+			// Still nothing, generate a new proxy
+			if (instance == null)
 			{
 				instance = persister.createProxy(def.getHibernateProperty().getId(), sessionImpl);
 				persistenceContext.getBatchFetchQueue().addBatchLoadableEntityKey(key);
 				persistenceContext.addProxy(key, instance);
 			}
-			else
-			{
-				instance = persistenceContext.narrowProxy(existing, persister, key, null);
-			}
 		}
 
 		// Set the property to te real value, or a proxy
 		return instance;
 	}
 
+	/**
+	 * Looks up a detached entity in the second level cache
+	 * 
+	 * @param def
+	 *            the {@link SimplePropertyDefinition}
+	 * @param persister
+	 *            its {@link EntityPersister}, having a cache
+	 * @param sessionImpl
+	 *            the {@link SessionImplementor}
+	 * @return the hydrated instance, <code>null</code> when not cached
+	 */
+	protected Object getCachedInstance(SimplePropertyDefinition def, EntityPersister persister,
+		SessionImplementor sessionImpl)
+	{
+		Serializable id = def.getHibernateProperty().getId();
+
+		Object cached = null;
+		if (sessionImpl.getCacheMode().isGetEnabled())
+		{
+			CacheKey cacheKey = sessionImpl.generateCacheKey(id, persister.getIdentifierType(),
+				persister.getRootEntityName());
+			cached = persister.getCacheAccessStrategy().get(cacheKey, sessionImpl.getTimestamp());
+		}
+
+		if (cached == null)
+		{
+			DozerStatistics.increment(Counter.SECOND_LEVEL_CACHE_MISSES);
+			return null;
+		}
+
+		DozerStatistics.increment(Counter.SECOND_LEVEL_CACHE_HITS);
+
+		// Assembled from the cache entry by the load listener
+		return ((Session) sessionImpl).get(persister.getEntityName(), id);
+	}
+
 	/**
 	 * Attach a collection
 	 * 
@@ -97,14 +164,19 @@ public class Attacher
 		CollectionPersister persister = getCollectionPersister(def, sessionImpl);
 		PersistenceContext persistenceContext = sessionImpl.getPersistenceContext();
 
-		ClassMetadata metadata = sessionImpl.getFactory().getClassMetadata(def.getOwner().getClass());
-		Serializable identifier = metadata.getIdentifier(def.getOwner(), sessionImpl);
+		Serializable identifier = def.getOwnerId();
+		if (identifier == null)
+		{
+			ClassMetadata metadata = sessionImpl.getFactory().getClassMetadata(def.getOwner().getClass());
+			identifier = metadata.getIdentifier(def.getOwner(), sessionImpl);
+		}
 
 		CollectionKey key = new CollectionKey(persister, identifier);
 		PersistentCollection collection = persistenceContext.getCollection(key);
 		if (collection == null)
 		{
-			collection = def.getCollectionType().createCollection(sessionImpl);
+			// Instantiated by the collection type of the role, which also covers id-bags and custom collection types
+			collection = persister.getCollectionType().instantiate(sessionImpl, persister, identifier);
 			collection.setSnapshot(identifier, def.getRole(), null); // Sort of 'fake' state...
 
 			persistenceContext.addUninitializedDetachedCollection(persister, collection);
@@ -128,6 +200,18 @@ public class Attacher
 		return factory.getEntityPersister(val.getEntityClass().getName());
 	}
 
+	/**
+	 * Returns a {@link EntityPersister} for the entity class of the definition, cached on the definition
+	 * 
+	 * @param def
+	 *            the {@link SimplePropertyDefinition}
+	 * @return {@link EntityPersister}
+	 */
+	protected EntityPersister getPersister(SimplePropertyDefinition def, SessionImplementor sessionImpl)
+	{
+		return def.getPersister(sessionImpl.getFactory());
+	}
+
 	/**
 	 * Returns a {@link CollectionPersister} for the given entity class
 	 * 
@@ -138,8 +222,7 @@ public class Attacher
 	protected CollectionPersister getCollectionPersister(CollectionPropertyDefinition def,
 		SessionImplementor sessionImpl)
 	{
-		SessionFactoryImplementor factory = sessionImpl.getFactory();
-		return factory.getCollectionPersister(def.getRole());
+		return def.getPersister(sessionImpl.getFactory());
 	}
 
 	/**
@@ -167,4 +250,265 @@ public class Attacher
 
 		return attach((CollectionPropertyDefinition) propertyDefinition);
 	}
+
+	/**
+	 * Attach a group of properties, the detached entities and collections are first loaded grouped by their persister
+	 * (see {@link #prefetch(Collection)})
+	 * 
+	 * @param defs
+	 *            the {@link AbstractPropertyDefinition}s to attach
+	 * @return the attached values, keyed by their property definition
+	 */
+	public static Map<AbstractPropertyDefinition, Object> attach(Collection<? extends AbstractPropertyDefinition> defs)
+	{
+		prefetch(defs);
+
+		Map<AbstractPropertyDefinition, Object> values = new LinkedHashMap<>();
+		for (AbstractPropertyDefinition def : defs)
+		{
+			values.put(def, new Attacher(def).attach());
+		}
+		return values;
+	}
+
+	/**
+	 * Loads the entities and collections of the given detached properties into the persistence context. Collections
+	 * are attached and initialized with one query per collection role, entities are loaded with one query per entity
+	 * type (both for each chunk of {@link DozerSettings#getBatchSize()} keys). Entities and collections that are
+	 * already present in the persistence context are skipped, as are types with only one pending key.
+	 * 
+	 * @param defs
+	 *            the {@link AbstractPropertyDefinition}s to prefetch
+	 */
+	public static void prefetch(Collection<? extends AbstractPropertyDefinition> defs)
+	{
+		prefetchCollections(defs);
+		prefetchEntities(defs);
+	}
+
+	/**
+	 * Attaches the collections of the given detached properties and initializes them grouped by role
+	 * 
+	 * @param defs
+	 *            the {@link AbstractPropertyDefinition}s to prefetch
+	 */
+	private static void prefetchCollections(Collection<? extends AbstractPropertyDefinition> defs)
+	{
+		Map<CollectionPersister, SessionImplementor> sessions = new LinkedHashMap<>();
+		Map<CollectionPersister, List<Serializable>> pending = new LinkedHashMap<>();
+
+		for (AbstractPropertyDefinition def : defs)
+		{
+			if (def instanceof CollectionPropertyDefinition)
+			{
+				CollectionPropertyDefinition collectionDef = (CollectionPropertyDefinition) def;
+				Attacher attacher = new Attacher(def);
+
+				PersistentCollection collection = (PersistentCollection) attacher.attach(collectionDef);
+				if (collection != null && !collection.wasInitialized())
+				{
+					SessionImplementor sessionImpl = (SessionImplementor) attacher.sessionFinder
+						.getHibernateSession(def.getOwner().getClass());
+					CollectionPersister persister = attacher.getCollectionPersister(collectionDef, sessionImpl);
+
+					List<Serializable> keys = pending.get(persister);
+					if (keys == null)
+					{
+						keys = new ArrayList<>();
+						pending.put(persister, keys);
+						sessions.put(persister, sessionImpl);
+					}
+					keys.add(collection.getKey());
+				}
+			}
+		}
+
+		for (Entry<CollectionPersister, List<Serializable>> entry : pending.entrySet())
+		{
+			if (entry.getValue().size() > 1)
+			{
+				initializeCollections(sessions.get(entry.getKey()), entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Loads the entities of the given detached properties grouped by {@link EntityPersister}
+	 * 
+	 * @param defs
+	 *            the {@link AbstractPropertyDefinition}s to prefetch
+	 */
+	private static void prefetchEntities(Collection<? extends AbstractPropertyDefinition> defs)
+	{
+		EntityBatch batch = new EntityBatch();
+		for (AbstractPropertyDefinition def : defs)
+		{
+			if (def instanceof SimplePropertyDefinition)
+			{
+				SimplePropertyDefinition simpleDef = (SimplePropertyDefinition) def;
+				HibernateProperty property = simpleDef.getHibernateProperty();
+				Attacher attacher = new Attacher(def);
+
+				SessionImplementor sessionImpl = (SessionImplementor) attacher.sessionFinder
+					.getHibernateSession(property.getEntityClass());
+				batch.add(sessionImpl, attacher.getPersister(simpleDef, sessionImpl), property.getId());
+			}
+		}
+		batch.load();
+	}
+
+	/**
+	 * Loads the referenced entities grouped by {@link EntityPersister}, entities already present in the persistence
+	 * context are skipped, as are types with only one pending identifier
+	 * 
+	 * @param references
+	 *            the {@link HibernateProperty}s of the entities
+	 */
+	public static void prefetchReferences(Collection<HibernateProperty> references)
+	{
+		EntityBatch batch = new EntityBatch();
+		SessionFinder sessionFinder = SessionFinderHolder.getSessionFinder();
+		for (HibernateProperty reference : references)
+		{
+			SessionImplementor sessionImpl = (SessionImplementor) sessionFinder.getHibernateSession(reference
+				.getEntityClass());
+			batch.add(sessionImpl, sessionImpl.getFactory().getEntityPersister(reference.getEntityClass().getName()),
+				reference.getId());
+		}
+		batch.load();
+	}
+
+	/**
+	 * Loads entities of one type into the persistence context, using an <code>IN</code> query for each chunk of
+	 * {@link DozerSettings#getBatchSize()} identifiers
+	 * 
+	 * @param sessionImpl
+	 *            the {@link SessionImplementor}
+	 * @param persister
+	 *            the {@link EntityPersister} of the entities
+	 * @param ids
+	 *            their identifiers
+	 * @return the loaded entities
+	 */
+	public static List<?> load(SessionImplementor sessionImpl, EntityPersister persister, List<Serializable> ids)
+	{
+		List<Object> loaded = new ArrayList<>(ids.size());
+
+		String idProperty = persister.getIdentifierPropertyName();
+		if (idProperty == null)
+		{
+			LOG.debug("Entity {} has no identifier property, cannot batch load", persister.getEntityName());
+			return loaded;
+		}
+
+		int batchSize = Math.max(1, DozerSettings.getBatchSize());
+		for (int i = 0; i < ids.size(); i += batchSize)
+		{
+			List<Serializable> chunk = ids.subList(i, Math.min(ids.size(), i + batchSize));
+
+			LOG.debug("Batch loading {} instances of {}", chunk.size(), persister.getEntityName());
+
+			// Attaching should not flush the changes of the request
+			List<?> rows = ((Session) sessionImpl).createCriteria(persister.getEntityName())
+				.add(Restrictions.in(idProperty, chunk)).setFlushMode(FlushMode.MANUAL).list();
+			loaded.addAll(rows);
+		}
+
+		return loaded;
+	}
+
+	/**
+	 * Initializes the attached (uninitialized) collections of one role, using a multi-key query for each chunk of
+	 * {@link DozerSettings#getBatchSize()} owner keys
+	 * 
+	 * @param sessionImpl
+	 *            the {@link SessionImplementor}
+	 * @param persister
+	 *            the {@link CollectionPersister} of the collections
+	 * @param keys
+	 *            the collection keys (owner identifiers)
+	 */
+	public static void initializeCollections(SessionImplementor sessionImpl, CollectionPersister persister,
+		List<Serializable> keys)
+	{
+		QueryableCollection queryable = (QueryableCollection) persister;
+		SessionFactoryImplementor factory = sessionImpl.getFactory();
+
+		int batchSize = Math.max(1, DozerSettings.getBatchSize());
+		for (int i = 0; i < keys.size(); i += batchSize)
+		{
+			List<Serializable> chunk = keys.subList(i, Math.min(keys.size(), i + batchSize));
+
+			LOG.debug("Batch initializing {} collections of {}", chunk.size(), persister.getRole());
+
+			final CollectionLoader loader;
+			if (persister.isOneToMany())
+			{
+				loader = new OneToManyLoader(queryable, chunk.size(), factory, sessionImpl.getLoadQueryInfluencers());
+			}
+			else
+			{
+				loader = new BasicCollectionLoader(queryable, chunk.size(), factory,
+					sessionImpl.getLoadQueryInfluencers());
+			}
+
+			loader.loadCollectionBatch(sessionImpl, chunk.toArray(new Serializable[chunk.size()]),
+				persister.getKeyType());
+		}
+	}
+
+	/**
+	 * Identifiers of the entities to prefetch, grouped by {@link EntityPersister}
+	 * 
+	 * @author dries
+	 */
+	private static final class EntityBatch
+	{
+		/** Session per persister */
+		private final Map<EntityPersister, SessionImplementor> sessions = new LinkedHashMap<>();
+
+		/** Pending identifiers per persister, in the order they were added */
+		private final Map<EntityPersister, Set<Serializable>> pending = new LinkedHashMap<>();
+
+		/**
+		 * Add an entity, unless it is already present in the persistence context
+		 * 
+		 * @param sessionImpl
+		 *            the {@link SessionImplementor} to load it in
+		 * @param persister
+		 *            its {@link EntityPersister}
+		 * @param id
+		 *            its identifier
+		 */
+		void add(SessionImplementor sessionImpl, EntityPersister persister, Serializable id)
+		{
+			if (sessionImpl.getPersistenceContext().getEntity(new EntityKey(id, persister)) != null)
+			{
+				return;
+			}
+
+			Set<Serializable> ids = pending.get(persister);
+			if (ids == null)
+			{
+				ids = new LinkedHashSet<>();
+				pending.put(persister, ids);
+				sessions.put(persister, sessionImpl);
+			}
+			ids.add(id);
+		}
+
+		/**
+		 * Load the pending entities, skipping types with only one pending identifier
+		 */
+		void load()
+		{
+			for (Entry<EntityPersister, Set<Serializable>> entry : pending.entrySet())
+			{
+				if (entry.getValue().size() > 1)
+				{
+					Attacher.load(sessions.get(entry.getKey()), entry.getKey(), new ArrayList<>(entry.getValue()));
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,378 @@
+package nl.dries.wicket.hibernate.dozer.helper;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.dries.wicket.hibernate.dozer.DozerStatistics;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics.Counter;
+import nl.dries.wicket.hibernate.dozer.SessionFinderHolder;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Application wide cache of shared instances of reference data: leaf entities (without associations) that are mapped
+ * immutable. Entities that are only loaded read-only are not shared, they can still be changed through another session
+ * while the shared copy would be served without a version check. When detaching, a reference to such an entity is
+ * replaced by the shared instance (a copy that is never attached to a session) of the same entity name, identifier and
+ * version, so all detached graphs share one copy. When serialized the shared instance is written as a small
+ * {@link Token}, which resolves to the shared instance again when read (reloading it when it was evicted in the
+ * meantime).
+ * <p>
+ * The shared instances are referenced by the (mutable) fields of the graphs of all users, so modifying one changes it
+ * for every user and for all graphs detached later; they must not be modified. When reference data changes evict it
+ * with {@link #evict(Class, Serializable)}, {@link #evict(Class)} or {@link #clear()}; detached graphs keep their (old)
+ * instance until they are attached again.
+ *
+ * @author dries
+ */
+public final class CanonicalCache
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(CanonicalCache.class);
+
+	/** Shared instances by key */
+	private static final Map<ModelKey, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+	/** Keys of the shared instances, by identity */
+	private static final Map<Object, Entry> INSTANCES = new IdentityHashMap<>();
+
+	/** Classes with shared instances, to skip the identity lookup for other objects */
+	private static final Map<Class<?>, Boolean> CLASSES = new ConcurrentHashMap<>();
+
+	/** Whether an entity name is a leaf entity */
+	private static final Map<String, Boolean> LEAF_ENTITIES = new ConcurrentHashMap<>();
+
+	/** Util -> private */
+	private CanonicalCache()
+	{
+	}
+
+	/**
+	 * Returns the shared instance of an initialized entity when it is reference data
+	 *
+	 * @param entity
+	 *            the (deproxied) entity
+	 * @param sessionImpl
+	 *            the session it was loaded in
+	 * @return the shared instance, <code>null</code> when the entity is not reference data
+	 */
+	public static Object canonicalize(Object entity, SessionImplementor sessionImpl)
+	{
+		EntityEntry entityEntry = sessionImpl.getPersistenceContext().getEntry(entity);
+		if (entityEntry == null || entityEntry.getId() == null)
+		{
+			return null;
+		}
+
+		EntityPersister persister = entityEntry.getPersister();
+		if (persister.isMutable() || !isLeaf(persister))
+		{
+			return null;
+		}
+
+		ModelKey key = new ModelKey(persister.getRootEntityName(), entityEntry.getId());
+		Object version = entityEntry.getVersion();
+
+		Entry cached = ENTRIES.get(key);
+		if (cached != null && (version == null || version.equals(cached.version)))
+		{
+			DozerStatistics.increment(Counter.CANONICAL_HITS);
+			return cached.instance;
+		}
+
+		return share(key, persister, entity, entityEntry.getId(), version, sessionImpl).instance;
+	}
+
+	/**
+	 * Returns the shared instance of a not yet loaded entity (of any version)
+	 *
+	 * @param entityName
+	 *            the entity name
+	 * @param id
+	 *            the identifier
+	 * @param sessionImpl
+	 *            the session
+	 * @return the shared instance, <code>null</code> when not cached
+	 */
+	public static Object lookup(String entityName, Serializable id, SessionImplementor sessionImpl)
+	{
+		if (ENTRIES.isEmpty())
+		{
+			return null;
+		}
+
+		EntityPersister persister = sessionImpl.getFactory().getEntityPersister(entityName);
+		Entry cached = ENTRIES.get(new ModelKey(persister.getRootEntityName(), id));
+		if (cached != null)
+		{
+			DozerStatistics.increment(Counter.CANONICAL_HITS);
+			return cached.instance;
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces a shared instance by its token when serializing
+	 *
+	 * @param object
+	 *            the object to write
+	 * @return its {@link Token} when the object is a shared instance, the object itself otherwise
+	 */
+	public static Object replace(Object object)
+	{
+		if (object == null || !CLASSES.containsKey(object.getClass()))
+		{
+			return object;
+		}
+
+		Entry entry;
+		synchronized (INSTANCES)
+		{
+			entry = INSTANCES.get(object);
+		}
+		return entry == null ? object : entry.token;
+	}
+
+	/**
+	 * Evict the shared instance of an entity
+	 *
+	 * @param entityClass
+	 *            the entity class
+	 * @param id
+	 *            the identifier
+	 */
+	public static void evict(Class<?> entityClass, Serializable id)
+	{
+		synchronized (INSTANCES)
+		{
+			for (Iterator<Entry> iter = ENTRIES.values().iterator(); iter.hasNext();)
+			{
+				Entry entry = iter.next();
+				if (entityClass.isInstance(entry.instance) && entry.token.id.equals(id))
+				{
+					iter.remove();
+					INSTANCES.remove(entry.instance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evict the shared instances of an entity class (and its subclasses)
+	 *
+	 * @param entityClass
+	 *            the entity class
+	 */
+	public static void evict(Class<?> entityClass)
+	{
+		synchronized (INSTANCES)
+		{
+			for (Iterator<Entry> iter = ENTRIES.values().iterator(); iter.hasNext();)
+			{
+				Entry entry = iter.next();
+				if (entityClass.isInstance(entry.instance))
+				{
+					iter.remove();
+					INSTANCES.remove(entry.instance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evict all shared instances
+	 */
+	public static void clear()
+	{
+		synchronized (INSTANCES)
+		{
+			ENTRIES.clear();
+			INSTANCES.clear();
+		}
+	}
+
+	/**
+	 * @return number of shared instances
+	 */
+	public static int size()
+	{
+		return ENTRIES.size();
+	}
+
+	/**
+	 * Create and register the shared copy of an entity
+	 *
+	 * @param key
+	 *            its key
+	 * @param persister
+	 *            its {@link EntityPersister}
+	 * @param entity
+	 *            the entity
+	 * @param id
+	 *            its identifier
+	 * @param version
+	 *            its version, may be <code>null</code>
+	 * @param sessionImpl
+	 *            the session
+	 * @return the new entry
+	 */
+	private static Entry share(ModelKey key, EntityPersister persister, Object entity, Serializable id,
+		Object version, SessionImplementor sessionImpl)
+	{
+		Object copy = persister.instantiate(id, sessionImpl);
+		persister.setPropertyValues(copy, persister.getPropertyValues(entity));
+
+		Entry entry = new Entry(copy, version, new Token(persister.getMappedClass(), id, version));
+		synchronized (INSTANCES)
+		{
+			Entry previous = ENTRIES.put(key, entry);
+			if (previous != null)
+			{
+				INSTANCES.remove(previous.instance);
+			}
+			INSTANCES.put(copy, entry);
+			CLASSES.put(copy.getClass(), Boolean.TRUE);
+		}
+
+		DozerStatistics.increment(Counter.CANONICAL_MISSES);
+		LOG.debug("Sharing reference data {}", key);
+		return entry;
+	}
+
+	/**
+	 * @param persister
+	 *            the {@link EntityPersister}
+	 * @return <code>true</code> when the entity has no associations
+	 */
+	private static boolean isLeaf(EntityPersister persister)
+	{
+		Boolean leaf = LEAF_ENTITIES.get(persister.getEntityName());
+		if (leaf == null)
+		{
+			leaf = Boolean.TRUE;
+			for (Type type : persister.getPropertyTypes())
+			{
+				if (type.isAssociationType())
+				{
+					leaf = Boolean.FALSE;
+				}
+			}
+			LEAF_ENTITIES.put(persister.getEntityName(), leaf);
+		}
+		return leaf.booleanValue();
+	}
+
+	/**
+	 * Shared instance
+	 *
+	 * @author dries
+	 */
+	private static final class Entry
+	{
+		/** The shared instance */
+		private final Object instance;
+
+		/** Its version, may be <code>null</code> */
+		private final Object version;
+
+		/** Its token */
+		private final Token token;
+
+		/**
+		 * Construct
+		 *
+		 * @param instance
+		 * @param version
+		 * @param token
+		 */
+		Entry(Object instance, Object version, Token token)
+		{
+			this.instance = instance;
+			this.version = version;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * Serialized form of a shared instance
+	 *
+	 * @author dries
+	 */
+	public static final class Token implements Serializable
+	{
+		/** Default */
+		private static final long serialVersionUID = 1L;
+
+		/** Entity class */
+		private final Class<?> entityClass;
+
+		/** Identifier */
+		private final Serializable id;
+
+		/** Version, may be <code>null</code> */
+		private final Object version;
+
+		/**
+		 * Construct
+		 *
+		 * @param entityClass
+		 * @param id
+		 * @param version
+		 */
+		Token(Class<?> entityClass, Serializable id, Object version)
+		{
+			this.entityClass = entityClass;
+			this.id = id;
+			this.version = version;
+		}
+
+		/**
+		 * Resolves to the shared instance, reloading it when evicted
+		 *
+		 * @return the shared instance
+		 * @throws ObjectStreamException
+		 *             when the instance is not cached and there is no session to load it
+		 */
+		private Object readResolve() throws ObjectStreamException
+		{
+			Session session = SessionFinderHolder.getSessionFinder().getHibernateSession(entityClass);
+			if (session == null)
+			{
+				throw new InvalidObjectException("No session to resolve reference data " + entityClass.getName()
+					+ "#" + id);
+			}
+
+			SessionImplementor sessionImpl = (SessionImplementor) session;
+			SessionFactoryImplementor factory = sessionImpl.getFactory();
+			EntityPersister persister = factory.getEntityPersister(factory.getClassMetadata(entityClass)
+				.getEntityName());
+			ModelKey key = new ModelKey(persister.getRootEntityName(), id);
+
+			Entry cached = ENTRIES.get(key);
+			if (cached != null && (version == null || version.equals(cached.version)))
+			{
+				return cached.instance;
+			}
+
+			Object entity = ObjectHelper.deproxy(session.get(entityClass, id));
+			if (entity == null)
+			{
+				throw new InvalidObjectException("Reference data " + key + " no longer exists");
+			}
+			Object shared = canonicalize(entity, sessionImpl);
+			return shared == null ? entity : shared;
+		}
+	}
+}
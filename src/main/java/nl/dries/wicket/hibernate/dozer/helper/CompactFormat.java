@@ -0,0 +1,394 @@
+package nl.dries.wicket.hibernate.dozer.helper;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import nl.dries.wicket.hibernate.dozer.DozerSettings;
+
+import org.apache.wicket.core.util.lang.WicketObjects;
+
+/**
+ * Helper for the compact wire format of the externalizable Dozer classes. Class names and other repeated strings are
+ * written once per stream (a dictionary is kept per stream), so the stream does not depend on the layout of the
+ * classes of the reading application, and numbers are written with a variable-length encoding. When
+ * {@link DozerSettings#isCompactSerialization()} is disabled the values are written as plain objects.
+ *
+ * @author dries
+ */
+public final class CompactFormat
+{
+	/** Plain format marker */
+	private static final int FORMAT_PLAIN = 0;
+
+	/** Compact format marker */
+	private static final int FORMAT_COMPACT = 1;
+
+	/** Identifier tags */
+	private static final int ID_NULL = 0, ID_LONG = 1, ID_INTEGER = 2, ID_STRING = 3, ID_OBJECT = 4;
+
+	/** Written names per output stream */
+	private static final Map<ObjectOutput, Map<String, Integer>> OUTPUT_NAMES = Collections
+		.synchronizedMap(new WeakHashMap<ObjectOutput, Map<String, Integer>>());
+
+	/** Read names per input stream */
+	private static final Map<ObjectInput, List<String>> INPUT_NAMES = Collections
+		.synchronizedMap(new WeakHashMap<ObjectInput, List<String>>());
+
+	/** Util -> private */
+	private CompactFormat()
+	{
+	}
+
+	/**
+	 * Writes the format marker
+	 *
+	 * @param out
+	 *            the {@link ObjectOutput}
+	 * @return <code>true</code> when the compact format is used
+	 * @throws IOException
+	 */
+	public static boolean writeFormat(ObjectOutput out) throws IOException
+	{
+		boolean compact = DozerSettings.isCompactSerialization();
+		out.writeByte(compact ? FORMAT_COMPACT : FORMAT_PLAIN);
+		return compact;
+	}
+
+	/**
+	 * Reads the format marker
+	 *
+	 * @param in
+	 *            the {@link ObjectInput}
+	 * @return <code>true</code> when the compact format is used
+	 * @throws IOException
+	 */
+	public static boolean readFormat(ObjectInput in) throws IOException
+	{
+		int format = in.readByte();
+		if (format != FORMAT_PLAIN && format != FORMAT_COMPACT)
+		{
+			throw new InvalidObjectException("Unknown format " + format);
+		}
+		return format == FORMAT_COMPACT;
+	}
+
+	/**
+	 * Writes an unsigned variable-length int
+	 *
+	 * @param out
+	 *            the {@link ObjectOutput}
+	 * @param value
+	 *            the (non negative) value
+	 * @throws IOException
+	 */
+	public static void writeVarInt(ObjectOutput out, int value) throws IOException
+	{
+		int remaining = value;
+		while ((remaining & ~0x7F) != 0)
+		{
+			out.writeByte((remaining & 0x7F) | 0x80);
+			remaining >>>= 7;
+		}
+		out.writeByte(remaining);
+	}
+
+	/**
+	 * @param in
+	 *            the {@link ObjectInput}
+	 * @return an unsigned variable-length int
+	 * @throws IOException
+	 */
+	public static int readVarInt(ObjectInput in) throws IOException
+	{
+		return (int) readVarLong(in);
+	}
+
+	/**
+	 * Writes a signed variable-length long (zigzag encoded)
+	 *
+	 * @param out
+	 *            the {@link ObjectOutput}
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 */
+	public static void writeSignedVarLong(ObjectOutput out, long value) throws IOException
+	{
+		long remaining = (value << 1) ^ (value >> 63);
+		while ((remaining & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((remaining & 0x7F) | 0x80));
+			remaining >>>= 7;
+		}
+		out.writeByte((int) remaining);
+	}
+
+	/**
+	 * @param in
+	 *            the {@link ObjectInput}
+	 * @return a signed variable-length long (zigzag encoded)
+	 * @throws IOException
+	 */
+	public static long readSignedVarLong(ObjectInput in) throws IOException
+	{
+		long raw = readVarLong(in);
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	/**
+	 * @param in
+	 *            the {@link ObjectInput}
+	 * @return an unsigned variable-length long
+	 * @throws IOException
+	 */
+	private static long readVarLong(ObjectInput in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new InvalidObjectException("Malformed variable-length number");
+	}
+
+	/**
+	 * Writes a name using the dictionary of the stream
+	 *
+	 * @param out
+	 *            the {@link ObjectOutput}
+	 * @param name
+	 *            the name to write
+	 * @param compact
+	 *            use the compact format
+	 * @throws IOException
+	 */
+	public static void writeName(ObjectOutput out, String name, boolean compact) throws IOException
+	{
+		if (!compact)
+		{
+			out.writeObject(name);
+		}
+		else if (name == null)
+		{
+			writeVarInt(out, 0);
+		}
+		else
+		{
+			Map<String, Integer> names;
+			synchronized (OUTPUT_NAMES)
+			{
+				names = OUTPUT_NAMES.get(out);
+				if (names == null)
+				{
+					names = new HashMap<>();
+					OUTPUT_NAMES.put(out, names);
+				}
+			}
+
+			Integer index = names.get(name);
+			if (index == null)
+			{
+				names.put(name, names.size());
+				writeVarInt(out, 1);
+				out.writeUTF(name);
+			}
+			else
+			{
+				writeVarInt(out, index + 2);
+			}
+		}
+	}
+
+	/**
+	 * Reads a name using the dictionary of the stream
+	 *
+	 * @param in
+	 *            the {@link ObjectInput}
+	 * @param compact
+	 *            use the compact format
+	 * @return the name
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static String readName(ObjectInput in, boolean compact) throws IOException, ClassNotFoundException
+	{
+		if (!compact)
+		{
+			return (String) in.readObject();
+		}
+
+		int index = readVarInt(in);
+		if (index == 0)
+		{
+			return null;
+		}
+
+		List<String> names;
+		synchronized (INPUT_NAMES)
+		{
+			names = INPUT_NAMES.get(in);
+			if (names == null)
+			{
+				names = new ArrayList<>();
+				INPUT_NAMES.put(in, names);
+			}
+		}
+
+		if (index == 1)
+		{
+			String name = in.readUTF();
+			names.add(name);
+			return name;
+		}
+		else if (index - 2 < names.size())
+		{
+			return names.get(index - 2);
+		}
+		throw new InvalidObjectException("Unknown name index " + index);
+	}
+
+	/**
+	 * Writes a class by name
+	 *
+	 * @param out
+	 *            the {@link ObjectOutput}
+	 * @param clazz
+	 *            the class
+	 * @param compact
+	 *            use the compact format
+	 * @throws IOException
+	 */
+	public static void writeClass(ObjectOutput out, Class<?> clazz, boolean compact) throws IOException
+	{
+		if (compact)
+		{
+			writeName(out, clazz == null ? null : clazz.getName(), true);
+		}
+		else
+		{
+			out.writeObject(clazz);
+		}
+	}
+
+	/**
+	 * @param in
+	 *            the {@link ObjectInput}
+	 * @param compact
+	 *            use the compact format
+	 * @return the class
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Class<?> readClass(ObjectInput in, boolean compact) throws IOException, ClassNotFoundException
+	{
+		if (!compact)
+		{
+			return (Class<?>) in.readObject();
+		}
+
+		String name = readName(in, true);
+		if (name == null)
+		{
+			return null;
+		}
+
+		Class<?> clazz = WicketObjects.resolveClass(name);
+		if (clazz == null)
+		{
+			throw new ClassNotFoundException(name);
+		}
+		return clazz;
+	}
+
+	/**
+	 * Writes an entity identifier, <code>Long</code> and <code>Integer</code> identifiers are written as
+	 * variable-length numbers
+	 *
+	 * @param out
+	 *            the {@link ObjectOutput}
+	 * @param id
+	 *            the identifier
+	 * @param compact
+	 *            use the compact format
+	 * @throws IOException
+	 */
+	public static void writeId(ObjectOutput out, Serializable id, boolean compact) throws IOException
+	{
+		if (!compact)
+		{
+			out.writeObject(id);
+		}
+		else if (id == null)
+		{
+			out.writeByte(ID_NULL);
+		}
+		else if (id instanceof Long)
+		{
+			out.writeByte(ID_LONG);
+			writeSignedVarLong(out, (Long) id);
+		}
+		else if (id instanceof Integer)
+		{
+			out.writeByte(ID_INTEGER);
+			writeSignedVarLong(out, (Integer) id);
+		}
+		else if (id instanceof String)
+		{
+			out.writeByte(ID_STRING);
+			out.writeUTF((String) id);
+		}
+		else
+		{
+			out.writeByte(ID_OBJECT);
+			out.writeObject(id);
+		}
+	}
+
+	/**
+	 * @param in
+	 *            the {@link ObjectInput}
+	 * @param compact
+	 *            use the compact format
+	 * @return an entity identifier
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Serializable readId(ObjectInput in, boolean compact) throws IOException, ClassNotFoundException
+	{
+		if (!compact)
+		{
+			return (Serializable) in.readObject();
+		}
+
+		int tag = in.readByte();
+		switch (tag)
+		{
+			case ID_NULL:
+				return null;
+			case ID_LONG:
+				return readSignedVarLong(in);
+			case ID_INTEGER:
+				return (int) readSignedVarLong(in);
+			case ID_STRING:
+				return in.readUTF();
+			case ID_OBJECT:
+				return (Serializable) in.readObject();
+			default:
+				throw new InvalidObjectException("Unknown identifier tag " + tag);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package nl.dries.wicket.hibernate.dozer.helper;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.dries.wicket.hibernate.dozer.DozerStatistics;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics.Counter;
+import nl.dries.wicket.hibernate.dozer.SessionFinder;
+import nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition;
+import nl.dries.wicket.hibernate.dozer.properties.SimplePropertyDefinition;
+import nl.dries.wicket.hibernate.dozer.proxy.Proxied;
+import nl.dries.wicket.hibernate.dozer.proxy.ProxyBuilder;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.type.Type;
+
+/**
+ * Table of the entities written during one (page) serialization, keyed by entity name and identifier. When another
+ * instance of an already written entity with the same state is found the written instance is returned instead, so the
+ * state is only written once and the identity is restored when reading. Instances with a different state (e.g. a
+ * modified copy) are kept apart.
+ *
+ * @author dries
+ */
+public class EntityTable
+{
+	/** Session finder */
+	private final SessionFinder sessionFinder;
+
+	/** Persisters per class, <code>null</code> for non-entities */
+	private final Map<Class<?>, EntityPersister> persisters = new HashMap<>();
+
+	/** Canonical instances */
+	private final Map<ModelKey, Object> entities = new HashMap<>();
+
+	/**
+	 * Construct
+	 *
+	 * @param sessionFinder
+	 *            the {@link SessionFinder}
+	 */
+	public EntityTable(SessionFinder sessionFinder)
+	{
+		this.sessionFinder = sessionFinder;
+	}
+
+	/**
+	 * Returns the canonical instance of an entity
+	 *
+	 * @param object
+	 *            the object to write
+	 * @return a previously registered instance of the same entity with the same state, the object itself otherwise
+	 */
+	public Object canonicalize(Object object)
+	{
+		if (object == null || object instanceof Proxied || object instanceof HibernateProxy)
+		{
+			return object;
+		}
+
+		EntityPersister persister = getPersister(object.getClass());
+		if (persister == null)
+		{
+			return object;
+		}
+
+		Serializable id = persister.getIdentifier(object, (SessionImplementor) null);
+		if (id == null)
+		{
+			return object;
+		}
+
+		ModelKey key = new ModelKey(persister.getRootEntityName(), id);
+		Object canonical = entities.get(key);
+		if (canonical == null)
+		{
+			entities.put(key, object);
+		}
+		else if (canonical != object && canonical.getClass() == object.getClass()
+			&& isSameState(persister, canonical, object))
+		{
+			DozerStatistics.increment(Counter.DEDUPLICATED_ENTITIES);
+			return canonical;
+		}
+		return object;
+	}
+
+	/**
+	 * @return number of registered entities
+	 */
+	public int size()
+	{
+		return entities.size();
+	}
+
+	/**
+	 * @param persister
+	 *            the {@link EntityPersister}
+	 * @param x
+	 *            the first instance
+	 * @param y
+	 *            the second instance
+	 * @return <code>true</code> if all properties have the same value, collections only when both are detached
+	 */
+	private boolean isSameState(EntityPersister persister, Object x, Object y)
+	{
+		Object[] xValues = persister.getPropertyValues(x);
+		Object[] yValues = persister.getPropertyValues(y);
+		Type[] types = persister.getPropertyTypes();
+
+		for (int i = 0; i < types.length; i++)
+		{
+			if (!isSameValue(types[i], xValues[i], yValues[i]))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param type
+	 *            the property {@link Type}
+	 * @param x
+	 *            the first value
+	 * @param y
+	 *            the second value
+	 * @return <code>true</code> if the same
+	 */
+	private boolean isSameValue(Type type, Object x, Object y)
+	{
+		if (x == y)
+		{
+			return true;
+		}
+		else if (x == null || y == null)
+		{
+			return false;
+		}
+		else if (type.isCollectionType())
+		{
+			return x instanceof Proxied && y instanceof Proxied;
+		}
+		else if (type.isEntityType())
+		{
+			ModelKey xKey = getKey(x);
+			return xKey != null && xKey.equals(getKey(y));
+		}
+		else if (type.isAssociationType())
+		{
+			return false;
+		}
+		return type.isEqual(x, y);
+	}
+
+	/**
+	 * @param entity
+	 *            an entity, Hibernate proxy or one of our proxies
+	 * @return its {@link ModelKey}, <code>null</code> if unknown
+	 */
+	private ModelKey getKey(Object entity)
+	{
+		Class<?> entityClass;
+		Serializable id;
+
+		if (entity instanceof Proxied)
+		{
+			AbstractPropertyDefinition def = ProxyBuilder.getPropertyDefinition(entity);
+			if (!(def instanceof SimplePropertyDefinition))
+			{
+				return null;
+			}
+			HibernateProperty property = ((SimplePropertyDefinition) def).getHibernateProperty();
+			entityClass = property.getEntityClass();
+			id = property.getId();
+		}
+		else if (entity instanceof HibernateProxy)
+		{
+			LazyInitializer initializer = ((HibernateProxy) entity).getHibernateLazyInitializer();
+			entityClass = initializer.getPersistentClass();
+			id = initializer.getIdentifier();
+		}
+		else
+		{
+			entityClass = entity.getClass();
+			EntityPersister persister = getPersister(entityClass);
+			id = persister == null ? null : persister.getIdentifier(entity, (SessionImplementor) null);
+		}
+
+		EntityPersister persister = getPersister(entityClass);
+		return persister == null || id == null ? null : new ModelKey(persister.getRootEntityName(), id);
+	}
+
+	/**
+	 * @param clazz
+	 *            the class
+	 * @return its {@link EntityPersister}, <code>null</code> when not an entity or no session is available
+	 */
+	private EntityPersister getPersister(Class<?> clazz)
+	{
+		if (persisters.containsKey(clazz))
+		{
+			return persisters.get(clazz);
+		}
+
+		EntityPersister persister = null;
+		Session session = sessionFinder.getHibernateSession(clazz);
+		if (session != null)
+		{
+			SessionFactoryImplementor factory = ((SessionImplementor) session).getFactory();
+			if (factory.getClassMetadata(clazz) != null)
+			{
+				persister = factory.getEntityPersister(clazz.getName());
+			}
+		}
+
+		persisters.put(clazz, persister);
+		return persister;
+	}
+}
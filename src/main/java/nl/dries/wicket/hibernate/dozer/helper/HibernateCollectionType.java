@@ -1,8 +1,7 @@
 package nl.dries.wicket.hibernate.dozer.helper;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -12,47 +11,61 @@ import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hibernate.collection.internal.PersistentBag;
+import org.hibernate.collection.internal.PersistentIdentifierBag;
 import org.hibernate.collection.internal.PersistentList;
 import org.hibernate.collection.internal.PersistentMap;
 import org.hibernate.collection.internal.PersistentSet;
 import org.hibernate.collection.internal.PersistentSortedMap;
 import org.hibernate.collection.internal.PersistentSortedSet;
 import org.hibernate.collection.spi.PersistentCollection;
-import org.hibernate.engine.spi.SessionImplementor;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
- * Hibernate collection types
+ * Hibernate collection types. Subclasses of the Hibernate collection classes are mapped onto the type of their
+ * superclass, any other {@link PersistentCollection} (e.g. created by a <code>UserCollectionType</code>) is
+ * {@link #CUSTOM} unless it is mapped onto one of the types with {@link #register(Class, HibernateCollectionType)}.
+ * New constants are only added at the end, the compact format writes the ordinal.
  * 
  * @author dries
  */
 public enum HibernateCollectionType
 {
 	/** */
-	BAG(PersistentBag.class, ArrayList.class, List.class),
+	BAG(PersistentBag.class, List.class),
 	/** */
-	LIST(PersistentList.class, ArrayList.class, List.class),
+	LIST(PersistentList.class, List.class),
 	/** */
-	SET(PersistentSet.class, HashSet.class, Set.class),
+	SET(PersistentSet.class, Set.class),
 	/** */
-	SORTED_SET(PersistentSortedSet.class, TreeSet.class, SortedSet.class),
+	SORTED_SET(PersistentSortedSet.class, SortedSet.class),
 	/** */
-	MAP(PersistentMap.class, HashMap.class, Map.class),
+	MAP(PersistentMap.class, Map.class),
 	/** */
-	SORTED_MAP(PersistentSortedMap.class, TreeMap.class, SortedMap.class);
+	SORTED_MAP(PersistentSortedMap.class, SortedMap.class),
+	/** */
+	ID_BAG(PersistentIdentifierBag.class, List.class),
+	/** Any other collection, the plain type follows the collection interface it implements */
+	CUSTOM(null, null);
+
+	/** Types by exact Hibernate collection class, other classes are added when first seen or registered */
+	private static final Map<Class<?>, HibernateCollectionType> TYPES = new ConcurrentHashMap<>();
 
-	/** Logger */
-	private static final Logger LOG = LoggerFactory.getLogger(HibernateCollectionType.class);
+	static
+	{
+		for (HibernateCollectionType type : values())
+		{
+			if (type.hibernateCollectionClass != null)
+			{
+				TYPES.put(type.hibernateCollectionClass, type);
+			}
+		}
+	}
 
 	/** Specific Hibernate collection class */
 	private Class<? extends PersistentCollection> hibernateCollectionClass;
 
-	/** Plain 'Java collections' type */
-	private Class<?> plainTypeClass;
-
 	/** Plain interface collection type */
 	private Class<?> plainInterface;
 
@@ -60,13 +73,12 @@ public enum HibernateCollectionType
 	 * Construct
 	 * 
 	 * @param hibernateCollectionClass
-	 * @param plainTypeClass
+	 * @param plainInterface
 	 */
 	private HibernateCollectionType(Class<? extends PersistentCollection> hibernateCollectionClass,
-		Class<?> plainTypeClass, Class<?> plainInterface)
+		Class<?> plainInterface)
 	{
 		this.hibernateCollectionClass = hibernateCollectionClass;
-		this.plainTypeClass = plainTypeClass;
 		this.plainInterface = plainInterface;
 	}
 
@@ -79,65 +91,116 @@ public enum HibernateCollectionType
 	}
 
 	/**
-	 * Creates a instance of the {@link PersistentCollection} defined by this type
+	 * Map a {@link PersistentCollection} class onto one of the types, to detach it as that type instead of
+	 * {@link #CUSTOM}; it is re-attached as an instance of its own class
 	 * 
-	 * @param sessionImpl
-	 *            {@link SessionImplementor}
-	 * @return {@link PersistentCollection} instance
+	 * @param collectionClass
+	 *            the (custom) {@link PersistentCollection} class
+	 * @param type
+	 *            its {@link HibernateCollectionType}
 	 */
-	public PersistentCollection createCollection(SessionImplementor sessionImpl)
+	public static void register(Class<? extends PersistentCollection> collectionClass, HibernateCollectionType type)
 	{
-		PersistentCollection collection = null;
-
-		try
-		{
-			Constructor<? extends PersistentCollection> constructor = hibernateCollectionClass
-				.getConstructor(SessionImplementor.class);
-			collection = constructor.newInstance(sessionImpl);
-		}
-		catch (NoSuchMethodException | SecurityException e)
-		{
-			LOG.error("Persistent collection type {} has no SessionImplementor constructor", hibernateCollectionClass);
-		}
-		catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e)
-		{
-			LOG.error("Cannot create collection instance of type " + hibernateCollectionClass, e);
-		}
-
-		return collection;
+		TYPES.put(collectionClass, type);
 	}
 
 	/**
-	 * Creates a plain Java collection instance based on a {@link PersistentCollection} one
+	 * Creates a plain Java collection instance based on a {@link PersistentCollection} one, sized for its elements
+	 * when it is initialized, sorted collections keep their comparator
 	 * 
 	 * @param persistentCollection
 	 *            the {@link PersistentCollection}
-	 * @return plain collection
+	 * @return plain collection, <code>null</code> for a {@link #CUSTOM} collection that is no {@link List},
+	 *         {@link Set} or {@link Map}
 	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public Object createPlainCollection(PersistentCollection persistentCollection)
 	{
-		Object collection = null;
-		try
+		int size = 0;
+		if (persistentCollection.wasInitialized())
 		{
-			if (Map.class.isAssignableFrom(plainTypeClass))
+			Object value = persistentCollection.getValue();
+			if (value instanceof Map<?, ?>)
 			{
-				collection = plainTypeClass.newInstance();
+				size = ((Map<?, ?>) value).size();
 			}
-			else
+			else if (value instanceof Collection<?>)
 			{
-				collection = plainTypeClass.newInstance();
+				size = ((Collection<?>) value).size();
 			}
 		}
-		catch (IllegalArgumentException e)
+
+		switch (this)
+		{
+			case BAG:
+			case LIST:
+			case ID_BAG:
+				return new ArrayList<>(size);
+			case SET:
+				return new HashSet<>(hashCapacity(size));
+			case SORTED_SET:
+				return new TreeSet(((SortedSet) persistentCollection.getValue()).comparator());
+			case MAP:
+				return new HashMap<>(hashCapacity(size));
+			case SORTED_MAP:
+				return new TreeMap(((SortedMap) persistentCollection.getValue()).comparator());
+			case CUSTOM:
+				return createCustomPlainCollection(persistentCollection, size);
+			default:
+				throw new IllegalStateException("Unknown collection type " + this);
+		}
+	}
+
+	/**
+	 * Creates the plain collection of a custom collection, following the collection interface it implements
+	 * 
+	 * @param persistentCollection
+	 *            the custom {@link PersistentCollection}
+	 * @param size
+	 *            its number of elements
+	 * @return plain collection, <code>null</code> when it is no {@link List}, {@link Set} or {@link Map}
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Object createCustomPlainCollection(PersistentCollection persistentCollection, int size)
+	{
+		Object plainCollection = null;
+
+		if (persistentCollection instanceof List<?>)
 		{
-			LOG.error("Colection type {} has no empty constructor", plainTypeClass);
+			plainCollection = new ArrayList<>(size);
 		}
-		catch (InstantiationException | IllegalAccessException | SecurityException e)
+		else if (persistentCollection instanceof SortedSet<?>)
 		{
-			LOG.error("Cannot create collection instance of type " + plainTypeClass, e);
+			plainCollection = new TreeSet(((SortedSet) persistentCollection).comparator());
+		}
+		else if (persistentCollection instanceof Set<?>)
+		{
+			plainCollection = new HashSet<>(hashCapacity(size));
+		}
+		else if (persistentCollection instanceof SortedMap<?, ?>)
+		{
+			plainCollection = new TreeMap(((SortedMap) persistentCollection).comparator());
+		}
+		else if (persistentCollection instanceof Map<?, ?>)
+		{
+			plainCollection = new HashMap<>(hashCapacity(size));
+		}
+		else if (persistentCollection instanceof Collection<?>)
+		{
+			plainCollection = new ArrayList<>(size);
 		}
 
-		return collection;
+		return plainCollection;
+	}
+
+	/**
+	 * @param size
+	 *            expected number of elements
+	 * @return initial capacity of a hash based collection holding them without rehashing
+	 */
+	private static int hashCapacity(int size)
+	{
+		return Math.max(16, (int) (size / 0.75f) + 1);
 	}
 
 	/**
@@ -145,36 +208,64 @@ public enum HibernateCollectionType
 	 * 
 	 * @param sourceFieldValue
 	 *            the input {@link PersistentCollection}
-	 * @return {@link HibernateCollectionType}
+	 * @return {@link HibernateCollectionType}, {@link #CUSTOM} for an unknown collection class
 	 */
 	public static HibernateCollectionType determineType(PersistentCollection sourceFieldValue)
+	{
+		Class<?> valueClass = sourceFieldValue.getClass();
+		HibernateCollectionType type = TYPES.get(valueClass);
+		if (type == null)
+		{
+			type = determineSubtype(sourceFieldValue);
+			TYPES.put(valueClass, type);
+		}
+
+		return type;
+	}
+
+	/**
+	 * Determine the type of a subclass of one of the Hibernate collection classes
+	 * 
+	 * @param value
+	 *            the collection value
+	 * @return {@link HibernateCollectionType}, {@link #CUSTOM} when unknown
+	 */
+	private static HibernateCollectionType determineSubtype(Object value)
 	{
 		HibernateCollectionType type = null;
 
-		if (sourceFieldValue.getValue() instanceof PersistentSortedSet)
+		if (value instanceof PersistentSortedSet)
 		{
 			type = HibernateCollectionType.SORTED_SET;
 		}
-		else if (sourceFieldValue.getValue() instanceof PersistentSet)
+		else if (value instanceof PersistentSet)
 		{
 			type = HibernateCollectionType.SET;
 		}
-		else if (sourceFieldValue.getValue() instanceof PersistentBag)
+		else if (value instanceof PersistentBag)
 		{
 			type = HibernateCollectionType.BAG;
 		}
-		else if (sourceFieldValue.getValue() instanceof PersistentList)
+		else if (value instanceof PersistentList)
 		{
 			type = HibernateCollectionType.LIST;
 		}
-		else if (sourceFieldValue.getValue() instanceof PersistentSortedMap)
+		else if (value instanceof PersistentSortedMap)
 		{
 			type = HibernateCollectionType.SORTED_MAP;
 		}
-		else if (sourceFieldValue.getValue() instanceof PersistentMap)
+		else if (value instanceof PersistentMap)
 		{
 			type = HibernateCollectionType.MAP;
 		}
+		else if (value instanceof PersistentIdentifierBag)
+		{
+			type = HibernateCollectionType.ID_BAG;
+		}
+		else
+		{
+			type = HibernateCollectionType.CUSTOM;
+		}
 
 		return type;
 	}
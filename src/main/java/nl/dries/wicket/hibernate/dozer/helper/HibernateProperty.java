@@ -18,6 +18,9 @@ public class HibernateProperty implements Serializable
 	/** The identifier of the entity */
 	private final Serializable id;
 
+	/** The version of the entity, <code>null</code> if unknown */
+	private final Serializable version;
+
 	/**
 	 * Construct
 	 * 
@@ -27,9 +30,25 @@ public class HibernateProperty implements Serializable
 	 *            it's identifier
 	 */
 	public HibernateProperty(Class<? extends Serializable> entityClass, Serializable id)
+	{
+		this(entityClass, id, null);
+	}
+
+	/**
+	 * Construct
+	 * 
+	 * @param entityClass
+	 *            the class of the entity
+	 * @param id
+	 *            it's identifier
+	 * @param version
+	 *            it's version, <code>null</code> if unknown or not versioned
+	 */
+	public HibernateProperty(Class<? extends Serializable> entityClass, Serializable id, Serializable version)
 	{
 		this.entityClass = entityClass;
 		this.id = id;
+		this.version = version;
 	}
 
 	/**
@@ -47,4 +66,12 @@ public class HibernateProperty implements Serializable
 	{
 		return id;
 	}
+
+	/**
+	 * @return the version, <code>null</code> if unknown
+	 */
+	public Serializable getVersion()
+	{
+		return version;
+	}
 }
@@ -22,4 +22,20 @@ public interface ModelCallback
 	 *            the {@link AbstractPropertyDefinition}
 	 */
 	void addProxiedProperty(AbstractPropertyDefinition property);
+
+	/**
+	 * Called when a detached property is touched (and thus attached) through its lightweight proxy
+	 * 
+	 * @param property
+	 *            the {@link AbstractPropertyDefinition}
+	 */
+	void propertyTouched(AbstractPropertyDefinition property);
+
+	/**
+	 * Register a versioned entity in the detached graph, its version is checked on attach
+	 * 
+	 * @param entity
+	 *            the (deproxied) entity
+	 */
+	void addVersionedEntity(Object entity);
 }
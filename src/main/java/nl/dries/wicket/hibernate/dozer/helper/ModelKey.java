@@ -0,0 +1,166 @@
+package nl.dries.wicket.hibernate.dozer.helper;
+
+import java.io.Serializable;
+
+import nl.dries.wicket.hibernate.dozer.SessionFinder;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+
+/**
+ * Identifies an entity by its root entity name and identifier, without initializing or loading it
+ *
+ * @author dries
+ */
+public final class ModelKey implements Serializable
+{
+	/** Default */
+	private static final long serialVersionUID = 1L;
+
+	/** Root entity name */
+	private final String entityName;
+
+	/** Identifier */
+	private final Serializable id;
+
+	/**
+	 * Construct
+	 *
+	 * @param entityName
+	 *            the root entity name
+	 * @param id
+	 *            the identifier
+	 */
+	public ModelKey(String entityName, Serializable id)
+	{
+		this.entityName = entityName;
+		this.id = id;
+	}
+
+	/**
+	 * Create the key of an object, only the mapping metadata of the session factory is used: proxies are not
+	 * initialized and nothing is loaded
+	 *
+	 * @param object
+	 *            an entity or Hibernate proxy
+	 * @param sessionFinder
+	 *            the {@link SessionFinder}
+	 * @return its key, <code>null</code> when not a mapped entity or when it has no identifier (yet)
+	 */
+	public static ModelKey of(Object object, SessionFinder sessionFinder)
+	{
+		if (object == null)
+		{
+			return null;
+		}
+
+		Serializable id = null;
+		if (object instanceof HibernateProxy)
+		{
+			id = ((HibernateProxy) object).getHibernateLazyInitializer().getIdentifier();
+		}
+
+		EntityPersister persister = getPersister(ObjectHelper.getEntityClass(object), sessionFinder);
+		if (persister == null)
+		{
+			return null;
+		}
+
+		if (id == null)
+		{
+			id = persister.getIdentifier(object, (SessionImplementor) null);
+		}
+		return id == null ? null : new ModelKey(persister.getRootEntityName(), id);
+	}
+
+	/**
+	 * Create the key of a reference
+	 *
+	 * @param property
+	 *            the {@link HibernateProperty}
+	 * @param sessionFinder
+	 *            the {@link SessionFinder}
+	 * @return its key, <code>null</code> when not a mapped entity
+	 */
+	public static ModelKey of(HibernateProperty property, SessionFinder sessionFinder)
+	{
+		EntityPersister persister = getPersister(property.getEntityClass(), sessionFinder);
+		return persister == null ? null : new ModelKey(persister.getRootEntityName(), property.getId());
+	}
+
+	/**
+	 * @param clazz
+	 *            the class
+	 * @param sessionFinder
+	 *            the {@link SessionFinder}
+	 * @return its {@link EntityPersister}, <code>null</code> when not an entity or no session is available
+	 */
+	private static EntityPersister getPersister(Class<?> clazz, SessionFinder sessionFinder)
+	{
+		Session session = sessionFinder.getHibernateSession(clazz);
+		if (session == null)
+		{
+			return null;
+		}
+
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) session.getSessionFactory();
+		ClassMetadata metadata = factory.getClassMetadata(clazz);
+		return metadata == null ? null : factory.getEntityPersister(metadata.getEntityName());
+	}
+
+	/**
+	 * @return the root entity name
+	 */
+	public String getEntityName()
+	{
+		return entityName;
+	}
+
+	/**
+	 * @return the identifier
+	 */
+	public Serializable getId()
+	{
+		return id;
+	}
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode()
+	{
+		return 31 * entityName.hashCode() + id.hashCode();
+	}
+
+	/**
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+		if (!(obj instanceof ModelKey))
+		{
+			return false;
+		}
+		ModelKey other = (ModelKey) obj;
+		return entityName.equals(other.entityName) && id.equals(other.id);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return entityName + "#" + id;
+	}
+}
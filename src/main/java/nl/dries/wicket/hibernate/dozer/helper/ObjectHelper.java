@@ -107,6 +107,37 @@ public final class ObjectHelper
 		return object;
 	}
 
+	/**
+	 * Returns the (persistent) class of an object without initializing it
+	 * 
+	 * @param object
+	 *            the object, may be a Hibernate proxy
+	 * @return the persistent class of a proxy, the class of the object otherwise
+	 */
+	public static Class<?> getEntityClass(Object object)
+	{
+		if (object instanceof HibernateProxy)
+		{
+			return ((HibernateProxy) object).getHibernateLazyInitializer().getPersistentClass();
+		}
+		return object.getClass();
+	}
+
+	/**
+	 * Returns the declared type of a property
+	 * 
+	 * @param objectClass
+	 *            the class of the object owning the property
+	 * @param property
+	 *            the property
+	 * @return its declared type, <code>null</code> when the field is not found
+	 */
+	public static Class<?> getFieldType(Class<?> objectClass, String property)
+	{
+		Field field = findField(objectClass, property);
+		return field == null ? null : field.getType();
+	}
+
 	/**
 	 * Find a {@link Field} with a given name in a object hierarchy
 	 * 
@@ -36,4 +36,20 @@ public class Seen
 	{
 		return seen.containsKey(obj);
 	}
+
+	/**
+	 * Forget all seen objects, keeping the allocated table for the next walk
+	 */
+	public void clear()
+	{
+		seen.clear();
+	}
+
+	/**
+	 * @return number of seen objects
+	 */
+	public int size()
+	{
+		return seen.size();
+	}
 }
@@ -0,0 +1,203 @@
+package nl.dries.wicket.hibernate.dozer.helper;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.dries.wicket.hibernate.dozer.SessionFinder;
+import nl.dries.wicket.hibernate.dozer.proxy.Proxied;
+
+import org.hibernate.Hibernate;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.CompositeType;
+import org.hibernate.type.Type;
+
+/**
+ * Compares an entity graph with the loaded state snapshots in the Hibernate persistence context, an unmodified graph
+ * can be detached as a reference (class and identifier) and reloaded on attach
+ *
+ * @author dries
+ */
+public final class SnapshotChecker
+{
+	/** Util -> private */
+	private SnapshotChecker()
+	{
+	}
+
+	/**
+	 * Creates a reference to the given root entity when it, and all initialized entities and collections reachable
+	 * from it, are managed by the current session and unmodified
+	 *
+	 * @param root
+	 *            the (deproxied) root object
+	 * @param sessionFinder
+	 *            the {@link SessionFinder}
+	 * @return the reference, <code>null</code> when the graph could be modified or the root is not an entity
+	 */
+	@SuppressWarnings("unchecked")
+	public static HibernateProperty createReference(Object root, SessionFinder sessionFinder)
+	{
+		if (!isClean(root, sessionFinder))
+		{
+			return null;
+		}
+
+		// No version, the reference is reloaded in its current state
+		SessionImplementor sessionImpl = (SessionImplementor) sessionFinder.getHibernateSession(root.getClass());
+		EntityEntry entry = sessionImpl.getPersistenceContext().getEntry(root);
+
+		return new HibernateProperty((Class<? extends Serializable>) root.getClass(), entry.getId());
+	}
+
+	/**
+	 * @param root
+	 *            the (deproxied) root object
+	 * @param sessionFinder
+	 *            the {@link SessionFinder}
+	 * @return <code>true</code> when the root entity, and all initialized entities and collections reachable from it,
+	 *         are managed by the current session and unmodified
+	 */
+	public static boolean isClean(Object root, SessionFinder sessionFinder)
+	{
+		SessionImplementor sessionImpl = (SessionImplementor) sessionFinder.getHibernateSession(root.getClass());
+		if (sessionImpl == null || sessionImpl.getFactory().getClassMetadata(root.getClass()) == null)
+		{
+			return false;
+		}
+
+		Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		return isCleanEntity(root, sessionImpl, seen);
+	}
+
+	/**
+	 * @param entity
+	 *            the (deproxied) entity
+	 * @param sessionImpl
+	 *            the {@link SessionImplementor}
+	 * @param seen
+	 *            entities already checked
+	 * @return <code>true</code> when the entity and its graph are managed and unmodified
+	 */
+	private static boolean isCleanEntity(Object entity, SessionImplementor sessionImpl, Set<Object> seen)
+	{
+		if (!seen.add(entity))
+		{
+			return true;
+		}
+
+		EntityEntry entry = sessionImpl.getPersistenceContext().getEntry(entity);
+		if (entry == null || entry.getStatus() != Status.MANAGED || entry.getLoadedState() == null)
+		{
+			return false;
+		}
+
+		EntityPersister persister = entry.getPersister();
+		Object[] values = persister.getPropertyValues(entity);
+		if (persister.findDirty(values, entry.getLoadedState(), entity, sessionImpl) != null)
+		{
+			return false;
+		}
+
+		return areCleanValues(persister.getPropertyTypes(), values, sessionImpl, seen);
+	}
+
+	/**
+	 * @param types
+	 *            the property {@link Type}s
+	 * @param values
+	 *            the property values
+	 * @param sessionImpl
+	 *            the {@link SessionImplementor}
+	 * @param seen
+	 *            entities already checked
+	 * @return <code>true</code> when all initialized associations are unmodified
+	 */
+	private static boolean areCleanValues(Type[] types, Object[] values, SessionImplementor sessionImpl,
+		Set<Object> seen)
+	{
+		for (int i = 0; i < types.length; i++)
+		{
+			Object value = values[i];
+			if (value == null || value instanceof Proxied || !Hibernate.isInitialized(value))
+			{
+				continue;
+			}
+
+			boolean clean = true;
+			if (types[i].isCollectionType())
+			{
+				clean = isCleanCollection(value, sessionImpl, seen);
+			}
+			else if (types[i].isEntityType())
+			{
+				clean = isCleanEntity(ObjectHelper.deproxy(value), sessionImpl, seen);
+			}
+			else if (types[i].isComponentType())
+			{
+				CompositeType componentType = (CompositeType) types[i];
+				clean = areCleanValues(componentType.getSubtypes(),
+					componentType.getPropertyValues(value, sessionImpl), sessionImpl, seen);
+			}
+
+			if (!clean)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param value
+	 *            an initialized collection
+	 * @param sessionImpl
+	 *            the {@link SessionImplementor}
+	 * @param seen
+	 *            entities already checked
+	 * @return <code>true</code> when the collection and its entity elements are unmodified
+	 */
+	private static boolean isCleanCollection(Object value, SessionImplementor sessionImpl, Set<Object> seen)
+	{
+		if (!(value instanceof PersistentCollection) || ((PersistentCollection) value).isDirty())
+		{
+			return false;
+		}
+
+		List<Object> elements = new ArrayList<>();
+		if (value instanceof Map<?, ?>)
+		{
+			elements.addAll(((Map<?, ?>) value).keySet());
+			elements.addAll(((Map<?, ?>) value).values());
+		}
+		else if (value instanceof Collection<?>)
+		{
+			elements.addAll((Collection<?>) value);
+		}
+
+		for (Object element : elements)
+		{
+			if (element == null || element instanceof Proxied || !Hibernate.isInitialized(element))
+			{
+				continue;
+			}
+
+			Object entity = ObjectHelper.deproxy(element);
+			if (sessionImpl.getFactory().getClassMetadata(entity.getClass()) != null
+				&& !isCleanEntity(entity, sessionImpl, seen))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
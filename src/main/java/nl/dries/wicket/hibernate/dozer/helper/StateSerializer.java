@@ -0,0 +1,298 @@
+package nl.dries.wicket.hibernate.dozer.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import nl.dries.wicket.hibernate.dozer.DozerStatistics;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics.Counter;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.core.util.lang.WicketObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes detached state to an (optionally compressed) byte array and back. References to the owning model (e.g. from
+ * the property definitions) are written as a token and resolved to the model again when reading. Every model is written
+ * to its own byte array, objects shared with the graph of another model are read back as a separate copy.
+ * 
+ * @author dries
+ */
+public final class StateSerializer
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(StateSerializer.class);
+
+	/** Util -> private */
+	private StateSerializer()
+	{
+	}
+
+	/**
+	 * Write detached state
+	 * 
+	 * @param state
+	 *            the state to write
+	 * @param model
+	 *            the owning model
+	 * @param deflate
+	 *            compress the written state
+	 * @return the written state, <code>null</code> if it could not be written
+	 */
+	public static byte[] write(Object state, Object model, boolean deflate)
+	{
+		long start = System.nanoTime();
+
+		Deflater deflater = deflate ? new Deflater() : null;
+		CountingOutputStream raw = null;
+		byte[] written = null;
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			raw = new CountingOutputStream(deflate ? new DeflaterOutputStream(bytes, deflater) : bytes);
+			try (ObjectOutputStream out = new ModelOutputStream(raw, model))
+			{
+				out.writeObject(state);
+			}
+			written = bytes.toByteArray();
+		}
+		catch (IOException e)
+		{
+			LOG.error("Cannot write detached state, keeping it as is", e);
+			return null;
+		}
+		finally
+		{
+			if (deflater != null)
+			{
+				deflater.end();
+			}
+		}
+
+		if (deflate)
+		{
+			DozerStatistics.increment(Counter.COMPRESSED_DETACHES);
+			DozerStatistics.add(Counter.COMPRESSION_RAW_BYTES, raw.count);
+			DozerStatistics.add(Counter.COMPRESSION_COMPRESSED_BYTES, written.length);
+			DozerStatistics.add(Counter.COMPRESSION_NANOS, System.nanoTime() - start);
+
+			LOG.debug("Compressed detached state from {} to {} bytes", raw.count, written.length);
+		}
+
+		return written;
+	}
+
+	/**
+	 * Read written detached state
+	 * 
+	 * @param written
+	 *            the written state
+	 * @param model
+	 *            the owning model
+	 * @param deflated
+	 *            whether the state was compressed
+	 * @return the state
+	 */
+	public static Object read(byte[] written, Object model, boolean deflated)
+	{
+		long start = System.nanoTime();
+
+		Inflater inflater = deflated ? new Inflater() : null;
+		InputStream bytes = new ByteArrayInputStream(written);
+		try (ObjectInputStream in = new ModelInputStream(deflated ? new InflaterInputStream(bytes, inflater) : bytes,
+			model))
+		{
+			Object state = in.readObject();
+
+			if (deflated)
+			{
+				DozerStatistics.add(Counter.DECOMPRESSION_NANOS, System.nanoTime() - start);
+			}
+
+			return state;
+		}
+		catch (IOException | ClassNotFoundException e)
+		{
+			throw new WicketRuntimeException("Cannot read detached state", e);
+		}
+		finally
+		{
+			if (inflater != null)
+			{
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Token written instead of the model
+	 * 
+	 * @author dries
+	 */
+	private enum ModelToken
+	{
+		/** */
+		INSTANCE;
+	}
+
+	/**
+	 * Output stream replacing the model with a token
+	 * 
+	 * @author dries
+	 */
+	private static class ModelOutputStream extends ObjectOutputStream
+	{
+		/** The model */
+		private final Object model;
+
+		/**
+		 * Construct
+		 * 
+		 * @param out
+		 * @param model
+		 * @throws IOException
+		 */
+		public ModelOutputStream(OutputStream out, Object model) throws IOException
+		{
+			super(out);
+			this.model = model;
+			enableReplaceObject(true);
+		}
+
+		/**
+		 * @see java.io.ObjectOutputStream#replaceObject(java.lang.Object)
+		 */
+		@Override
+		protected Object replaceObject(Object obj) throws IOException
+		{
+			return obj == model ? ModelToken.INSTANCE : CanonicalCache.replace(obj);
+		}
+	}
+
+	/**
+	 * Input stream resolving the token to the model
+	 * 
+	 * @author dries
+	 */
+	private static class ModelInputStream extends ObjectInputStream
+	{
+		/** The model */
+		private final Object model;
+
+		/**
+		 * Construct
+		 * 
+		 * @param in
+		 * @param model
+		 * @throws IOException
+		 */
+		public ModelInputStream(InputStream in, Object model) throws IOException
+		{
+			super(in);
+			this.model = model;
+			enableResolveObject(true);
+		}
+
+		/**
+		 * @see java.io.ObjectInputStream#resolveObject(java.lang.Object)
+		 */
+		@Override
+		protected Object resolveObject(Object obj) throws IOException
+		{
+			return obj == ModelToken.INSTANCE ? model : obj;
+		}
+
+		/**
+		 * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
+		 */
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+		{
+			try
+			{
+				return super.resolveClass(desc);
+			}
+			catch (ClassNotFoundException e)
+			{
+				Class<?> clazz = WicketObjects.resolveClass(desc.getName());
+				if (clazz == null)
+				{
+					throw e;
+				}
+				return clazz;
+			}
+		}
+	}
+
+	/**
+	 * Counts the (uncompressed) bytes written
+	 * 
+	 * @author dries
+	 */
+	private static class CountingOutputStream extends OutputStream
+	{
+		/** Wrapped stream */
+		private final OutputStream out;
+
+		/** Number of bytes written */
+		private long count;
+
+		/**
+		 * Construct
+		 * 
+		 * @param out
+		 */
+		public CountingOutputStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		/**
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		/**
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+
+		/**
+		 * @see java.io.OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		/**
+		 * @see java.io.OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package nl.dries.wicket.hibernate.dozer.helper;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import nl.dries.wicket.hibernate.dozer.DozerSettings;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics.Counter;
+import nl.dries.wicket.hibernate.dozer.SessionFinder;
+import nl.dries.wicket.hibernate.dozer.StalePolicy;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the versions of detached entities against the database, with one query per entity type (for each chunk of
+ * {@link DozerSettings#getBatchSize()} identifiers)
+ * 
+ * @author dries
+ */
+public final class VersionChecker
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(VersionChecker.class);
+
+	/** Util -> private */
+	private VersionChecker()
+	{
+	}
+
+	/**
+	 * Checks the given detached entities
+	 * 
+	 * @param entities
+	 *            the detached versioned entities
+	 * @param sessionFinder
+	 *            the {@link SessionFinder}
+	 * @param policy
+	 *            the {@link StalePolicy}
+	 * @return references to the stale (or deleted) entities
+	 */
+	public static List<HibernateProperty> check(Collection<?> entities, SessionFinder sessionFinder,
+		StalePolicy policy)
+	{
+		Map<EntityPersister, SessionImplementor> sessions = new LinkedHashMap<>();
+		Map<EntityPersister, Map<Serializable, List<Object>>> pending = new LinkedHashMap<>();
+
+		for (Object entity : entities)
+		{
+			SessionImplementor sessionImpl = (SessionImplementor) sessionFinder.getHibernateSession(entity.getClass());
+			EntityPersister persister = sessionImpl.getFactory().getEntityPersister(entity.getClass().getName());
+
+			Map<Serializable, List<Object>> byId = pending.get(persister);
+			if (byId == null)
+			{
+				byId = new LinkedHashMap<>();
+				pending.put(persister, byId);
+				sessions.put(persister, sessionImpl);
+			}
+
+			// Graphs of different rows can hold their own instance of the same entity
+			Serializable id = persister.getIdentifier(entity, sessionImpl);
+			List<Object> instances = byId.get(id);
+			if (instances == null)
+			{
+				instances = new ArrayList<>(1);
+				byId.put(id, instances);
+			}
+			instances.add(entity);
+		}
+
+		List<HibernateProperty> stale = new ArrayList<>();
+		for (Entry<EntityPersister, Map<Serializable, List<Object>>> entry : pending.entrySet())
+		{
+			check(sessions.get(entry.getKey()), entry.getKey(), entry.getValue(), policy, stale);
+		}
+		return stale;
+	}
+
+	/**
+	 * Checks the detached entities of one type
+	 * 
+	 * @param sessionImpl
+	 *            the {@link SessionImplementor}
+	 * @param persister
+	 *            the {@link EntityPersister}
+	 * @param entities
+	 *            the detached instances by identifier
+	 * @param policy
+	 *            the {@link StalePolicy}
+	 * @param stale
+	 *            list to add the stale entities to
+	 */
+	@SuppressWarnings("unchecked")
+	private static void check(SessionImplementor sessionImpl, EntityPersister persister,
+		Map<Serializable, List<Object>> entities, StalePolicy policy, List<HibernateProperty> stale)
+	{
+		String idProperty = persister.getIdentifierPropertyName();
+		if (idProperty == null)
+		{
+			LOG.debug("Entity {} has no identifier property, cannot check versions", persister.getEntityName());
+			return;
+		}
+
+		String versionProperty = persister.getPropertyNames()[persister.getVersionProperty()];
+		Type versionType = persister.getVersionType();
+
+		Map<Serializable, Object> current = new HashMap<>();
+		List<Serializable> ids = new ArrayList<>(entities.keySet());
+		int batchSize = Math.max(1, DozerSettings.getBatchSize());
+		for (int i = 0; i < ids.size(); i += batchSize)
+		{
+			List<Serializable> chunk = ids.subList(i, Math.min(ids.size(), i + batchSize));
+
+			List<?> rows = ((Session) sessionImpl).createCriteria(persister.getEntityName())
+				.add(Restrictions.in(idProperty, chunk))
+				.setProjection(Projections.projectionList().add(Projections.id())
+					.add(Projections.property(versionProperty))).setFlushMode(FlushMode.MANUAL).list();
+			for (Object row : rows)
+			{
+				Object[] values = (Object[]) row;
+				current.put((Serializable) values[0], values[1]);
+			}
+
+			DozerStatistics.increment(Counter.VERSION_CHECK_QUERIES);
+		}
+
+		List<Serializable> refresh = new ArrayList<>();
+		for (Entry<Serializable, List<Object>> entry : entities.entrySet())
+		{
+			boolean deleted = !current.containsKey(entry.getKey());
+			for (Object instance : entry.getValue())
+			{
+				Object detachedVersion = persister.getVersion(instance);
+				if (deleted || !versionType.isEqual(detachedVersion, current.get(entry.getKey())))
+				{
+					LOG.warn("Stale detached entity {}#{}, version {} (current {})", new Object[] {
+						persister.getEntityName(), entry.getKey(), detachedVersion,
+						deleted ? "deleted" : current.get(entry.getKey()) });
+
+					if (policy == StalePolicy.FAIL)
+					{
+						throw new StaleObjectStateException(persister.getEntityName(), entry.getKey());
+					}
+
+					// Reported once, all instances are refreshed
+					DozerStatistics.increment(Counter.STALE_ENTITIES);
+					stale.add(new HibernateProperty((Class<? extends Serializable>) instance.getClass(), entry
+						.getKey(), (Serializable) detachedVersion));
+
+					if (!deleted)
+					{
+						refresh.add(entry.getKey());
+					}
+					break;
+				}
+			}
+		}
+
+		if (policy == StalePolicy.REFRESH && !refresh.isEmpty())
+		{
+			refresh(sessionImpl, persister, entities, refresh);
+		}
+	}
+
+	/**
+	 * Copies the current state (except associations) of stale entities into their detached instances
+	 * 
+	 * @param sessionImpl
+	 *            the {@link SessionImplementor}
+	 * @param persister
+	 *            the {@link EntityPersister}
+	 * @param entities
+	 *            the detached instances by identifier
+	 * @param ids
+	 *            the identifiers of the stale entities
+	 */
+	private static void refresh(SessionImplementor sessionImpl, EntityPersister persister,
+		Map<Serializable, List<Object>> entities, List<Serializable> ids)
+	{
+		Type[] types = persister.getPropertyTypes();
+		for (Object fresh : Attacher.load(sessionImpl, persister, ids))
+		{
+			List<Object> instances = entities.get(persister.getIdentifier(fresh, sessionImpl));
+			if (instances == null)
+			{
+				continue;
+			}
+
+			Object[] freshValues = persister.getPropertyValues(fresh);
+			for (Object detached : instances)
+			{
+				Object[] values = persister.getPropertyValues(detached);
+				for (int i = 0; i < types.length; i++)
+				{
+					if (!types[i].isAssociationType())
+					{
+						values[i] = types[i].deepCopy(freshValues[i], sessionImpl.getFactory());
+					}
+				}
+				persister.setPropertyValues(detached, values);
+			}
+		}
+	}
+}
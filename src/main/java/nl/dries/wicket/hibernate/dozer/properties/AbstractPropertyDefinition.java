@@ -1,27 +1,38 @@
 package nl.dries.wicket.hibernate.dozer.properties;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
+import nl.dries.wicket.hibernate.dozer.helper.CompactFormat;
 import nl.dries.wicket.hibernate.dozer.helper.ModelCallback;
 
 /**
- * The definition of a detached Hibernate property
+ * The definition of a detached Hibernate property, written in the compact format of {@link CompactFormat}
  * 
  * @author dries
  */
-public abstract class AbstractPropertyDefinition implements Serializable
+public abstract class AbstractPropertyDefinition implements Externalizable
 {
 	/** Default */
 	private static final long serialVersionUID = 1L;
 
 	/** Owning entity */
-	private final Object owner;
+	private Object owner;
 
 	/** Property name in its containing instance */
-	private final String property;
+	private String property;
 
 	/** Model reference */
-	private final ModelCallback modelCallback;
+	private ModelCallback modelCallback;
+
+	/**
+	 * Construct, for deserialization only
+	 */
+	protected AbstractPropertyDefinition()
+	{
+	}
 
 	/**
 	 * Contsruct
@@ -68,4 +79,54 @@ public abstract class AbstractPropertyDefinition implements Serializable
 	 * @return the property type
 	 */
 	public abstract Class<?> getPropertyType();
+
+	/**
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException
+	{
+		boolean compact = CompactFormat.writeFormat(out);
+		out.writeObject(owner);
+		out.writeObject(modelCallback);
+		CompactFormat.writeName(out, property, compact);
+		writeDetails(out, compact);
+	}
+
+	/**
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+	{
+		boolean compact = CompactFormat.readFormat(in);
+		owner = in.readObject();
+		modelCallback = (ModelCallback) in.readObject();
+		property = CompactFormat.readName(in, compact);
+		readDetails(in, compact);
+	}
+
+	/**
+	 * Write the state of the subclass
+	 * 
+	 * @param out
+	 *            the {@link ObjectOutput}
+	 * @param compact
+	 *            use the compact format
+	 * @throws IOException
+	 */
+	protected abstract void writeDetails(ObjectOutput out, boolean compact) throws IOException;
+
+	/**
+	 * Read the state of the subclass
+	 * 
+	 * @param in
+	 *            the {@link ObjectInput}
+	 * @param compact
+	 *            use the compact format
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	protected abstract void readDetails(ObjectInput in, boolean compact) throws IOException,
+		ClassNotFoundException;
 }
@@ -1,9 +1,18 @@
 package nl.dries.wicket.hibernate.dozer.properties;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
 import java.lang.reflect.Field;
 
+import nl.dries.wicket.hibernate.dozer.helper.CompactFormat;
 import nl.dries.wicket.hibernate.dozer.helper.HibernateCollectionType;
 import nl.dries.wicket.hibernate.dozer.helper.ModelCallback;
+import nl.dries.wicket.hibernate.dozer.helper.ObjectHelper;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
 
 /**
  * Collecition property definition
@@ -16,7 +25,23 @@ public class CollectionPropertyDefinition extends AbstractPropertyDefinition
 	private static final long serialVersionUID = 1L;
 
 	/** Collection type */
-	private final HibernateCollectionType type;
+	private HibernateCollectionType type;
+
+	/** Collection role */
+	private String role;
+
+	/** Identifier of the owner (collection key) */
+	private Serializable ownerId;
+
+	/** Cached persister, re-resolved after deserialization */
+	private transient CollectionPersister persister;
+
+	/**
+	 * Construct, for deserialization only
+	 */
+	public CollectionPropertyDefinition()
+	{
+	}
 
 	/**
 	 * Construct
@@ -32,9 +57,33 @@ public class CollectionPropertyDefinition extends AbstractPropertyDefinition
 	 */
 	public CollectionPropertyDefinition(Object owner, String property, ModelCallback modelCallback,
 		HibernateCollectionType type)
+	{
+		this(owner, property, modelCallback, type, null, null);
+	}
+
+	/**
+	 * Construct
+	 * 
+	 * @param owner
+	 *            the property owner
+	 * @param property
+	 *            the name of the field
+	 * @param modelCallback
+	 *            the {@link ModelCallback}
+	 * @param type
+	 *            {@link HibernateCollectionType}
+	 * @param role
+	 *            the collection role, determined from the owner class when <code>null</code>
+	 * @param ownerId
+	 *            the identifier of the owner, determined on attach when <code>null</code>
+	 */
+	public CollectionPropertyDefinition(Object owner, String property, ModelCallback modelCallback,
+		HibernateCollectionType type, String role, Serializable ownerId)
 	{
 		super(owner, property, modelCallback);
 		this.type = type;
+		this.role = role;
+		this.ownerId = ownerId;
 	}
 
 	/**
@@ -50,7 +99,33 @@ public class CollectionPropertyDefinition extends AbstractPropertyDefinition
 	 */
 	public String getRole()
 	{
-		return getPropertyOwnerClass(getOwner().getClass()) + "." + getProperty();
+		if (role == null)
+		{
+			role = getPropertyOwnerClass(getOwner().getClass()) + "." + getProperty();
+		}
+		return role;
+	}
+
+	/**
+	 * @return the identifier of the owner, <code>null</code> if unknown
+	 */
+	public Serializable getOwnerId()
+	{
+		return ownerId;
+	}
+
+	/**
+	 * @param factory
+	 *            the {@link SessionFactoryImplementor}
+	 * @return the {@link CollectionPersister} of this collection
+	 */
+	public CollectionPersister getPersister(SessionFactoryImplementor factory)
+	{
+		if (persister == null || persister.getFactory() != factory)
+		{
+			persister = factory.getCollectionPersister(getRole());
+		}
+		return persister;
 	}
 
 	/**
@@ -79,6 +154,50 @@ public class CollectionPropertyDefinition extends AbstractPropertyDefinition
 	@Override
 	public Class<?> getPropertyType()
 	{
-		return getCollectionType().getPlainInterface();
+		Class<?> plainInterface = getCollectionType().getPlainInterface();
+		if (plainInterface == null)
+		{
+			// Custom collection, proxied as the declared type
+			plainInterface = ObjectHelper.getFieldType(getOwner().getClass(), getProperty());
+		}
+		return plainInterface;
+	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition#writeDetails(java.io.ObjectOutput,
+	 *      boolean)
+	 */
+	@Override
+	protected void writeDetails(ObjectOutput out, boolean compact) throws IOException
+	{
+		if (compact)
+		{
+			out.writeByte(type.ordinal());
+		}
+		else
+		{
+			out.writeObject(type);
+		}
+		CompactFormat.writeName(out, role, compact);
+		CompactFormat.writeId(out, ownerId, compact);
+	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition#readDetails(java.io.ObjectInput,
+	 *      boolean)
+	 */
+	@Override
+	protected void readDetails(ObjectInput in, boolean compact) throws IOException, ClassNotFoundException
+	{
+		if (compact)
+		{
+			type = HibernateCollectionType.values()[in.readByte()];
+		}
+		else
+		{
+			type = (HibernateCollectionType) in.readObject();
+		}
+		role = CompactFormat.readName(in, compact);
+		ownerId = CompactFormat.readId(in, compact);
 	}
 }
@@ -1,8 +1,17 @@
 package nl.dries.wicket.hibernate.dozer.properties;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+
+import nl.dries.wicket.hibernate.dozer.helper.CompactFormat;
 import nl.dries.wicket.hibernate.dozer.helper.HibernateProperty;
 import nl.dries.wicket.hibernate.dozer.helper.ModelCallback;
 
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
 /**
  * 'Simple' property
  * 
@@ -14,7 +23,17 @@ public class SimplePropertyDefinition extends AbstractPropertyDefinition
 	private static final long serialVersionUID = 1L;
 
 	/** Hibernate property */
-	private final HibernateProperty hibernateProperty;
+	private HibernateProperty hibernateProperty;
+
+	/** Cached persister, re-resolved after deserialization */
+	private transient EntityPersister persister;
+
+	/**
+	 * Construct, for deserialization only
+	 */
+	public SimplePropertyDefinition()
+	{
+	}
 
 	/**
 	 * Construct
@@ -42,6 +61,20 @@ public class SimplePropertyDefinition extends AbstractPropertyDefinition
 		return hibernateProperty;
 	}
 
+	/**
+	 * @param factory
+	 *            the {@link SessionFactoryImplementor}
+	 * @return the {@link EntityPersister} of the detached entity
+	 */
+	public EntityPersister getPersister(SessionFactoryImplementor factory)
+	{
+		if (persister == null || persister.getFactory() != factory)
+		{
+			persister = factory.getEntityPersister(getHibernateProperty().getEntityClass().getName());
+		}
+		return persister;
+	}
+
 	/**
 	 * @see nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition#getPropertyType()
 	 */
@@ -50,4 +83,42 @@ public class SimplePropertyDefinition extends AbstractPropertyDefinition
 	{
 		return getHibernateProperty().getEntityClass();
 	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition#writeDetails(java.io.ObjectOutput,
+	 *      boolean)
+	 */
+	@Override
+	protected void writeDetails(ObjectOutput out, boolean compact) throws IOException
+	{
+		if (compact)
+		{
+			CompactFormat.writeClass(out, hibernateProperty.getEntityClass(), true);
+			CompactFormat.writeId(out, hibernateProperty.getId(), true);
+		}
+		else
+		{
+			out.writeObject(hibernateProperty);
+		}
+	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.properties.AbstractPropertyDefinition#readDetails(java.io.ObjectInput,
+	 *      boolean)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void readDetails(ObjectInput in, boolean compact) throws IOException, ClassNotFoundException
+	{
+		if (compact)
+		{
+			Class<? extends Serializable> entityClass = (Class<? extends Serializable>) CompactFormat.readClass(in,
+				true);
+			hibernateProperty = new HibernateProperty(entityClass, CompactFormat.readId(in, true));
+		}
+		else
+		{
+			hibernateProperty = (HibernateProperty) in.readObject();
+		}
+	}
 }
@@ -86,6 +86,26 @@ public class ProxyBuilder
 		return proxy;
 	}
 
+	/**
+	 * Returns the detached property of one of our own proxies
+	 * 
+	 * @param proxy
+	 *            a proxy created by {@link #buildProxy(AbstractPropertyDefinition)}
+	 * @return its {@link AbstractPropertyDefinition}, <code>null</code> if not one of our proxies
+	 */
+	public static AbstractPropertyDefinition getPropertyDefinition(Object proxy)
+	{
+		if (proxy instanceof ProxyObject)
+		{
+			MethodHandler handler = ((ProxyObject) proxy).getHandler();
+			if (handler instanceof LoaderCallback)
+			{
+				return ((LoaderCallback) handler).propertyDefinition;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Proxy method handler callback
 	 * 
@@ -99,6 +119,9 @@ public class ProxyBuilder
 		/** */
 		private final AbstractPropertyDefinition propertyDefinition;
 
+		/** Touched (attached) through this proxy before */
+		private transient boolean touched;
+
 		/**
 		 * Construct
 		 * 
@@ -137,6 +160,12 @@ public class ProxyBuilder
 			// Set the value in the original object, thus replacing the proxy
 			ObjectHelper.setValue(propertyDefinition.getOwner(), propertyDefinition.getProperty(), realValue);
 
+			if (!touched)
+			{
+				touched = true;
+				propertyDefinition.getModelCallback().propertyTouched(propertyDefinition);
+			}
+
 			// Invoke the requested method on the real value
 			return method.invoke(realValue, args);
 		}
@@ -236,6 +265,7 @@ public class ProxyBuilder
 
 			// Set the value in the original object, thus replacing the proxy
 			ObjectHelper.setValue(property.getOwner(), property.getProperty(), realValue);
+			property.getModelCallback().propertyTouched(property);
 
 			return realValue;
 		}
@@ -0,0 +1,310 @@
+package nl.dries.wicket.hibernate.dozer.store;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accounts the (estimated) retained size of the detached state of the models of one session. Models are charged when
+ * they are detached and released when they are attached again, so the entries are ordered from least to most recently
+ * used. When the limit is exceeded the least recently used models with clean (unmodified) state are asked to downgrade
+ * to a reference, idle models do so right away and models in use at the end of their detach. A charge is only released
+ * when the state is really dropped (or attached), so the used bytes never underreport. Models with unsaved changes stay
+ * charged. Entries of models that are garbage collected are released.
+ *
+ * @author dries
+ */
+public class MemoryBudget
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(MemoryBudget.class);
+
+	/** Estimated retained size of one detached object, used when the state is not serialized */
+	private static final int ESTIMATED_OBJECT_BYTES = 64;
+
+	/** Entries by handle, least recently charged first */
+	private final Map<Long, Entry> entries = new LinkedHashMap<>();
+
+	/** Collected owners */
+	private final ReferenceQueue<Downgradable> collected = new ReferenceQueue<>();
+
+	/** Maximum number of bytes */
+	private volatile long limit;
+
+	/** Last handle */
+	private long lastHandle;
+
+	/** Number of bytes charged */
+	private long usedBytes;
+
+	/** Number of bytes charged to models that are asked to downgrade but did not release yet */
+	private long pendingBytes;
+
+	/** Number of models asked to downgrade */
+	private long downgradeCount;
+
+	/**
+	 * Construct
+	 *
+	 * @param limit
+	 *            maximum number of bytes
+	 */
+	public MemoryBudget(long limit)
+	{
+		this.limit = limit;
+	}
+
+	/**
+	 * @param objects
+	 *            number of objects in a detached graph
+	 * @return estimated retained size of the graph
+	 */
+	public static long estimate(int objects)
+	{
+		return (long) objects * ESTIMATED_OBJECT_BYTES;
+	}
+
+	/**
+	 * Charge the detached state of a model. When the limit is exceeded (not counting the charges that are already
+	 * asked to downgrade) the least recently used clean models, possibly including this one, are asked to downgrade
+	 * outside the lock of the budget, they release their charge when they drop their state.
+	 *
+	 * @param owner
+	 *            the owner of the state
+	 * @param bytes
+	 *            its estimated size
+	 * @return the handle to release the charge with
+	 */
+	public long charge(Downgradable owner, long bytes)
+	{
+		long handle;
+		List<Downgradable> victims = new ArrayList<>();
+		synchronized (this)
+		{
+			expunge();
+
+			handle = ++lastHandle;
+			entries.put(handle, new Entry(bytes, new OwnerReference(owner, handle, collected)));
+			usedBytes += bytes;
+
+			for (Iterator<Entry> iter = entries.values().iterator(); usedBytes - pendingBytes > limit
+				&& iter.hasNext();)
+			{
+				Entry entry = iter.next();
+				Downgradable victim = entry.owner.get();
+				if (victim == null)
+				{
+					// Collected but not enqueued yet
+					iter.remove();
+					release(entry);
+				}
+				else if (!entry.marked && victim.isClean())
+				{
+					// Models with unsaved changes are skipped, they can not be reloaded
+					entry.marked = true;
+					pendingBytes += entry.bytes;
+					downgradeCount++;
+					victims.add(victim);
+				}
+			}
+		}
+
+		if (!victims.isEmpty())
+		{
+			LOG.debug("Budget of {} bytes exceeded, asking {} models to downgrade", limit, victims.size());
+			for (Downgradable victim : victims)
+			{
+				victim.requestDowngrade();
+			}
+		}
+
+		return handle;
+	}
+
+	/**
+	 * Release a charge, when the state is attached or dropped
+	 *
+	 * @param handle
+	 *            the handle
+	 */
+	public synchronized void release(long handle)
+	{
+		Entry entry = entries.remove(handle);
+		if (entry != null)
+		{
+			release(entry);
+		}
+		expunge();
+	}
+
+	/**
+	 * @param entry
+	 *            removed entry to release the bytes of
+	 */
+	private void release(Entry entry)
+	{
+		usedBytes -= entry.bytes;
+		if (entry.marked)
+		{
+			pendingBytes -= entry.bytes;
+		}
+	}
+
+	/**
+	 * Release the charges of owners that are garbage collected
+	 */
+	private void expunge()
+	{
+		Reference<? extends Downgradable> reference;
+		while ((reference = collected.poll()) != null)
+		{
+			long handle = ((OwnerReference) reference).handle;
+			Entry entry = entries.get(handle);
+			if (entry != null && entry.owner == reference)
+			{
+				entries.remove(handle);
+				release(entry);
+			}
+		}
+	}
+
+	/**
+	 * @return maximum number of bytes
+	 */
+	public long getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * @param limit
+	 *            maximum number of bytes, applied on the next charge
+	 */
+	public void setLimit(long limit)
+	{
+		this.limit = limit;
+	}
+
+	/**
+	 * @return number of bytes charged
+	 */
+	public synchronized long getUsedBytes()
+	{
+		expunge();
+		return usedBytes;
+	}
+
+	/**
+	 * @return fraction of the limit charged
+	 */
+	public double getUsage()
+	{
+		return limit <= 0 ? 0 : (double) getUsedBytes() / limit;
+	}
+
+	/**
+	 * @return number of bytes charged to models that are asked to downgrade but did not drop their state yet
+	 */
+	public synchronized long getPendingBytes()
+	{
+		expunge();
+		return pendingBytes;
+	}
+
+	/**
+	 * @return number of models charged
+	 */
+	public synchronized int getEntryCount()
+	{
+		expunge();
+		return entries.size();
+	}
+
+	/**
+	 * @return number of models asked to downgrade
+	 */
+	public synchronized long getDowngradeCount()
+	{
+		return downgradeCount;
+	}
+
+	/**
+	 * Owner of charged state, both methods can be called from the thread of another request
+	 *
+	 * @author dries
+	 */
+	public interface Downgradable
+	{
+		/**
+		 * @return <code>true</code> when the charged state equals the loaded state, so it can be reloaded
+		 */
+		boolean isClean();
+
+		/**
+		 * Ask the owner to drop its detached state, keeping only a reference to reload the object from. It does so
+		 * right away when idle, or at the end of its detach when in use, and releases its charge then.
+		 */
+		void requestDowngrade();
+	}
+
+	/**
+	 * Charged entry
+	 *
+	 * @author dries
+	 */
+	private static final class Entry
+	{
+		/** Estimated size */
+		private final long bytes;
+
+		/** Owner */
+		private final OwnerReference owner;
+
+		/** Whether the owner is asked to downgrade */
+		private boolean marked;
+
+		/**
+		 * Construct
+		 *
+		 * @param bytes
+		 * @param owner
+		 */
+		Entry(long bytes, OwnerReference owner)
+		{
+			this.bytes = bytes;
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * Weak reference to the owner of an entry
+	 *
+	 * @author dries
+	 */
+	private static final class OwnerReference extends WeakReference<Downgradable>
+	{
+		/** Handle of the entry */
+		private final long handle;
+
+		/**
+		 * Construct
+		 *
+		 * @param owner
+		 * @param handle
+		 * @param queue
+		 */
+		OwnerReference(Downgradable owner, long handle, ReferenceQueue<Downgradable> queue)
+		{
+			super(owner, queue);
+			this.handle = handle;
+		}
+	}
+}
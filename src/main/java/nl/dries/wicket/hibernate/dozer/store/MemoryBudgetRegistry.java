@@ -0,0 +1,75 @@
+package nl.dries.wicket.hibernate.dozer.store;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.wicket.Session;
+import org.apache.wicket.session.ISessionStore;
+
+/**
+ * Keeps the {@link MemoryBudget}s per Wicket session and forgets them when the session is unbound. Registered as
+ * {@link ISessionStore.UnboundListener} by the <code>DozerInitializer</code>.
+ *
+ * @author dries
+ */
+public class MemoryBudgetRegistry implements ISessionStore.UnboundListener
+{
+	/** Budgets per session id */
+	private static final Map<String, MemoryBudget> BUDGETS = new HashMap<>();
+
+	/**
+	 * Returns the budget of the current session, creating it when needed
+	 *
+	 * @param limit
+	 *            maximum number of bytes, updated on an existing budget
+	 * @return the {@link MemoryBudget}, <code>null</code> when there is no bound session
+	 */
+	public static MemoryBudget getBudget(long limit)
+	{
+		String sessionId = Session.exists() ? Session.get().getId() : null;
+		if (sessionId == null)
+		{
+			return null;
+		}
+
+		synchronized (BUDGETS)
+		{
+			MemoryBudget budget = BUDGETS.get(sessionId);
+			if (budget == null)
+			{
+				budget = new MemoryBudget(limit);
+				BUDGETS.put(sessionId, budget);
+			}
+			else
+			{
+				budget.setLimit(limit);
+			}
+			return budget;
+		}
+	}
+
+	/**
+	 * @param sessionId
+	 *            the session id
+	 * @return the {@link MemoryBudget} of the session, <code>null</code> when nothing was charged
+	 */
+	public static MemoryBudget getBudget(String sessionId)
+	{
+		synchronized (BUDGETS)
+		{
+			return BUDGETS.get(sessionId);
+		}
+	}
+
+	/**
+	 * @see org.apache.wicket.session.ISessionStore.UnboundListener#sessionUnbound(java.lang.String)
+	 */
+	@Override
+	public void sessionUnbound(String sessionId)
+	{
+		synchronized (BUDGETS)
+		{
+			BUDGETS.remove(sessionId);
+		}
+	}
+}
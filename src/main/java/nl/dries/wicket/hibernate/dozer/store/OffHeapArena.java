@@ -0,0 +1,451 @@
+package nl.dries.wicket.hibernate.dozer.store;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.dries.wicket.hibernate.dozer.DozerStatistics;
+import nl.dries.wicket.hibernate.dozer.DozerStatistics.Counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Off-heap store for serialized detached state. The arena consists of direct {@link ByteBuffer} slabs, divided in
+ * fixed size chunks; an entry occupies as many chunks as it needs, freed chunks are reused. When the arena is full the
+ * least recently used entries are evicted: their data is moved to the heap (it is still needed by its owner) and the
+ * {@link EvictionListener} is notified. Entries of owners that are garbage collected are freed.
+ *
+ * @author dries
+ */
+public class OffHeapArena
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(OffHeapArena.class);
+
+	/** Size of one slab in bytes */
+	private final int slabSize;
+
+	/** Size of one chunk in bytes */
+	private final int chunkSize;
+
+	/** Maximum number of slabs */
+	private final int maxSlabs;
+
+	/** Allocated slabs */
+	private final List<ByteBuffer> slabs = new ArrayList<>();
+
+	/** Free chunks (slab index * chunks per slab + chunk index) */
+	private final Deque<Integer> freeChunks = new ArrayDeque<>();
+
+	/** Entries by handle, in access order */
+	private final Map<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** Evicted entries (data on the heap), by handle */
+	private final Map<Long, Evicted> evicted = new HashMap<>();
+
+	/** Collected owners */
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+	/** Eviction listener, may be <code>null</code> */
+	private volatile EvictionListener evictionListener;
+
+	/** Last handle */
+	private long lastHandle;
+
+	/** Number of bytes stored off-heap */
+	private long usedBytes;
+
+	/**
+	 * Construct
+	 *
+	 * @param slabSize
+	 *            size of one slab in bytes
+	 * @param chunkSize
+	 *            size of one chunk in bytes, slabs are divided in chunks
+	 * @param maxSlabs
+	 *            maximum number of slabs, the capacity is <code>slabSize * maxSlabs</code>
+	 */
+	public OffHeapArena(int slabSize, int chunkSize, int maxSlabs)
+	{
+		if (chunkSize <= 0 || slabSize < chunkSize || maxSlabs <= 0)
+		{
+			throw new IllegalArgumentException("Invalid arena dimensions");
+		}
+		this.slabSize = slabSize - slabSize % chunkSize;
+		this.chunkSize = chunkSize;
+		this.maxSlabs = maxSlabs;
+	}
+
+	/**
+	 * @param evictionListener
+	 *            the evictionListener to set
+	 */
+	public void setEvictionListener(EvictionListener evictionListener)
+	{
+		this.evictionListener = evictionListener;
+	}
+
+	/**
+	 * Store data
+	 *
+	 * @param data
+	 *            the data
+	 * @param owner
+	 *            the owner of the data, the entry is freed when the owner is garbage collected
+	 * @return the handle, <code>-1</code> if the data does not fit in the arena
+	 */
+	public synchronized long store(byte[] data, Object owner)
+	{
+		expunge();
+
+		int needed = Math.max(1, (data.length + chunkSize - 1) / chunkSize);
+		if (needed > getChunkCapacity())
+		{
+			return -1;
+		}
+
+		while (freeChunks.size() < needed && !allocateSlab())
+		{
+			evictEldest();
+		}
+
+		int[] chunks = new int[needed];
+		for (int i = 0; i < needed; i++)
+		{
+			chunks[i] = freeChunks.pop();
+			int offset = i * chunkSize;
+			buffer(chunks[i]).put(data, offset, Math.min(chunkSize, data.length - offset));
+		}
+
+		long handle = ++lastHandle;
+		entries.put(handle, new Entry(chunks, data.length, new OwnerReference(owner, handle, collected)));
+		usedBytes += data.length;
+
+		DozerStatistics.increment(Counter.OFF_HEAP_STORES);
+
+		return handle;
+	}
+
+	/**
+	 * Read data without removing it
+	 *
+	 * @param handle
+	 *            the handle
+	 * @return the data, <code>null</code> if unknown
+	 */
+	public synchronized byte[] read(long handle)
+	{
+		Entry entry = entries.get(handle);
+		if (entry == null)
+		{
+			Evicted evictedEntry = evicted.get(handle);
+			return evictedEntry == null ? null : evictedEntry.data;
+		}
+
+		byte[] data = new byte[entry.length];
+		for (int i = 0; i < entry.chunks.length; i++)
+		{
+			int offset = i * chunkSize;
+			buffer(entry.chunks[i]).get(data, offset, Math.min(chunkSize, data.length - offset));
+		}
+		return data;
+	}
+
+	/**
+	 * Read and remove data
+	 *
+	 * @param handle
+	 *            the handle
+	 * @return the data, <code>null</code> if unknown
+	 */
+	public synchronized byte[] remove(long handle)
+	{
+		byte[] data = read(handle);
+		free(handle);
+		return data;
+	}
+
+	/**
+	 * Free the data of a handle
+	 *
+	 * @param handle
+	 *            the handle
+	 */
+	public synchronized void free(long handle)
+	{
+		Entry entry = entries.remove(handle);
+		if (entry != null)
+		{
+			release(entry);
+			entry.owner.clear();
+		}
+
+		Evicted evictedEntry = evicted.remove(handle);
+		if (evictedEntry != null)
+		{
+			evictedEntry.owner.clear();
+		}
+	}
+
+	/**
+	 * @return number of bytes stored off-heap
+	 */
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	/**
+	 * @return number of bytes allocated off-heap
+	 */
+	public synchronized long getAllocatedBytes()
+	{
+		return (long) slabs.size() * slabSize;
+	}
+
+	/**
+	 * @return the maximum number of bytes off-heap
+	 */
+	public long getCapacity()
+	{
+		return (long) maxSlabs * slabSize;
+	}
+
+	/**
+	 * @return occupancy of the capacity, between 0 and 1
+	 */
+	public synchronized double getOccupancy()
+	{
+		return (double) (getChunkCapacity() - freeChunks.size() - (maxSlabs - slabs.size()) * chunksPerSlab())
+			/ getChunkCapacity();
+	}
+
+	/**
+	 * @return number of entries stored off-heap
+	 */
+	public synchronized int getEntryCount()
+	{
+		expunge();
+		return entries.size();
+	}
+
+	/**
+	 * @return number of evicted entries kept on the heap
+	 */
+	public synchronized int getEvictedCount()
+	{
+		expunge();
+		return evicted.size();
+	}
+
+	/**
+	 * Evict the least recently used entry, its owner reference stays registered so the heap copy is dropped when the
+	 * owner is collected
+	 */
+	private void evictEldest()
+	{
+		long handle = entries.keySet().iterator().next();
+		byte[] data = read(handle);
+		Entry entry = entries.remove(handle);
+		Object owner = entry.owner.get();
+		release(entry);
+
+		if (owner != null)
+		{
+			evicted.put(handle, new Evicted(data, entry.owner));
+		}
+		else
+		{
+			entry.owner.clear();
+		}
+
+		DozerStatistics.increment(Counter.OFF_HEAP_EVICTIONS);
+		LOG.debug("Evicted {} bytes from the off-heap arena", data.length);
+
+		EvictionListener listener = evictionListener;
+		if (listener != null && owner != null)
+		{
+			listener.evicted(owner, handle, data.length);
+		}
+	}
+
+	/**
+	 * Free the (evicted) entries of collected owners
+	 */
+	private void expunge()
+	{
+		Reference<?> reference;
+		while ((reference = collected.poll()) != null)
+		{
+			free(((OwnerReference) reference).handle);
+		}
+	}
+
+	/**
+	 * @param entry
+	 *            the entry whose chunks are released
+	 */
+	private void release(Entry entry)
+	{
+		for (int chunk : entry.chunks)
+		{
+			freeChunks.push(chunk);
+		}
+		usedBytes -= entry.length;
+	}
+
+	/**
+	 * @return <code>true</code> if a new slab was allocated
+	 */
+	private boolean allocateSlab()
+	{
+		if (slabs.size() >= maxSlabs)
+		{
+			return false;
+		}
+
+		int slab = slabs.size();
+		slabs.add(ByteBuffer.allocateDirect(slabSize));
+		for (int i = chunksPerSlab() - 1; i >= 0; i--)
+		{
+			freeChunks.push(slab * chunksPerSlab() + i);
+		}
+		return true;
+	}
+
+	/**
+	 * @param chunk
+	 *            the chunk number
+	 * @return a buffer positioned at the start of the chunk
+	 */
+	private ByteBuffer buffer(int chunk)
+	{
+		ByteBuffer buffer = slabs.get(chunk / chunksPerSlab()).duplicate();
+		buffer.position((chunk % chunksPerSlab()) * chunkSize);
+		return buffer;
+	}
+
+	/**
+	 * @return number of chunks in one slab
+	 */
+	private int chunksPerSlab()
+	{
+		return slabSize / chunkSize;
+	}
+
+	/**
+	 * @return maximum number of chunks
+	 */
+	private int getChunkCapacity()
+	{
+		return maxSlabs * chunksPerSlab();
+	}
+
+	/**
+	 * Notified when an entry is moved from the arena to the heap
+	 *
+	 * @author dries
+	 */
+	public interface EvictionListener
+	{
+		/**
+		 * @param owner
+		 *            the owner of the entry
+		 * @param handle
+		 *            its handle
+		 * @param length
+		 *            the number of bytes
+		 */
+		void evicted(Object owner, long handle, int length);
+	}
+
+	/**
+	 * Stored entry
+	 *
+	 * @author dries
+	 */
+	private static final class Entry
+	{
+		/** Used chunks */
+		private final int[] chunks;
+
+		/** Number of bytes */
+		private final int length;
+
+		/** Owner */
+		private final OwnerReference owner;
+
+		/**
+		 * Construct
+		 *
+		 * @param chunks
+		 * @param length
+		 * @param owner
+		 */
+		Entry(int[] chunks, int length, OwnerReference owner)
+		{
+			this.chunks = chunks;
+			this.length = length;
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * Entry evicted to the heap
+	 *
+	 * @author dries
+	 */
+	private static final class Evicted
+	{
+		/** The data */
+		private final byte[] data;
+
+		/** Owner, still registered with the queue */
+		private final OwnerReference owner;
+
+		/**
+		 * Construct
+		 *
+		 * @param data
+		 * @param owner
+		 */
+		Evicted(byte[] data, OwnerReference owner)
+		{
+			this.data = data;
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * Weak reference to an owner, knowing its handle
+	 *
+	 * @author dries
+	 */
+	private static final class OwnerReference extends WeakReference<Object>
+	{
+		/** Handle */
+		private final long handle;
+
+		/**
+		 * Construct
+		 *
+		 * @param owner
+		 * @param handle
+		 * @param queue
+		 */
+		OwnerReference(Object owner, long handle, ReferenceQueue<Object> queue)
+		{
+			super(owner, queue);
+			this.handle = handle;
+		}
+	}
+}
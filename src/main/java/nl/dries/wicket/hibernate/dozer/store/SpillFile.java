@@ -0,0 +1,353 @@
+package nl.dries.wicket.hibernate.dozer.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Temporary file holding serialized rows, mapped in memory per segment. Like the {@link OffHeapArena} the segments are
+ * divided in fixed size chunks, a record occupies as many chunks as it needs and freed chunks are reused. The file
+ * grows by one segment at a time, on {@link #close()} the segments are unmapped and the file is deleted. Files are not
+ * registered for deletion on exit (that registration is never removed), {@link SpillFileRegistry} closes them.
+ *
+ * @author dries
+ */
+public class SpillFile
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(SpillFile.class);
+
+	/** Default segment size (1 MB) */
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	/** Default chunk size */
+	public static final int DEFAULT_CHUNK_SIZE = 512;
+
+	/** Size of one segment in bytes */
+	private final int segmentSize;
+
+	/** Size of one chunk in bytes */
+	private final int chunkSize;
+
+	/** The file */
+	private final File file;
+
+	/** Its channel */
+	private final RandomAccessFile channelFile;
+
+	/** Mapped segments */
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+	/** Free chunks (segment index * chunks per segment + chunk index) */
+	private final Deque<Integer> freeChunks = new ArrayDeque<>();
+
+	/** Records by handle */
+	private final Map<Long, Record> records = new HashMap<>();
+
+	/** Last handle */
+	private long lastHandle;
+
+	/** Number of bytes stored */
+	private long usedBytes;
+
+	/** Closed? */
+	private boolean closed;
+
+	/**
+	 * Construct with the default segment and chunk sizes
+	 */
+	public SpillFile()
+	{
+		this(DEFAULT_SEGMENT_SIZE, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Construct
+	 *
+	 * @param segmentSize
+	 *            size of one mapped segment in bytes
+	 * @param chunkSize
+	 *            size of one chunk in bytes, segments are divided in chunks
+	 */
+	public SpillFile(int segmentSize, int chunkSize)
+	{
+		if (chunkSize <= 0 || segmentSize < chunkSize)
+		{
+			throw new IllegalArgumentException("Invalid spill file dimensions");
+		}
+		this.segmentSize = segmentSize - segmentSize % chunkSize;
+		this.chunkSize = chunkSize;
+
+		try
+		{
+			file = File.createTempFile("dozer-spill", ".bin");
+			channelFile = new RandomAccessFile(file, "rw");
+		}
+		catch (IOException e)
+		{
+			throw new WicketRuntimeException("Cannot create spill file", e);
+		}
+	}
+
+	/**
+	 * Write a record
+	 *
+	 * @param data
+	 *            the data
+	 * @return its handle
+	 */
+	public synchronized long write(byte[] data)
+	{
+		checkOpen();
+
+		int needed = Math.max(1, (data.length + chunkSize - 1) / chunkSize);
+		while (freeChunks.size() < needed)
+		{
+			mapSegment();
+		}
+
+		int[] chunks = new int[needed];
+		for (int i = 0; i < needed; i++)
+		{
+			chunks[i] = freeChunks.pop();
+			int offset = i * chunkSize;
+			buffer(chunks[i]).put(data, offset, Math.min(chunkSize, data.length - offset));
+		}
+
+		long handle = ++lastHandle;
+		records.put(handle, new Record(chunks, data.length));
+		usedBytes += data.length;
+		return handle;
+	}
+
+	/**
+	 * Read a record
+	 *
+	 * @param handle
+	 *            the handle
+	 * @return the data, <code>null</code> if unknown
+	 */
+	public synchronized byte[] read(long handle)
+	{
+		checkOpen();
+
+		Record record = records.get(handle);
+		if (record == null)
+		{
+			return null;
+		}
+
+		byte[] data = new byte[record.length];
+		for (int i = 0; i < record.chunks.length; i++)
+		{
+			int offset = i * chunkSize;
+			buffer(record.chunks[i]).get(data, offset, Math.min(chunkSize, data.length - offset));
+		}
+		return data;
+	}
+
+	/**
+	 * Free a record
+	 *
+	 * @param handle
+	 *            the handle
+	 */
+	public synchronized void free(long handle)
+	{
+		Record record = records.remove(handle);
+		if (record != null)
+		{
+			for (int chunk : record.chunks)
+			{
+				freeChunks.push(chunk);
+			}
+			usedBytes -= record.length;
+		}
+	}
+
+	/**
+	 * Close and delete the file
+	 */
+	public synchronized void close()
+	{
+		if (closed)
+		{
+			return;
+		}
+		closed = true;
+
+		records.clear();
+		freeChunks.clear();
+		for (MappedByteBuffer segment : segments)
+		{
+			unmap(segment);
+		}
+		segments.clear();
+		usedBytes = 0;
+
+		try
+		{
+			channelFile.close();
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Cannot close spill file " + file, e);
+		}
+		if (!file.delete())
+		{
+			LOG.warn("Cannot delete spill file {}", file);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> when closed
+	 */
+	public synchronized boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public synchronized int getRecordCount()
+	{
+		return records.size();
+	}
+
+	/**
+	 * @return number of bytes stored
+	 */
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	/**
+	 * @return size of the file in bytes
+	 */
+	public synchronized long getFileSize()
+	{
+		return (long) segments.size() * segmentSize;
+	}
+
+	/**
+	 * @return the file
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Map the next segment of the file
+	 */
+	private void mapSegment()
+	{
+		int segment = segments.size();
+		try
+		{
+			segments.add(channelFile.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) segment * segmentSize,
+				segmentSize));
+		}
+		catch (IOException e)
+		{
+			throw new WicketRuntimeException("Cannot map spill file segment", e);
+		}
+
+		int chunksPerSegment = segmentSize / chunkSize;
+		for (int i = chunksPerSegment - 1; i >= 0; i--)
+		{
+			freeChunks.push(segment * chunksPerSegment + i);
+		}
+	}
+
+	/**
+	 * Release the mapping of a segment right away instead of when the buffer is garbage collected, when the JVM
+	 * allows it
+	 *
+	 * @param segment
+	 *            the segment, not used afterwards
+	 */
+	private static void unmap(MappedByteBuffer segment)
+	{
+		try
+		{
+			Method cleanerMethod = segment.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(segment);
+			if (cleaner != null)
+			{
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			LOG.debug("Cannot unmap spill file segment, it is released when collected", e);
+		}
+	}
+
+	/**
+	 * @param chunk
+	 *            the chunk number
+	 * @return a buffer positioned at the start of the chunk
+	 */
+	private ByteBuffer buffer(int chunk)
+	{
+		int chunksPerSegment = segmentSize / chunkSize;
+		ByteBuffer buffer = segments.get(chunk / chunksPerSegment).duplicate();
+		buffer.position((chunk % chunksPerSegment) * chunkSize);
+		return buffer;
+	}
+
+	/**
+	 * Fail when closed
+	 */
+	private void checkOpen()
+	{
+		if (closed)
+		{
+			throw new IllegalStateException("Spill file " + file + " is closed");
+		}
+	}
+
+	/**
+	 * Stored record
+	 *
+	 * @author dries
+	 */
+	private static final class Record
+	{
+		/** Used chunks */
+		private final int[] chunks;
+
+		/** Number of bytes */
+		private final int length;
+
+		/**
+		 * Construct
+		 *
+		 * @param chunks
+		 * @param length
+		 */
+		Record(int[] chunks, int length)
+		{
+			this.chunks = chunks;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package nl.dries.wicket.hibernate.dozer.store;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wicket.Session;
+import org.apache.wicket.session.ISessionStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link SpillFile}s per Wicket session and closes them when their owner (the spilling list) is garbage
+ * collected or when the session is unbound. Without a bound session nothing would delete the files, so there is
+ * nothing to spill to. Registered as {@link ISessionStore.UnboundListener} by the <code>DozerInitializer</code>.
+ *
+ * @author dries
+ */
+public class SpillFileRegistry implements ISessionStore.UnboundListener
+{
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(SpillFileRegistry.class);
+
+	/** Open files per session id */
+	private static final Map<String, List<OwnerReference>> FILES = new HashMap<>();
+
+	/** Collected owners */
+	private static final ReferenceQueue<Object> COLLECTED = new ReferenceQueue<>();
+
+	/**
+	 * @return <code>true</code> when there is a bound session to register spill files with
+	 */
+	public static boolean isSessionBound()
+	{
+		return Session.exists() && Session.get().getId() != null;
+	}
+
+	/**
+	 * Register a file with the current session, it is closed when the owner is garbage collected
+	 *
+	 * @param owner
+	 *            the owner of the file
+	 * @param file
+	 *            the {@link SpillFile}
+	 * @return <code>true</code> when registered, <code>false</code> when there is no bound session (the file is
+	 *         deleted on close or exit only)
+	 */
+	public static boolean register(Object owner, SpillFile file)
+	{
+		String sessionId = isSessionBound() ? Session.get().getId() : null;
+		if (sessionId == null)
+		{
+			LOG.debug("No bound session, spill file {} is not registered", file.getFile());
+			return false;
+		}
+
+		synchronized (FILES)
+		{
+			expunge();
+
+			List<OwnerReference> files = FILES.get(sessionId);
+			if (files == null)
+			{
+				files = new ArrayList<>();
+				FILES.put(sessionId, files);
+			}
+
+			// Forget the files closed by their owners
+			for (Iterator<OwnerReference> iter = files.iterator(); iter.hasNext();)
+			{
+				if (iter.next().file.isClosed())
+				{
+					iter.remove();
+				}
+			}
+			files.add(new OwnerReference(owner, file, sessionId));
+		}
+		return true;
+	}
+
+	/**
+	 * @param sessionId
+	 *            the session id
+	 * @return number of open files of the session
+	 */
+	public static int getOpenFileCount(String sessionId)
+	{
+		synchronized (FILES)
+		{
+			expunge();
+
+			List<OwnerReference> files = FILES.get(sessionId);
+			int count = 0;
+			if (files != null)
+			{
+				for (OwnerReference reference : files)
+				{
+					count += reference.file.isClosed() ? 0 : 1;
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Close the files of owners that are garbage collected
+	 */
+	private static void expunge()
+	{
+		Reference<?> reference;
+		while ((reference = COLLECTED.poll()) != null)
+		{
+			OwnerReference owner = (OwnerReference) reference;
+			owner.file.close();
+
+			List<OwnerReference> files = FILES.get(owner.sessionId);
+			if (files != null)
+			{
+				files.remove(owner);
+				if (files.isEmpty())
+				{
+					FILES.remove(owner.sessionId);
+				}
+			}
+			LOG.debug("Closed spill file {} of a collected owner", owner.file.getFile());
+		}
+	}
+
+	/**
+	 * @see org.apache.wicket.session.ISessionStore.UnboundListener#sessionUnbound(java.lang.String)
+	 */
+	@Override
+	public void sessionUnbound(String sessionId)
+	{
+		List<OwnerReference> files;
+		synchronized (FILES)
+		{
+			expunge();
+			files = FILES.remove(sessionId);
+		}
+
+		if (files != null)
+		{
+			for (OwnerReference reference : files)
+			{
+				reference.file.close();
+			}
+			LOG.debug("Closed {} spill files of session {}", files.size(), sessionId);
+		}
+	}
+
+	/**
+	 * Weak reference to the owner of a file
+	 *
+	 * @author dries
+	 */
+	private static final class OwnerReference extends WeakReference<Object>
+	{
+		/** The file */
+		private final SpillFile file;
+
+		/** Session id */
+		private final String sessionId;
+
+		/**
+		 * Construct
+		 *
+		 * @param owner
+		 * @param file
+		 * @param sessionId
+		 */
+		OwnerReference(Object owner, SpillFile file, String sessionId)
+		{
+			super(owner, COLLECTED);
+			this.file = file;
+			this.sessionId = sessionId;
+		}
+	}
+}
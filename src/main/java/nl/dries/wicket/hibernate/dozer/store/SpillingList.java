@@ -0,0 +1,419 @@
+package nl.dries.wicket.hibernate.dozer.store;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import nl.dries.wicket.hibernate.dozer.helper.StateSerializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * List keeping at most a given number of rows on the heap after {@link #spill()}, the least recently used rows are
+ * serialized into a {@link SpillFile} and read back when accessed. The rows should be detached (serializable without
+ * dragging a session along) when spilled. With a {@link KeyFunction} the key of a row is kept next to its spilled
+ * bytes, so it can be looked up ({@link #getKey(int)}) without reading the row back. Rows are only spilled when there
+ * is a bound Wicket session, which deletes the file when it ends; the file is also deleted when the list is garbage
+ * collected (see {@link SpillFileRegistry}) or when all rows are read back.
+ *
+ * @author dries
+ *
+ * @param <E>
+ *            row type
+ */
+public class SpillingList<E> extends AbstractList<E> implements Serializable
+{
+	/** Default */
+	private static final long serialVersionUID = 1L;
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(SpillingList.class);
+
+	/** Number of rows kept on the heap */
+	private final int residentRows;
+
+	/** Determines the key kept for a spilled row, may be <code>null</code> */
+	private final KeyFunction<E> keyFunction;
+
+	/** Rows */
+	private transient List<Slot<E>> slots = new ArrayList<>();
+
+	/** File holding the spilled rows, created on first use */
+	private transient SpillFile file;
+
+	/** Access clock */
+	private transient long clock;
+
+	/**
+	 * Construct
+	 *
+	 * @param residentRows
+	 *            number of rows kept on the heap after {@link #spill()}
+	 */
+	public SpillingList(int residentRows)
+	{
+		this(residentRows, null);
+	}
+
+	/**
+	 * Construct
+	 *
+	 * @param residentRows
+	 *            number of rows kept on the heap after {@link #spill()}
+	 * @param keyFunction
+	 *            determines the key kept for a spilled row, may be <code>null</code>
+	 */
+	public SpillingList(int residentRows, KeyFunction<E> keyFunction)
+	{
+		this.residentRows = residentRows;
+		this.keyFunction = keyFunction;
+	}
+
+	/**
+	 * @see java.util.AbstractList#get(int)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public E get(int index)
+	{
+		Slot<E> slot = slots.get(index);
+		if (slot.handle >= 0)
+		{
+			slot.value = (E) StateSerializer.read(file.read(slot.handle), null, false);
+			free(slot);
+		}
+		slot.lastAccess = ++clock;
+		return slot.value;
+	}
+
+	/**
+	 * @see java.util.AbstractList#set(int, java.lang.Object)
+	 */
+	@Override
+	public E set(int index, E element)
+	{
+		E previous = get(index);
+		slots.get(index).value = element;
+		return previous;
+	}
+
+	/**
+	 * @see java.util.AbstractList#add(int, java.lang.Object)
+	 */
+	@Override
+	public void add(int index, E element)
+	{
+		Slot<E> slot = new Slot<>();
+		slot.value = element;
+		slot.lastAccess = ++clock;
+		slots.add(index, slot);
+		modCount++;
+	}
+
+	/**
+	 * Remove a row, a spilled row is freed without reading it back
+	 *
+	 * @param index
+	 *            index of the row
+	 * @return the removed row, <code>null</code> when it was spilled
+	 */
+	@Override
+	public E remove(int index)
+	{
+		Slot<E> slot = slots.remove(index);
+		modCount++;
+		if (slot.handle >= 0)
+		{
+			free(slot);
+		}
+		return slot.value;
+	}
+
+	/**
+	 * Free the spilled bytes of a slot, deleting the file when it is empty
+	 *
+	 * @param slot
+	 *            the spilled slot
+	 */
+	private void free(Slot<E> slot)
+	{
+		file.free(slot.handle);
+		slot.handle = -1;
+		slot.key = null;
+
+		if (file.getRecordCount() == 0)
+		{
+			close(file);
+		}
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#size()
+	 */
+	@Override
+	public int size()
+	{
+		return slots.size();
+	}
+
+	/**
+	 * Spill the least recently used rows until at most the resident number of rows is left on the heap, does nothing
+	 * without a bound session
+	 */
+	public void spill()
+	{
+		if (file == null && !SpillFileRegistry.isSessionBound())
+		{
+			LOG.debug("No bound session to spill {} rows to", slots.size());
+			return;
+		}
+
+		List<Slot<E>> resident = new ArrayList<>();
+		for (Slot<E> slot : slots)
+		{
+			if (slot.handle < 0)
+			{
+				resident.add(slot);
+			}
+		}
+
+		int excess = resident.size() - residentRows;
+		if (excess <= 0)
+		{
+			return;
+		}
+
+		Collections.sort(resident, new Comparator<Slot<E>>()
+		{
+			@Override
+			public int compare(Slot<E> o1, Slot<E> o2)
+			{
+				return Long.compare(o1.lastAccess, o2.lastAccess);
+			}
+		});
+
+		int spilled = 0;
+		for (Slot<E> slot : resident.subList(0, excess))
+		{
+			byte[] bytes = StateSerializer.write(slot.value, null, false);
+			if (bytes != null)
+			{
+				slot.key = keyFunction == null ? null : keyFunction.getKey(slot.value);
+				slot.handle = getFile().write(bytes);
+				slot.value = null;
+				spilled++;
+			}
+		}
+
+		LOG.debug("Spilled {} of {} rows", spilled, slots.size());
+	}
+
+	/**
+	 * @param index
+	 *            the index
+	 * @return <code>true</code> when the row is spilled (not on the heap)
+	 */
+	public boolean isSpilled(int index)
+	{
+		return slots.get(index).handle >= 0;
+	}
+
+	/**
+	 * Returns the key of a row without reading it back when spilled
+	 *
+	 * @param index
+	 *            the index
+	 * @return the key kept for a spilled row or determined for a resident one, <code>null</code> without
+	 *         {@link KeyFunction}
+	 */
+	public Object getKey(int index)
+	{
+		Slot<E> slot = slots.get(index);
+		if (slot.handle >= 0)
+		{
+			return slot.key;
+		}
+		return keyFunction == null ? null : keyFunction.getKey(slot.value);
+	}
+
+	/**
+	 * @return the rows currently on the heap, without reading spilled rows
+	 */
+	public List<E> getResident()
+	{
+		List<E> resident = new ArrayList<>();
+		for (Slot<E> slot : slots)
+		{
+			if (slot.handle < 0)
+			{
+				resident.add(slot.value);
+			}
+		}
+		return resident;
+	}
+
+	/**
+	 * @return number of spilled rows
+	 */
+	public int getSpilledCount()
+	{
+		return slots.size() - getResident().size();
+	}
+
+	/**
+	 * @return the file holding the spilled rows, <code>null</code> when nothing was spilled yet
+	 */
+	public SpillFile getSpillFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Remove all rows and delete the spill file
+	 */
+	public void close()
+	{
+		slots.clear();
+		modCount++;
+		if (file != null)
+		{
+			close(file);
+		}
+	}
+
+	/**
+	 * Delete the (empty) spill file, a new one is created on the next spill
+	 *
+	 * @param spillFile
+	 *            the current file
+	 */
+	private void close(SpillFile spillFile)
+	{
+		spillFile.close();
+		file = null;
+	}
+
+	/**
+	 * @return the spill file, creating it when needed
+	 */
+	private SpillFile getFile()
+	{
+		if (file == null)
+		{
+			file = new SpillFile();
+			SpillFileRegistry.register(this, file);
+		}
+		return file;
+	}
+
+	/**
+	 * Writes the resident rows as objects and the spilled rows as their serialized bytes
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		out.writeInt(slots.size());
+		for (Slot<E> slot : slots)
+		{
+			out.writeBoolean(slot.handle >= 0);
+			if (slot.handle >= 0)
+			{
+				out.writeObject(file.read(slot.handle));
+				out.writeObject(slot.key);
+			}
+			else
+			{
+				out.writeObject(slot.value);
+			}
+		}
+	}
+
+	/**
+	 * Reads the rows, the spilled rows are written to a new spill file (or kept on the heap without a bound session)
+	 *
+	 * @param in
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		int size = in.readInt();
+		slots = new ArrayList<>(size);
+		boolean bound = SpillFileRegistry.isSessionBound();
+		for (int i = 0; i < size; i++)
+		{
+			Slot<E> slot = new Slot<>();
+			if (in.readBoolean())
+			{
+				byte[] bytes = (byte[]) in.readObject();
+				Object key = in.readObject();
+				if (bound)
+				{
+					slot.handle = getFile().write(bytes);
+					slot.key = key;
+				}
+				else
+				{
+					slot.value = (E) StateSerializer.read(bytes, null, false);
+				}
+			}
+			else
+			{
+				slot.value = (E) in.readObject();
+			}
+			slots.add(slot);
+		}
+	}
+
+	/**
+	 * Row, either resident or spilled
+	 *
+	 * @author dries
+	 *
+	 * @param <E>
+	 */
+	private static final class Slot<E>
+	{
+		/** Resident value */
+		private E value;
+
+		/** Handle in the spill file, <code>-1</code> when resident */
+		private long handle = -1;
+
+		/** Last access */
+		private long lastAccess;
+
+		/** Key of a spilled row */
+		private Object key;
+	}
+
+	/**
+	 * Determines the key kept next to a spilled row
+	 *
+	 * @author dries
+	 *
+	 * @param <E>
+	 *            row type
+	 */
+	public interface KeyFunction<E> extends Serializable
+	{
+		/**
+		 * @param row
+		 *            the (resident) row
+		 * @return its key, may be <code>null</code>
+		 */
+		Object getKey(E row);
+	}
+}
@@ -0,0 +1,41 @@
+package nl.dries.wicket.hibernate.dozer.visitor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import nl.dries.wicket.hibernate.dozer.helper.ObjectHelper;
+
+import org.hibernate.proxy.HibernateProxy;
+
+/**
+ * Visits an object array (e.g. a mapped array, which Hibernate always loads eagerly and keeps as plain array in the
+ * entity), replacing any Hibernate proxies
+ * 
+ * @author dries
+ */
+public class ArrayVisitor implements VisitorStrategy
+{
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.visitor.VisitorStrategy#visit(java.lang.Object)
+	 */
+	@Override
+	public Set<Object> visit(Object object)
+	{
+		Object[] array = (Object[]) object;
+		Set<Object> toWalk = new HashSet<>();
+
+		for (int i = 0; i < array.length; i++)
+		{
+			if (array[i] instanceof HibernateProxy)
+			{
+				array[i] = ObjectHelper.deproxy(array[i]);
+			}
+			if (array[i] != null)
+			{
+				toWalk.add(array[i]);
+			}
+		}
+
+		return toWalk;
+	}
+}
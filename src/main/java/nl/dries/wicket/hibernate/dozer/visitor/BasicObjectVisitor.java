@@ -1,11 +1,7 @@
 package nl.dries.wicket.hibernate.dozer.visitor;
 
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 import nl.dries.wicket.hibernate.dozer.SessionFinder;
@@ -18,7 +14,6 @@ import nl.dries.wicket.hibernate.dozer.proxy.Proxied;
 import nl.dries.wicket.hibernate.dozer.proxy.ProxyBuilder;
 
 import org.hibernate.Hibernate;
-import org.hibernate.internal.SessionImpl;
 import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.proxy.HibernateProxy;
 import org.hibernate.proxy.HibernateProxyHelper;
@@ -36,11 +31,8 @@ public class BasicObjectVisitor implements VisitorStrategy
 	/** Logger */
 	private static final Logger LOG = LoggerFactory.getLogger(BasicObjectVisitor.class);
 
-	/** */
-	private static final String JAVA_PKG = "java";
-
-	/** Session finder */
-	private final SessionFinder sessionFinder;
+	/** Shared lookups */
+	private final DetachContext context;
 
 	/** Callback */
 	private final ModelCallback callback;
@@ -53,7 +45,19 @@ public class BasicObjectVisitor implements VisitorStrategy
 	 */
 	public BasicObjectVisitor(SessionFinder sessionFinder, ModelCallback callback)
 	{
-		this.sessionFinder = sessionFinder;
+		this(new DetachContext(sessionFinder), callback);
+	}
+
+	/**
+	 * Construct
+	 * 
+	 * @param context
+	 *            the {@link DetachContext} to share lookups with
+	 * @param callback
+	 */
+	public BasicObjectVisitor(DetachContext context, ModelCallback callback)
+	{
+		this.context = context;
 		this.callback = callback;
 	}
 
@@ -66,54 +70,54 @@ public class BasicObjectVisitor implements VisitorStrategy
 	{
 		Set<Object> toWalk = new HashSet<>();
 
-		for (Field field : getAllFields(object.getClass()))
+		for (Field field : context.getVisitableFields(object.getClass()))
 		{
-			Class<?> type = field.getType();
-			if (isValidField(field))
+			Object value = getValue(field, object);
+			if (value != null)
 			{
-				field.setAccessible(true);
-
-				Object value = getValue(field, object);
-				if (value != null)
+				Class<?> implType = HibernateProxyHelper.getClassWithoutInitializingProxy(value);
+				
+				ClassMetadata metadata = context.getClassMetadata(implType);
+				if (metadata == null)
 				{
-					Class<?> implType = HibernateProxyHelper.getClassWithoutInitializingProxy(value);
-					
-					SessionImpl sessionImpl = (SessionImpl) sessionFinder.getHibernateSession(implType);
-					ClassMetadata metadata = sessionImpl.getFactory().getClassMetadata(implType);
-					if (metadata == null)
+					toWalk.add(value);
+				}
+				else if (!(value instanceof Proxied))
+				{
+					if (Hibernate.isInitialized(value))
 					{
+						value = ObjectHelper.deproxy(value);
+						setValue(field, object, value);
+
+						LOG.debug("Deproxying intialized value [{}.{}]", object.getClass().getName(),
+							field.getName());
+
 						toWalk.add(value);
 					}
-					else if (!(value instanceof Proxied))
+					else
 					{
-						if (Hibernate.isInitialized(value))
-						{
-							value = ObjectHelper.deproxy(value);
-							setValue(field, object, value);
-
-							LOG.debug("Deproxying intialized value [{}.{}]", object.getClass().getName(),
-								field.getName());
-
-							toWalk.add(value);
-						}
-						else
-						{
-							LazyInitializer initializer = ((HibernateProxy) value).getHibernateLazyInitializer();
-							HibernateProperty property = new HibernateProperty(initializer.getPersistentClass(),
-								initializer.getIdentifier());
-							AbstractPropertyDefinition prop = new SimplePropertyDefinition(object, field.getName(),
-								callback, property);
-
-							LOG.debug("Detaching proxy [{}.{}]", object.getClass().getName(), field.getName());
-
-							setValue(field, object, ProxyBuilder.buildProxy(prop));
-							callback.addProxiedProperty(prop);
-						}
+						LazyInitializer initializer = ((HibernateProxy) value).getHibernateLazyInitializer();
+						HibernateProperty property = new HibernateProperty(initializer.getPersistentClass(),
+							initializer.getIdentifier());
+						AbstractPropertyDefinition prop = new SimplePropertyDefinition(object, field.getName(),
+							callback, property);
+
+						LOG.debug("Detaching proxy [{}.{}]", object.getClass().getName(), field.getName());
+
+						setValue(field, object, ProxyBuilder.buildProxy(prop));
+						callback.addProxiedProperty(prop);
 					}
-					else
+				}
+				else
+				{
+					// Still lazy since a previous restore, keep track of it
+					AbstractPropertyDefinition def = ProxyBuilder.getPropertyDefinition(value);
+					if (def != null && def.getOwner() == object && field.getName().equals(def.getProperty()))
 					{
-						LOG.debug("Ignoring own proxied value [{}.{}]", object.getClass().getName(), field.getName());
+						callback.addProxiedProperty(def);
 					}
+
+					LOG.debug("Ignoring own proxied value [{}.{}]", object.getClass().getName(), field.getName());
 				}
 			}
 		}
@@ -121,26 +125,6 @@ public class BasicObjectVisitor implements VisitorStrategy
 		return toWalk;
 	}
 
-	/**
-	 * Checks if the given field is valid to visit
-	 * 
-	 * @param field
-	 *            the field to check
-	 * @return <code>true</code> if the field is valid
-	 */
-	private boolean isValidField(Field field)
-	{
-		boolean valid = field != null && field.getType().getPackage() != null && !field.getType().isPrimitive();
-		
-		if (valid)
-		{
-			int modifiers = field.getModifiers();
-			valid = !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers);
-		}
-
-		return valid;
-	}
-
 	/**
 	 * Get a value by invoking a getter
 	 * 
@@ -185,24 +169,4 @@ public class BasicObjectVisitor implements VisitorStrategy
 			LOG.error(String.format("Error while setting field %s on bean %s", field, object), e);
 		}
 	}
-
-	/**
-	 * Alle declared fields on a object hierarchy
-	 * 
-	 * @param clazz
-	 *            starting {@link Class}
-	 * @return all declared {@link Field}s
-	 */
-	private List<Field> getAllFields(Class<?> clazz)
-	{
-		List<Field> fields = new ArrayList<>();
-
-		if (clazz != Object.class)
-		{
-			fields.addAll(Arrays.asList(clazz.getDeclaredFields()));
-			fields.addAll(getAllFields(clazz.getSuperclass()));
-		}
-
-		return fields;
-	}
 }
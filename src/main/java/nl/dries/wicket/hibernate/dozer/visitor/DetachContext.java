@@ -0,0 +1,191 @@
+package nl.dries.wicket.hibernate.dozer.visitor;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.dries.wicket.hibernate.dozer.SessionFinder;
+import nl.dries.wicket.hibernate.dozer.helper.Seen;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+
+/**
+ * State shared by the walks of one or more models: the session and class metadata lookups and the visitable fields
+ * (class plan) are resolved once per class, the seen set is cleared and reused by every walk. Also counts the models,
+ * nodes and proxies handled. A context is not thread safe and should only be used while its sessions are open (one
+ * request).
+ *
+ * @author dries
+ */
+public class DetachContext implements SessionFinder
+{
+	/** The session finder */
+	private final SessionFinder sessionFinder;
+
+	/** Sessions by class (may be <code>null</code>) */
+	private final Map<Class<?>, Session> sessions = new HashMap<>();
+
+	/** Class metadata by class (<code>null</code> when not an entity) */
+	private final Map<Class<?>, ClassMetadata> metadata = new HashMap<>();
+
+	/** Visitable fields by class */
+	private final Map<Class<?>, List<Field>> plans = new HashMap<>();
+
+	/** Seen objects of the current walk */
+	private final Seen seen = new Seen();
+
+	/** Number of models detached */
+	private int modelCount;
+
+	/** Number of objects walked */
+	private int nodeCount;
+
+	/** Number of lightweight proxies registered */
+	private int proxyCount;
+
+	/**
+	 * Construct
+	 *
+	 * @param sessionFinder
+	 *            the {@link SessionFinder}
+	 */
+	public DetachContext(SessionFinder sessionFinder)
+	{
+		this.sessionFinder = sessionFinder;
+	}
+
+	/**
+	 * @see nl.dries.wicket.hibernate.dozer.SessionFinder#getHibernateSession(java.lang.Class)
+	 */
+	@Override
+	public Session getHibernateSession(Class<?> clazz)
+	{
+		Session session = sessions.get(clazz);
+		if (session == null && !sessions.containsKey(clazz))
+		{
+			session = sessionFinder.getHibernateSession(clazz);
+			sessions.put(clazz, session);
+		}
+		return session;
+	}
+
+	/**
+	 * @param clazz
+	 *            the class
+	 * @return its {@link ClassMetadata}, <code>null</code> when not an entity or no session is available
+	 */
+	public ClassMetadata getClassMetadata(Class<?> clazz)
+	{
+		ClassMetadata classMetadata = metadata.get(clazz);
+		if (classMetadata == null && !metadata.containsKey(clazz))
+		{
+			SessionImplementor sessionImpl = (SessionImplementor) getHibernateSession(clazz);
+			classMetadata = sessionImpl == null ? null : sessionImpl.getFactory().getClassMetadata(clazz);
+			metadata.put(clazz, classMetadata);
+		}
+		return classMetadata;
+	}
+
+	/**
+	 * @param clazz
+	 *            the class
+	 * @return the (accessible) non static, non transient, non primitive fields of the class and its superclasses
+	 */
+	public List<Field> getVisitableFields(Class<?> clazz)
+	{
+		List<Field> fields = plans.get(clazz);
+		if (fields == null)
+		{
+			fields = new ArrayList<>();
+			for (Class<?> current = clazz; current != null && current != Object.class; current = current
+				.getSuperclass())
+			{
+				for (Field field : current.getDeclaredFields())
+				{
+					if (isVisitable(field))
+					{
+						field.setAccessible(true);
+						fields.add(field);
+					}
+				}
+			}
+			fields = Collections.unmodifiableList(fields);
+			plans.put(clazz, fields);
+		}
+		return fields;
+	}
+
+	/**
+	 * Checks if the given field is valid to visit
+	 *
+	 * @param field
+	 *            the field to check
+	 * @return <code>true</code> if the field is valid
+	 */
+	private static boolean isVisitable(Field field)
+	{
+		boolean valid = field.getType().getPackage() != null && !field.getType().isPrimitive();
+
+		if (valid)
+		{
+			int modifiers = field.getModifiers();
+			valid = !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers);
+		}
+
+		return valid;
+	}
+
+	/**
+	 * @return the seen set, emptied for a new walk
+	 */
+	Seen newSeen()
+	{
+		seen.clear();
+		return seen;
+	}
+
+	/**
+	 * Records a detached model
+	 *
+	 * @param nodes
+	 *            number of objects walked
+	 * @param proxies
+	 *            number of lightweight proxies registered
+	 */
+	public void modelDetached(int nodes, int proxies)
+	{
+		modelCount++;
+		nodeCount += nodes;
+		proxyCount += proxies;
+	}
+
+	/**
+	 * @return number of models detached
+	 */
+	public int getModelCount()
+	{
+		return modelCount;
+	}
+
+	/**
+	 * @return number of objects walked
+	 */
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+
+	/**
+	 * @return number of lightweight proxies registered
+	 */
+	public int getProxyCount()
+	{
+		return proxyCount;
+	}
+}
@@ -1,13 +1,16 @@
 package nl.dries.wicket.hibernate.dozer.visitor;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import nl.dries.wicket.hibernate.dozer.DozerSettings;
+import nl.dries.wicket.hibernate.dozer.StalePolicy;
+import nl.dries.wicket.hibernate.dozer.helper.CanonicalCache;
 import nl.dries.wicket.hibernate.dozer.helper.HibernateCollectionType;
 import nl.dries.wicket.hibernate.dozer.helper.HibernateProperty;
 import nl.dries.wicket.hibernate.dozer.helper.ModelCallback;
@@ -19,8 +22,6 @@ import nl.dries.wicket.hibernate.dozer.proxy.Proxied;
 import nl.dries.wicket.hibernate.dozer.proxy.ProxyBuilder;
 
 import org.hibernate.Hibernate;
-import org.hibernate.collection.internal.PersistentMap;
-import org.hibernate.collection.internal.PersistentSet;
 import org.hibernate.collection.spi.PersistentCollection;
 import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.metadata.ClassMetadata;
@@ -72,6 +73,11 @@ public class HibernateObjectVisitor implements VisitorStrategy
 	{
 		Serializable identifier = metadata.getIdentifier(object, sessionImpl);
 
+		if (metadata.isVersioned() && identifier != null && DozerSettings.getStalePolicy() != StalePolicy.NONE)
+		{
+			callback.addVersionedEntity(object);
+		}
+
 		Set<Object> toWalk = new HashSet<>();
 
 		for (String propertyName : metadata.getPropertyNames())
@@ -86,7 +92,19 @@ public class HibernateObjectVisitor implements VisitorStrategy
 				{
 					Object[] logVals = new Object[] { identifier, metadata.getMappedClass().getName(), propertyName };
 
-					if (!Hibernate.isInitialized(value))
+					if (value instanceof Proxied)
+					{
+						// Still lazy since a previous restore, keep track of it without invoking the proxy (which
+						// would attach it)
+						AbstractPropertyDefinition def = ProxyBuilder.getPropertyDefinition(value);
+						if (def != null && def.getOwner() == object && propertyName.equals(def.getProperty()))
+						{
+							callback.addProxiedProperty(def);
+						}
+
+						LOG.debug("Ignoring own proxied value [#{} {}.{}]", logVals);
+					}
+					else if (!Hibernate.isInitialized(value))
 					{
 						handleProxy(object, propertyName, value);
 
@@ -96,22 +114,41 @@ public class HibernateObjectVisitor implements VisitorStrategy
 					{
 						Object plain = convertToPlainCollection(object, propertyName, value);
 
-						LOG.debug("Replacing initialized collection [#{} {}.{}]", logVals);
+						if (plain == null)
+						{
+							// Custom collection without a plain counterpart, detached as lazy collection
+							handleProxy(object, propertyName, value);
+
+							LOG.debug("Detaching custom collection [#{} {}.{}]", logVals);
+						}
+						else
+						{
+							LOG.debug("Replacing initialized collection [#{} {}.{}]", logVals);
 
-						toWalk.add(plain);
+							toWalk.add(plain);
+						}
 					}
-					else if (!(value instanceof Proxied))
+					else
 					{
 						value = ObjectHelper.deproxy(value);
-						ObjectHelper.setValue(object, propertyName, value);
 
-						LOG.debug("Deproxying intialized value [#{} {}.{}]", logVals);
+						Object shared = DozerSettings.isCanonicalReferenceData() ? CanonicalCache.canonicalize(value,
+							sessionImpl) : null;
+						if (shared != null)
+						{
+							// Shared reference data, nothing to walk
+							ObjectHelper.setValue(object, propertyName, shared);
 
-						toWalk.add(value);
-					}
-					else
-					{
-						LOG.debug("Ignoring own proxied value [#{} {}.{}]", logVals);
+							LOG.debug("Sharing reference data [#{} {}.{}]", logVals);
+						}
+						else
+						{
+							ObjectHelper.setValue(object, propertyName, value);
+
+							LOG.debug("Deproxying intialized value [#{} {}.{}]", logVals);
+
+							toWalk.add(value);
+						}
 					}
 				}
 			}
@@ -129,37 +166,39 @@ public class HibernateObjectVisitor implements VisitorStrategy
 	 *            the property
 	 * @param value
 	 *            input collection
-	 * @return plain collection type
+	 * @return plain collection type, <code>null</code> when the (custom) collection cannot be replaced by a plain one
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	private Object convertToPlainCollection(Object object, String propertyName, Object value)
 	{
 		PersistentCollection collection = (PersistentCollection) value;
-		Object plainCollection = HibernateCollectionType.determineType(collection).createPlainCollection(collection);
+		HibernateCollectionType type = HibernateCollectionType.determineType(collection);
+		Object plainCollection = type.createPlainCollection(collection);
 
-		// Deproxy all the elements in the collection
-		if (plainCollection instanceof List<?>)
+		if (type == HibernateCollectionType.CUSTOM)
 		{
-			List list = (List) plainCollection;
-			for (Iterator<?> iter = ((List) collection).iterator(); iter.hasNext();)
+			// The declared type may be a custom interface
+			Class<?> declaredType = ObjectHelper.getFieldType(object.getClass(), propertyName);
+			if (plainCollection == null || declaredType == null || !declaredType.isInstance(plainCollection))
 			{
-				Object next = iter.next();
-				list.add(ObjectHelper.deproxy(next));
+				return null;
 			}
 		}
-		else if (plainCollection instanceof Set<?>)
+
+		// Deproxy all the elements in the collection
+		if (plainCollection instanceof Collection<?>)
 		{
-			Set set = (Set) plainCollection;
-			for (Iterator<?> iter = ((PersistentSet) collection).iterator(); iter.hasNext();)
+			Collection plain = (Collection) plainCollection;
+			for (Iterator<?> iter = ((Collection) collection).iterator(); iter.hasNext();)
 			{
 				Object next = iter.next();
-				set.add(ObjectHelper.deproxy(next));
+				plain.add(ObjectHelper.deproxy(next));
 			}
 		}
 		else
 		{
 			Map map = (Map) plainCollection;
-			for (Iterator<Entry<?, ?>> iter = ((PersistentMap) collection).entrySet().iterator(); iter.hasNext();)
+			for (Iterator<Entry<?, ?>> iter = ((Map) collection).entrySet().iterator(); iter.hasNext();)
 			{
 				Entry<?, ?> entry = iter.next();
 				map.put(ObjectHelper.deproxy(entry.getKey()), ObjectHelper.deproxy(entry.getValue()));
@@ -188,13 +227,23 @@ public class HibernateObjectVisitor implements VisitorStrategy
 		// Collection
 		if (value instanceof PersistentCollection)
 		{
+			PersistentCollection collection = (PersistentCollection) value;
 			def = new CollectionPropertyDefinition(object, propertyName, callback,
-				HibernateCollectionType.determineType((PersistentCollection) value));
+				HibernateCollectionType.determineType(collection), collection.getRole(), collection.getKey());
 		}
 		// Other
 		else
 		{
 			LazyInitializer initializer = ((HibernateProxy) value).getHibernateLazyInitializer();
+
+			Object shared = DozerSettings.isCanonicalReferenceData() ? CanonicalCache.lookup(
+				initializer.getEntityName(), initializer.getIdentifier(), sessionImpl) : null;
+			if (shared != null)
+			{
+				ObjectHelper.setValue(object, propertyName, shared);
+				return;
+			}
+
 			HibernateProperty property = new HibernateProperty(initializer.getPersistentClass(),
 				initializer.getIdentifier());
 			def = new SimplePropertyDefinition(object, propertyName, callback, property);
@@ -9,8 +9,8 @@ import nl.dries.wicket.hibernate.dozer.SessionFinder;
 import nl.dries.wicket.hibernate.dozer.helper.ModelCallback;
 import nl.dries.wicket.hibernate.dozer.helper.Seen;
 
-import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.proxy.HibernateProxyHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,8 +28,8 @@ public class ObjectVisitor<T>
 	/** Root */
 	private final T root;
 
-	/** */
-	private final SessionFinder sessionFinder;
+	/** Shared lookups */
+	private final DetachContext context;
 
 	/*** */
 	private final ModelCallback callback;
@@ -43,11 +43,24 @@ public class ObjectVisitor<T>
 	 * @param callback
 	 */
 	public ObjectVisitor(T root, SessionFinder sessionFinder, ModelCallback callback)
+	{
+		this(root, new DetachContext(sessionFinder), callback);
+	}
+
+	/**
+	 * Construct sharing the lookups and the seen set of a {@link DetachContext}, the seen set is reused so only one
+	 * walk of a context can be in progress
+	 * 
+	 * @param root
+	 * @param context
+	 * @param callback
+	 */
+	public ObjectVisitor(T root, DetachContext context, ModelCallback callback)
 	{
 		this.root = root;
-		this.sessionFinder = sessionFinder;
+		this.context = context;
 		this.callback = callback;
-		this.seen = new Seen();
+		this.seen = context.newSeen();
 	}
 
 	/**
@@ -61,6 +74,14 @@ public class ObjectVisitor<T>
 		return root;
 	}
 
+	/**
+	 * @return number of objects visited by {@link #walk()}
+	 */
+	public int getVisitedCount()
+	{
+		return seen.size();
+	}
+
 	/**
 	 * Recursive walker
 	 * 
@@ -71,7 +92,7 @@ public class ObjectVisitor<T>
 	{
 		Class<?> objectClass = HibernateProxyHelper.getClassWithoutInitializingProxy(current);
 
-		SessionImplementor sessionImpl = (SessionImplementor) sessionFinder.getHibernateSession(objectClass);
+		SessionImplementor sessionImpl = (SessionImplementor) context.getHibernateSession(objectClass);
 
 		if (sessionImpl == null)
 		{
@@ -79,12 +100,12 @@ public class ObjectVisitor<T>
 			return;
 		}
 
-		SessionFactoryImplementor factory = sessionImpl.getFactory();
+		ClassMetadata metadata = context.getClassMetadata(objectClass);
 
 		final VisitorStrategy strategy;
-		if (factory.getClassMetadata(objectClass) != null)
+		if (metadata != null)
 		{
-			strategy = new HibernateObjectVisitor(sessionImpl, callback, factory.getClassMetadata(objectClass));
+			strategy = new HibernateObjectVisitor(sessionImpl, callback, metadata);
 		}
 		else if (current instanceof Collection<?>)
 		{
@@ -94,9 +115,13 @@ public class ObjectVisitor<T>
 		{
 			strategy = new MapVisitor();
 		}
+		else if (current instanceof Object[])
+		{
+			strategy = new ArrayVisitor();
+		}
 		else
 		{
-			strategy = new BasicObjectVisitor(sessionFinder, callback);
+			strategy = new BasicObjectVisitor(context, callback);
 		}
 
 		seen.add(current);
@@ -9,28 +9,74 @@ import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Random;
+import java.util.Set;
+
+import nl.dries.wicket.hibernate.dozer.DozerStatistics.Counter;
+import nl.dries.wicket.hibernate.dozer.helper.AdaptivePrefetch;
+import nl.dries.wicket.hibernate.dozer.helper.Attacher;
+import nl.dries.wicket.hibernate.dozer.helper.CanonicalCache;
+import nl.dries.wicket.hibernate.dozer.helper.HibernateCollectionType;
+import nl.dries.wicket.hibernate.dozer.helper.ModelKey;
 import nl.dries.wicket.hibernate.dozer.model.AbstractOrganization;
 import nl.dries.wicket.hibernate.dozer.model.AbstractTreeObject;
+import nl.dries.wicket.hibernate.dozer.model.CollectionObject;
 import nl.dries.wicket.hibernate.dozer.model.Adres;
 import nl.dries.wicket.hibernate.dozer.model.Company;
+import nl.dries.wicket.hibernate.dozer.model.Country;
+import nl.dries.wicket.hibernate.dozer.model.CustomBag;
 import nl.dries.wicket.hibernate.dozer.model.DescTreeObject;
 import nl.dries.wicket.hibernate.dozer.model.MapObject;
 import nl.dries.wicket.hibernate.dozer.model.NonHibernateObject;
 import nl.dries.wicket.hibernate.dozer.model.Person;
 import nl.dries.wicket.hibernate.dozer.model.RootTreeObject;
-
+import nl.dries.wicket.hibernate.dozer.model.VersionedObject;
+import nl.dries.wicket.hibernate.dozer.properties.CollectionPropertyDefinition;
+import nl.dries.wicket.hibernate.dozer.proxy.Proxied;
+import nl.dries.wicket.hibernate.dozer.store.MemoryBudget;
+import nl.dries.wicket.hibernate.dozer.store.MemoryBudgetRegistry;
+import nl.dries.wicket.hibernate.dozer.store.OffHeapArena;
+import nl.dries.wicket.hibernate.dozer.store.SpillFileRegistry;
+import nl.dries.wicket.hibernate.dozer.store.SpillingList;
+
+import org.apache.wicket.Session;
 import org.apache.wicket.ThreadContext;
 import org.apache.wicket.model.Model;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.serialize.java.JavaSerializer;
+import org.hibernate.Hibernate;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.Transaction;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +91,70 @@ public class DozerModelTest extends AbstractWicketHibernateTest
 	/** Logger */
 	private static final Logger LOG = LoggerFactory.getLogger(DozerModelTest.class);
 
+	/**
+	 * The settings and statistics are static, restore the defaults so a failing test does not affect the others
+	 */
+	@After
+	public void resetSettings()
+	{
+		DozerSettings.setLazyRestore(false);
+		DozerSettings.setBatchAttach(false);
+		DozerSettings.setBatchSize(50);
+		DozerSettings.setSecondLevelCacheFirst(false);
+		DozerSettings.setAdaptivePrefetch(false);
+		DozerSettings.setAdaptivePrefetchMaxEntries(1000);
+		DozerSettings.setCompactSerialization(true);
+		DozerSettings.setReferenceDetach(false);
+		DozerSettings.setStalePolicy(StalePolicy.NONE);
+		DozerSettings.setCompressDetached(false);
+		DozerSettings.setCompressThreshold(200);
+		DozerSettings.setOffHeapArena(null);
+		DozerSettings.setSpillResidentRows(0);
+		DozerSettings.setSessionBudget(0);
+		DozerSettings.setCanonicalReferenceData(false);
+
+		DozerStatistics.reset();
+		AdaptivePrefetch.clear();
+		CanonicalCache.clear();
+	}
+
+	/**
+	 * Save persons named after their id, flush and clear the session
+	 * 
+	 * @param from
+	 *            id of the first person
+	 * @param to
+	 *            id after the last person
+	 * @param withAdres
+	 *            also save an address with the same id for each person
+	 * @return the saved (now detached) persons
+	 */
+	private List<Person> savePersons(long from, long to, boolean withAdres)
+	{
+		List<Person> persons = new ArrayList<>();
+		for (long id = from; id < to; id++)
+		{
+			Person person = new Person();
+			person.setId(id);
+			person.setName("person" + id);
+			getSession().saveOrUpdate(person);
+			persons.add(person);
+
+			if (withAdres)
+			{
+				Adres adres = new Adres();
+				adres.setId(id);
+				adres.setStreet("street" + id);
+				adres.setPerson(person);
+				person.getAdresses().add(adres);
+				getSession().saveOrUpdate(adres);
+			}
+		}
+		getSession().flush();
+		getSession().clear();
+		return persons;
+	}
+
 	/**
 	 * Model ceate and get
 	 */
@@ -75,206 +185,1870 @@ public class DozerModelTest extends AbstractWicketHibernateTest
 	}
 
 	/**
-	 * Detach with proxies
+	 * Detach with proxies
+	 */
+	@Test
+	public void testLoadedDetach()
+	{
+		Person person = new Person();
+		person.setId(1L);
+		person.setName("test");
+
+		Adres adres = new Adres();
+		adres.setId(1L);
+		adres.setStreet("street");
+		adres.setPerson(person);
+		person.getAdresses().add(adres);
+
+		getSession().saveOrUpdate(person);
+		getSession().flush();
+		getSession().clear();
+
+		adres.setPerson((Person) getSession().load(Person.class, 1L)); // Forcing proxy
+		DozerModel<Adres> model = new DozerModel<>(adres);
+		model.detach();
+		model = serialize(model);
+
+		assertEquals(person, model.getObject().getPerson());
+		assertEquals(person.getAdresses().get(0), model.getObject().getPerson().getAdresses().get(0));
+		assertEquals(person.getName(), model.getObject().getPerson().getName());
+	}
+
+	/**
+	 * Detach with list proxy
+	 */
+	@Test
+	public void testLoadedListDetach()
+	{
+		Person person = new Person();
+		person.setId(1L);
+		person.setName("test");
+
+		Adres adres = new Adres();
+		adres.setId(1L);
+		adres.setStreet("street");
+		adres.setPerson(person);
+		person.getAdresses().add(adres);
+
+		getSession().saveOrUpdate(person);
+		getSession().flush();
+		getSession().clear();
+
+		person.setAdresses(Arrays.asList((Adres) getSession().load(Adres.class, 1L))); // Forcing proxy
+
+		DozerModel<Person> model = new DozerModel<>(person);
+		model.detach();
+		model = serialize(model);
+
+		assertEquals(person, model.getObject());
+		assertEquals(adres, model.getObject().getAdresses().get(0));
+	}
+
+	/**
+	 * Tree test
+	 */
+	@Test
+	public void testWithTree()
+	{
+		DozerModel<RootTreeObject> model = new DozerModel<>(RootTreeObject.class, buildTree().getId());
+
+		model.getObject().getName(); // Root initialization
+		model.detach();
+		model = serialize(model);
+
+		assertEquals(2, model.getObject().getChildren().size());
+		assertEquals(1, model.getObject().getChildren().get(0).getChildren().size());
+	}
+
+	/**
+	 * Tree test, using child as a starting point
+	 */
+	@Test
+	public void testWithTreeUsingChild()
+	{
+		buildTree();
+
+		DescTreeObject child = (DescTreeObject) getSession().load(DescTreeObject.class, 2L);
+		child.setParent((RootTreeObject) getSession().load(RootTreeObject.class, 1L));
+
+		DozerModel<DescTreeObject> model = new DozerModel<>(child);
+		model.detach();
+		model = serialize(model);
+
+		assertEquals(1, model.getObject().getChildren().size());
+		assertEquals("root", model.getObject().getParent().getName());
+	}
+
+	/**
+	 * Tree
+	 */
+	@Test
+	public void testTree()
+	{
+		DozerModel<AbstractTreeObject> model = new DozerModel<>(buildTree());
+		model.detach();
+		model = serialize(model);
+	}
+
+	/**
+	 * Test a tree on which 2 branches resolve to the same node
+	 */
+	@Test
+	public void testTreeWithSameBranches()
+	{
+		DozerModel<AbstractTreeObject> model = new DozerModel<>(buildTree());
+		model.detach();
+		model = serialize(model);
+
+		AbstractTreeObject newChild = new DescTreeObject();
+		newChild.setName("Temp");
+		newChild.getChildren().add((AbstractTreeObject) getSession().load(DescTreeObject.class, 3L));
+		model.getObject().getChildren().get(1).getChildren().add(newChild);
+		model.detach();
+
+		assertFalse(model.getObject().getChildren().get(1).getChildren().get(0).getChildren().get(0) instanceof HibernateProxy);
+	}
+
+	/**
+	 * Abstract property in mapping
+	 */
+	@Test
+	public void testWithAbstractProperty()
+	{
+		Person person = new Person();
+		person.setId(1L);
+		person.setName("name");
+
+		Company company = new Company();
+		company.setId(1L);
+
+		Adres adres = new Adres();
+		adres.setStreet("street");
+		company.setAdres(adres);
+
+		person.setOrganization(company);
+
+		DozerModel<Person> model = new DozerModel<>(person);
+		model.detach();
+		model = serialize(model);
+
+		assertEquals(company, model.getObject().getOrganization());
+		assertEquals(adres, ((Company) model.getObject().getOrganization()).getAdres());
+	}
+
+	/**
+	 * Test a collection that is attached, next the session is flushed. Caused a lazy-init.
+	 */
+	@Test
+	public void testCollectionWithFlush()
+	{
+		Person person = new Person();
+		person.setId(1L);
+		person.setName("person");
+		getSession().saveOrUpdate(person);
+
+		Adres adres = new Adres();
+		adres.setId(1L);
+		adres.setStreet("street");
+		adres.setPerson(person);
+		person.getAdresses().add(adres);
+		getSession().saveOrUpdate(adres);
+
+		getSession().flush();
+		getSession().clear();
+
+		DozerModel<Person> model = new DozerModel<>((Person) getSession().load(Person.class, 1L));
+		model.detach();
+		model = serialize(model);
+
+		// Trigger attach
+		model.getObject();
+
+		// Force flush
+		getSession().flush();
+
+		// Check adress
+		assertEquals("street", model.getObject().getAdresses().get(0).getStreet());
+	}
+
+	/**
+	 * Lazy restore, detached properties should only be attached when invoked
+	 */
+	@Test
+	public void testLazyRestore()
+	{
+		savePersons(1, 2, true);
+
+		DozerSettings.setLazyRestore(true);
+		DozerModel<Person> model = new DozerModel<>((Person) getSession().load(Person.class, 1L));
+		model.detach();
+		model = serialize(model);
+
+		PersistenceContext persistenceContext = ((SessionImplementor) getSession()).getPersistenceContext();
+
+		model.getObject();
+		assertTrue(persistenceContext.getCollectionEntries().isEmpty());
+
+		assertEquals("street1", model.getObject().getAdresses().get(0).getStreet());
+		assertFalse(persistenceContext.getCollectionEntries().isEmpty());
+	}
+
+	/**
+	 * Lazy restore, detaching a restored model again without touching its properties should not attach them
+	 */
+	@Test
+	public void testLazyRestoreRepeatedDetach()
+	{
+		savePersons(1, 2, true);
+
+		DozerSettings.setLazyRestore(true);
+		DozerModel<Person> model = new DozerModel<>((Person) getSession().load(Person.class, 1L));
+		model.detach();
+		model = serialize(model);
+
+		PersistenceContext persistenceContext = ((SessionImplementor) getSession()).getPersistenceContext();
+
+		for (int cycle = 0; cycle < 2; cycle++)
+		{
+			model.getObject();
+			model.detach();
+
+			assertTrue(persistenceContext.getCollectionEntries().isEmpty());
+			assertTrue(model.getObject().getAdresses() instanceof Proxied);
+		}
+		assertTrue(persistenceContext.getCollectionEntries().isEmpty());
+
+		assertEquals("street1", model.getObject().getAdresses().get(0).getStreet());
+		assertFalse(persistenceContext.getCollectionEntries().isEmpty());
+	}
+
+	/**
+	 * Adaptive prefetch, a property touched after every lazy restore should be attached directly after a few rounds
+	 */
+	@Test
+	public void testAdaptivePrefetch()
+	{
+		savePersons(1, 2, true);
+
+		DozerSettings.setLazyRestore(true);
+		DozerSettings.setAdaptivePrefetch(true);
+		for (int round = 0; round < 4; round++)
+		{
+			getSession().clear();
+
+			DozerModel<Person> model = new DozerModel<>((Person) getSession().load(Person.class, 1L));
+			model.detach();
+			model = serialize(model);
+
+			PersistenceContext persistenceContext = ((SessionImplementor) getSession()).getPersistenceContext();
+
+			model.getObject();
+			assertEquals(round < 3, persistenceContext.getCollectionEntries().isEmpty());
+
+			assertEquals("street1", model.getObject().getAdresses().get(0).getStreet());
+		}
+		assertEquals(2, AdaptivePrefetch.size()); // adresses and pets
+	}
+
+	/**
+	 * Adaptive prefetch over several request cycles of the same model, properties that are never touched should not be
+	 * counted as touched when the model is detached again (and so never become hot)
+	 */
+	@Test
+	public void testAdaptivePrefetchRepeatedDetach()
+	{
+		savePersons(1, 2, true);
+
+		DozerSettings.setLazyRestore(true);
+		DozerSettings.setAdaptivePrefetch(true);
+		DozerModel<Person> model = new DozerModel<>((Person) getSession().load(Person.class, 1L));
+		model.detach();
+		model = serialize(model);
+
+		PersistenceContext persistenceContext = ((SessionImplementor) getSession()).getPersistenceContext();
+
+		for (int cycle = 0; cycle < 6; cycle++)
+		{
+			assertEquals("person1", model.getObject().getName());
+			assertTrue(persistenceContext.getCollectionEntries().isEmpty());
+
+			model.detach();
+		}
+	}
+
+	/**
+	 * Reference detach, an unmodified entity should be detached as a reference and a modified one with its state
+	 */
+	@Test
+	public void testReferenceDetach()
+	{
+		Person person = new Person();
+		person.setId(1L);
+		person.setName("person");
+		getSession().saveOrUpdate(person);
+		getSession().flush();
+		getSession().clear();
+
+		DozerSettings.setReferenceDetach(true);
+		DozerStatistics.reset();
+		DozerModel<Person> model = new DozerModel<>((Person) getSession().get(Person.class, 1L));
+		model.detach();
+		model = serialize(model);
+
+		assertEquals(1, DozerStatistics.get(Counter.REFERENCE_DETACHES));
+		assertEquals("person", model.getObject().getName());
+
+		model.getObject().setName("changed");
+		model.detach();
+		model = serialize(model);
+
+		assertEquals(1, DozerStatistics.get(Counter.FULL_DETACHES));
+		assertEquals("changed", model.getObject().getName());
+	}
+
+	/**
+	 * Batch loading while attaching should not flush the changes made in the request
+	 */
+	@Test
+	public void testBatchLoadDoesNotFlush()
+	{
+		savePersons(830, 834, false);
+
+		// Hibernate only flushes before a query within a transaction
+		Transaction transaction = getSession().beginTransaction();
+		((Person) getSession().get(Person.class, 830L)).setName("changed");
+
+		Statistics statistics = getSession().getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+		try
+		{
+			SessionImplementor sessionImpl = (SessionImplementor) getSession();
+			List<?> loaded = Attacher.load(sessionImpl, sessionImpl.getFactory().getEntityPersister(
+				Person.class.getName()), Arrays.<Serializable> asList(831L, 832L, 833L));
+
+			assertEquals(3, loaded.size());
+			assertEquals(0, statistics.getFlushCount());
+			assertEquals(0, statistics.getEntityUpdateCount());
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(false);
+			transaction.rollback();
+		}
+	}
+
+	/**
+	 * Version check on attach, a stale entity should be found with one query and refreshed
+	 */
+	@Test
+	public void testStaleRefresh()
+	{
+		DozerModel<List<VersionedObject>> model = createVersionedModel(1L);
+
+		DozerSettings.setStalePolicy(StalePolicy.REFRESH);
+		DozerStatistics.reset();
+		List<VersionedObject> objects = model.getObject();
+
+		assertEquals(1, DozerStatistics.get(Counter.VERSION_CHECK_QUERIES));
+		assertEquals(1, model.getStaleEntities().size());
+		assertEquals(2L, model.getStaleEntities().get(0).getId());
+		assertEquals("one", objects.get(0).getName());
+		assertEquals("changed", objects.get(1).getName());
+		assertEquals(Integer.valueOf(1), objects.get(1).getVersion());
+	}
+
+	/**
+	 * Version check on attach, a stale entity should fail the attach
+	 */
+	@Test(expected = StaleObjectStateException.class)
+	public void testStaleFail()
+	{
+		DozerModel<List<VersionedObject>> model = createVersionedModel(3L);
+
+		DozerSettings.setStalePolicy(StalePolicy.FAIL);
+		model.getObject();
+	}
+
+	/**
+	 * Version check of a list, every row holding a stale entity should be refreshed and rows with a serialized state
+	 * should only be checked when they are read
+	 */
+	@Test
+	public void testStaleListRows()
+	{
+		getSession().saveOrUpdate(new VersionedObject(802L, "one"));
+		getSession().saveOrUpdate(new VersionedObject(803L, "two"));
+		getSession().flush();
+		getSession().clear();
+
+		// Two instances of the same entity, loaded by different sessions
+		VersionedObject copy = (VersionedObject) getSession().get(VersionedObject.class, 802L);
+		getSession().clear();
+		VersionedObject first = (VersionedObject) getSession().get(VersionedObject.class, 802L);
+		VersionedObject second = (VersionedObject) getSession().get(VersionedObject.class, 803L);
+		DozerListModel<VersionedObject> same = new DozerListModel<>(Arrays.asList(first, copy));
+		DozerListModel<VersionedObject> compressed = new DozerListModel<>(Arrays.asList(first, second));
+
+		DozerSettings.setStalePolicy(StalePolicy.REFRESH);
+		same.detach();
+		DozerSettings.setCompressDetached(true);
+		DozerSettings.setCompressThreshold(1);
+		compressed.detach();
+		DozerSettings.setCompressDetached(false);
+
+		getSession().createQuery("update versioned set name = 'changed', version = version + 1 where id = 802")
+			.executeUpdate();
+		getSession().clear();
+
+		DozerStatistics.reset();
+		List<VersionedObject> rows = same.getObject();
+		assertEquals(1, DozerStatistics.get(Counter.VERSION_CHECK_QUERIES));
+		assertEquals(1, same.getStaleEntities().size());
+		assertEquals("changed", rows.get(0).getName());
+		assertEquals("changed", rows.get(1).getName());
+
+		DozerStatistics.reset();
+		rows = compressed.getObject();
+		assertEquals(0, DozerStatistics.get(Counter.VERSION_CHECK_QUERIES));
+		assertEquals(0, DozerStatistics.get(Counter.MODEL_ATTACHES));
+		assertEquals("changed", rows.get(0).getName());
+		assertEquals(1, DozerStatistics.get(Counter.VERSION_CHECK_QUERIES));
+		assertEquals(1, DozerStatistics.get(Counter.MODEL_ATTACHES));
+		assertEquals(802L, compressed.getStaleEntities().get(0).getId());
+	}
+
+	/**
+	 * @param firstId
+	 *            identifier of the first object
+	 * @return a detached model of two versioned objects, the second one is modified in the database afterwards
+	 */
+	private DozerModel<List<VersionedObject>> createVersionedModel(long firstId)
+	{
+		getSession().saveOrUpdate(new VersionedObject(firstId, "one"));
+		getSession().saveOrUpdate(new VersionedObject(firstId + 1, "two"));
+		getSession().flush();
+		getSession().clear();
+
+		List<VersionedObject> objects = new ArrayList<>();
+		objects.add((VersionedObject) getSession().get(VersionedObject.class, firstId));
+		objects.add((VersionedObject) getSession().get(VersionedObject.class, firstId + 1));
+
+		DozerModel<List<VersionedObject>> model = new DozerModel<List<VersionedObject>>(objects);
+
+		DozerSettings.setStalePolicy(StalePolicy.REPORT);
+		model.detach();
+		model = serialize(model);
+
+		getSession().createQuery("update versioned set name = 'changed', version = version + 1 where id = :id")
+			.setLong("id", firstId + 1).executeUpdate();
+
+		return model;
+	}
+
+	/**
+	 * Compressed detached state, a graph above the threshold should be compressed and restored on attach
+	 */
+	@Test
+	public void testCompressDetached()
+	{
+		Person person = new Person();
+		person.setId(810L);
+		person.setName("person");
+		getSession().saveOrUpdate(person);
+
+		for (long i = 810; i < 820; i++)
+		{
+			Adres adres = new Adres();
+			adres.setId(i);
+			adres.setStreet("street" + i);
+			adres.setPerson(person);
+			person.getAdresses().add(adres);
+			getSession().saveOrUpdate(adres);
+		}
+		getSession().flush();
+		getSession().clear();
+
+		DozerSettings.setCompressDetached(true);
+		DozerSettings.setCompressThreshold(5);
+		DozerStatistics.reset();
+		Person loaded = (Person) getSession().get(Person.class, 810L);
+		loaded.getAdresses().size();
+
+		DozerModel<Person> model = new DozerModel<>(loaded);
+		model.detach();
+		model = serialize(model);
+
+		assertEquals(1, DozerStatistics.get(Counter.COMPRESSED_DETACHES));
+		assertTrue(DozerStatistics.get(Counter.COMPRESSION_COMPRESSED_BYTES) < DozerStatistics
+			.get(Counter.COMPRESSION_RAW_BYTES));
+
+		assertEquals(10, model.getObject().getAdresses().size());
+		assertEquals("person", model.getObject().getAdresses().get(9).getPerson().getName());
+		assertTrue(model.getObject().getPets().isEmpty());
+	}
+
+	/**
+	 * Compressed detached state is written per model, so an entity shared by the graphs of two models is shared while
+	 * the state is on the heap and becomes one copy per model when compressed
+	 */
+	@Test
+	public void testCompressDetachedSharedEntity()
+	{
+		Person person = new Person();
+		person.setId(840L);
+		person.setName("person840");
+		getSession().saveOrUpdate(person);
+		for (long id = 840; id < 842; id++)
+		{
+			Adres adres = new Adres();
+			adres.setId(id);
+			adres.setStreet("street" + id);
+			adres.setPerson(person);
+			getSession().saveOrUpdate(adres);
+		}
+		getSession().flush();
+		getSession().clear();
+
+		for (boolean compress : new boolean[] { false, true })
+		{
+			List<DozerModel<Adres>> models = new ArrayList<>();
+			for (long id = 840; id < 842; id++)
+			{
+				Adres adres = (Adres) getSession().get(Adres.class, id);
+				adres.getPerson().getName();
+				models.add(new DozerModel<>(adres));
+			}
+
+			DozerSettings.setCompressDetached(compress);
+			DozerSettings.setCompressThreshold(1);
+			for (DozerModel<Adres> model : models)
+			{
+				model.detach();
+			}
+
+			@SuppressWarnings("unchecked")
+			List<DozerModel<Adres>> read = serialize(new ArrayList<>(models));
+			Person first = read.get(0).getObject().getPerson();
+			Person second = read.get(1).getObject().getPerson();
+			assertEquals(!compress, first == second);
+			assertEquals(second.getName(), first.getName());
+
+			getSession().clear();
+		}
+	}
+
+	/**
+	 * Lazy list view with batch attach, preparing the view should not read back spilled rows nor inflate compressed
+	 * states; those rows attach themselves when read
+	 */
+	@Test
+	public void testLazyListViewBatch()
+	{
+		List<Person> persons = savePersons(960, 1000, false);
+
+		Session.get().bind();
+		DozerSettings.setSpillResidentRows(8);
+		DozerSettings.setBatchAttach(true);
+		DozerSettings.setCompressDetached(true);
+		DozerSettings.setCompressThreshold(1);
+
+		List<Person> loaded = new ArrayList<>();
+		for (Person person : persons)
+		{
+			loaded.add((Person) getSession().get(Person.class, person.getId()));
+		}
+		DozerListModel<Person> model = new DozerListModel<>(loaded);
+		model.detach();
+		getSession().clear();
+
+		SpillingList<DozerModel<Person>> rows = getSpillingRows(model);
+		assertEquals(32, rows.getSpilledCount());
+
+		DozerStatistics.reset();
+		List<Person> view = model.getObject();
+		assertEquals(32, rows.getSpilledCount());
+		assertEquals(0, DozerStatistics.get(Counter.DECOMPRESSION_NANOS));
+		assertEquals(0, DozerStatistics.get(Counter.MODEL_ATTACHES));
+
+		assertEquals("person960", view.get(0).getName());
+		assertTrue(view.get(0).getAdresses().isEmpty());
+		assertEquals(31, rows.getSpilledCount());
+		assertEquals(1, DozerStatistics.get(Counter.MODEL_ATTACHES));
+
+		new SpillFileRegistry().sessionUnbound(Session.get().getId());
+	}
+
+	/**
+	 * Spilling list model, only the resident rows should stay on the heap while random access keeps working, also
+	 * after serialization, until the session is unbound
+	 */
+	@Test
+	public void testSpillListModel() throws InterruptedException
+	{
+		List<Person> persons = savePersons(200, 260, false);
+
+		Session.get().bind();
+		String sessionId = Session.get().getId();
+
+		DozerSettings.setSpillResidentRows(8);
+		List<Person> loaded = new ArrayList<>();
+		for (Person person : persons)
+		{
+			loaded.add((Person) getSession().get(Person.class, person.getId()));
+		}
+
+		DozerListModel<Person> model = new DozerListModel<>(loaded);
+		model.detach();
+
+		SpillingList<DozerModel<Person>> rows = getSpillingRows(model);
+		assertEquals(52, rows.getSpilledCount());
+		assertEquals(52, rows.getSpillFile().getRecordCount());
+		assertEquals(1, SpillFileRegistry.getOpenFileCount(sessionId));
+
+		Random random = new Random(42);
+		for (int round = 0; round < 5; round++)
+		{
+			for (int i = 0; i < 20; i++)
+			{
+				int index = random.nextInt(60);
+				assertEquals("person" + (200 + index), model.get(index).getName());
+			}
+			model.detach();
+			assertEquals(8, rows.getResident().size());
+
+			if (round == 2)
+			{
+				model = serialize(model);
+				rows = getSpillingRows(model);
+			}
+		}
+
+		assertEquals(60, model.getObject().size());
+		assertEquals("person259", model.getObject().get(59).getName());
+		assertTrue(model.getObject().get(59).getAdresses().isEmpty());
+
+		// The file of the list read before the serialization is closed once that list is collected
+		for (int i = 0; i < 50 && SpillFileRegistry.getOpenFileCount(sessionId) > 1; i++)
+		{
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(1, SpillFileRegistry.getOpenFileCount(sessionId));
+
+		// A spilled row is freed without reading it back
+		int spilled = 0;
+		while (!rows.isSpilled(spilled))
+		{
+			spilled++;
+		}
+		int records = rows.getSpillFile().getRecordCount();
+		assertNull(rows.remove(spilled));
+		assertEquals(records - 1, rows.getSpillFile().getRecordCount());
+
+		File file = rows.getSpillFile().getFile();
+		assertTrue(file.exists());
+		new SpillFileRegistry().sessionUnbound(sessionId);
+		assertTrue(rows.getSpillFile().isClosed());
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * Spilling list model without a bound session, nothing would delete the file so all rows should stay on the heap
+	 */
+	@Test
+	public void testSpillWithoutSession()
+	{
+		List<Person> persons = savePersons(820, 830, false);
+
+		assertFalse(SpillFileRegistry.isSessionBound());
+		DozerSettings.setSpillResidentRows(2);
+		DozerListModel<Person> model = new DozerListModel<>(persons);
+		model.detach();
+
+		SpillingList<DozerModel<Person>> rows = getSpillingRows(model);
+		assertEquals(0, rows.getSpilledCount());
+		assertNull(rows.getSpillFile());
+		assertEquals("person829", model.getObject().get(9).getName());
+	}
+
+	/**
+	 * @param model
+	 *            the list model
+	 * @return its (spilling) rows
+	 */
+	@SuppressWarnings("unchecked")
+	private SpillingList<DozerModel<Person>> getSpillingRows(DozerListModel<Person> model)
+	{
+		try
+		{
+			Field field = DozerListModel.class.getDeclaredField("models");
+			field.setAccessible(true);
+			return (SpillingList<DozerModel<Person>>) field.get(model);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Off-heap detached state, the state should be kept in the arena and freed again on attach
+	 */
+	@Test
+	public void testOffHeapArena()
+	{
+		savePersons(1, 2, true);
+
+		OffHeapArena arena = new OffHeapArena(64 * 1024, 512, 4);
+		DozerSettings.setOffHeapArena(arena);
+		Person loaded = (Person) getSession().get(Person.class, 1L);
+		loaded.getAdresses().size();
+
+		DozerModel<Person> model = new DozerModel<>(loaded);
+		model.detach();
+
+		assertEquals(1, arena.getEntryCount());
+		assertTrue(arena.getUsedBytes() > 0);
+
+		model = serialize(model);
+		assertEquals(2, arena.getEntryCount());
+
+		assertFalse(model.getObject().getAdresses().isEmpty());
+		assertEquals("person1", model.getObject().getAdresses().get(0).getPerson().getName());
+		assertEquals(1, arena.getEntryCount());
+	}
+
+	/**
+	 * Batched attach, the detached persons of all rows should be loaded using one query
+	 */
+	@Test
+	public void testBatchAttach()
+	{
+		assertEquals(5, countAdresPersonStatements(false));
+		assertEquals(1, countAdresPersonStatements(true));
+	}
+
+	/**
+	 * Counts the statements needed to access the (detached) persons of a list of adresses
+	 *
+	 * @param batchAttach
+	 *            use batched attach
+	 * @return number of prepared statements
+	 */
+	private long countAdresPersonStatements(boolean batchAttach)
+	{
+		List<Adres> adresses = new ArrayList<>();
+		for (long i = 1; i <= 5; i++)
+		{
+			Person person = new Person();
+			person.setId(i);
+			person.setName("person" + i);
+			getSession().saveOrUpdate(person);
+
+			Adres adres = new Adres();
+			adres.setId(i);
+			adres.setStreet("street" + i);
+			adres.setPerson(person);
+			getSession().saveOrUpdate(adres);
+
+			adresses.add(adres);
+		}
+
+		getSession().flush();
+		getSession().clear();
+
+		for (Adres adres : adresses)
+		{
+			adres.setPerson((Person) getSession().load(Person.class, adres.getPerson().getId())); // Forcing proxy
+		}
+
+		DozerListModel<Adres> model = new DozerListModel<>(adresses);
+		model.detach();
+		model = serialize(model);
+
+		Statistics statistics = getSession().getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+
+		DozerSettings.setBatchAttach(batchAttach);
+		try
+		{
+			for (Adres adres : model.getObject())
+			{
+				assertEquals("person" + adres.getId(), adres.getPerson().getName());
+			}
+
+			return statistics.getPrepareStatementCount();
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(false);
+
+			closeSession();
+			openSession();
+		}
+	}
+
+	/**
+	 * Batched attach of collections, the detached children of all rows should be initialized using one query
+	 */
+	@Test
+	public void testBatchAttachCollections()
+	{
+		assertEquals(10, countTreeChildrenStatements(false));
+		assertEquals(1, countTreeChildrenStatements(true));
+	}
+
+	/**
+	 * Counts the statements needed to access the (detached) children of a list of tree objects
+	 *
+	 * @param batchAttach
+	 *            use batched attach
+	 * @return number of prepared statements
+	 */
+	private long countTreeChildrenStatements(boolean batchAttach)
+	{
+		List<Long> ids = new ArrayList<>();
+		for (long i = 10; i < 20; i++)
+		{
+			AbstractTreeObject root = new RootTreeObject(i, "root" + i);
+			getSession().saveOrUpdate(root);
+
+			for (long j = 0; j < 2; j++)
+			{
+				AbstractTreeObject child = new DescTreeObject(i * 10 + j, "child" + j);
+				child.setParent(root);
+				root.getChildren().add(child);
+				getSession().saveOrUpdate(child);
+			}
+
+			ids.add(i);
+		}
+
+		getSession().flush();
+		getSession().clear();
+
+		List<AbstractTreeObject> roots = new ArrayList<>();
+		for (Long id : ids)
+		{
+			AbstractTreeObject root = (AbstractTreeObject) getSession().get(RootTreeObject.class, id);
+			roots.add(root);
+		}
+
+		DozerListModel<AbstractTreeObject> model = new DozerListModel<>(roots);
+		model.detach();
+		model = serialize(model);
+
+		Statistics statistics = getSession().getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+
+		DozerSettings.setBatchAttach(batchAttach);
+		try
+		{
+			for (AbstractTreeObject root : model.getObject())
+			{
+				assertEquals(2, root.getChildren().size());
+				assertEquals("child0", root.getChildren().get(0).getName());
+			}
+
+			return statistics.getPrepareStatementCount();
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(false);
+
+			closeSession();
+			openSession();
+		}
+	}
+
+	/**
+	 * Attach of a collection heavy graph, the collection definitions should carry their role and owner identifier so
+	 * attaching only loads the collections
+	 */
+	@Test
+	public void testCollectionAttach()
+	{
+		for (long i = 10; i < 20; i++)
+		{
+			getSession().saveOrUpdate(new RootTreeObject(i, "root" + i));
+		}
+		getSession().flush();
+		getSession().clear();
+
+		List<AbstractTreeObject> roots = new ArrayList<>();
+		for (long i = 10; i < 20; i++)
+		{
+			roots.add((AbstractTreeObject) getSession().get(RootTreeObject.class, i));
+		}
+
+		DozerListModel<AbstractTreeObject> model = new DozerListModel<>(roots);
+		model.detach();
+
+		Field field;
+		List<?> models;
+		try
+		{
+			field = DozerListModel.class.getDeclaredField("models");
+			field.setAccessible(true);
+			models = (List<?>) field.get(model);
+
+			field = DozerModel.class.getDeclaredField("proxiedProperties");
+			field.setAccessible(true);
+			CollectionPropertyDefinition def = (CollectionPropertyDefinition) ((List<?>) field.get(models.get(0)))
+				.get(0);
+
+			assertEquals(AbstractTreeObject.class.getName() + ".children", def.getRole());
+			assertEquals(10L, def.getOwnerId());
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		// The role and owner identifier are enough to attach, the owners should not be loaded again
+		int rounds = 3;
+		Statistics statistics = getSession().getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+		try
+		{
+			for (int i = 0; i < rounds; i++)
+			{
+				for (AbstractTreeObject root : model.getObject())
+				{
+					root.getChildren().size();
+				}
+				getSession().clear();
+				model.detach();
+			}
+			// Initialized collections are detached with their elements, only the first round loads them
+			assertEquals(0, statistics.getEntityLoadCount());
+			assertEquals(roots.size(), statistics.getCollectionLoadCount());
+			assertEquals(roots.size(), statistics.getPrepareStatementCount());
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+
+	/**
+	 * Compact wire format, should be smaller than the plain format
+	 */
+	@Test
+	public void testCompactSerialization()
+	{
+		savePersons(1, 21, true);
+
+		List<Adres> adresses = new ArrayList<>();
+		for (long i = 1; i <= 20; i++)
+		{
+			adresses.add((Adres) getSession().get(Adres.class, i));
+		}
+
+		DozerListModel<Adres> model = new DozerListModel<>(adresses);
+		model.detach();
+
+		DozerSettings.setCompactSerialization(false);
+		byte[] plain = toBytes(model);
+
+		DozerSettings.setCompactSerialization(true);
+		byte[] compact = toBytes(model);
+
+		LOG.info("Plain format {} bytes, compact format {} bytes", plain.length, compact.length);
+		assertTrue(compact.length < plain.length);
+
+		model = serialize(model);
+		assertEquals("person20", model.getObject().get(19).getPerson().getName());
+	}
+
+	/**
+	 * Page-wide entity deduplication, two lists with copies of the same entities should share them after reading
+	 */
+	@Test
+	public void testEntityDeduplication()
+	{
+		savePersons(1, 11, true);
+
+		List<DozerListModel<Adres>> page = new ArrayList<>();
+		for (int copy = 0; copy < 2; copy++)
+		{
+			getSession().clear();
+
+			List<Adres> adresses = new ArrayList<>();
+			for (long i = 1; i <= 10; i++)
+			{
+				adresses.add((Adres) getSession().get(Adres.class, i));
+			}
+
+			DozerListModel<Adres> model = new DozerListModel<>(adresses);
+			model.detach();
+			page.add(model);
+		}
+
+		String applicationKey = getWicketTester().getApplication().getApplicationKey();
+		byte[] plain = new JavaSerializer(applicationKey).serialize(page);
+
+		DozerStatistics.reset();
+		DozerSerializer serializer = new DozerSerializer(applicationKey);
+		byte[] deduplicated = serializer.serialize(page);
+
+		LOG.info("Page of {} bytes, {} bytes with deduplication", plain.length, deduplicated.length);
+
+		assertEquals(20, DozerStatistics.get(Counter.DEDUPLICATED_ENTITIES)); // 10 adresses and 10 persons
+		assertTrue(deduplicated.length < plain.length);
+
+		@SuppressWarnings("unchecked")
+		List<DozerListModel<Adres>> read = (List<DozerListModel<Adres>>) serializer.deserialize(deduplicated);
+		assertTrue(read.get(0).getObject().get(0) == read.get(1).getObject().get(0));
+		assertEquals("person1", read.get(1).getObject().get(0).getPerson().getName());
+	}
+
+	/**
+	 * Subclasses only keep their own state when they write it themselves, subclasses without a public no-arg
+	 * constructor should fail when written
+	 */
+	@Test
+	public void testExternalizableSubclass()
+	{
+		Person person = new Person();
+		person.setId(800L);
+		person.setName("person800");
+		getSession().saveOrUpdate(person);
+		getSession().flush();
+
+		LabeledModel model = new LabeledModel((Person) getSession().get(Person.class, 800L), "label");
+		model.detach();
+
+		LabeledModel read = serialize(model);
+		assertEquals("label", read.label);
+		assertEquals("person800", read.getObject().getName());
+
+		DozerModel<Person> anonymous = new DozerModel<Person>((Person) getSession().get(Person.class, 800L))
+		{
+			private static final long serialVersionUID = 1L;
+		};
+		anonymous.detach();
+
+		try
+		{
+			new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(anonymous);
+			fail("Anonymous subclass should not be written");
+		}
+		catch (NotSerializableException e)
+		{
+			assertTrue(e.getMessage().contains("no public no-arg constructor"));
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param object
+	 *            the object to write
+	 * @return its serialized form
+	 */
+	private byte[] toBytes(Serializable object)
+	{
+		try
+		{
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ObjectOutputStream os = new ObjectOutputStream(baos);
+			os.writeObject(object);
+			os.close();
+			return baos.toByteArray();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Second level cache first, a cached detached entity should be attached without creating a proxy
+	 */
+	@Test
+	public void testSecondLevelCacheFirst()
+	{
+		getSession().saveOrUpdate(new Country(1L, "nl"));
+		getSession().flush();
+
+		closeSession();
+		openSession();
+
+		getSession().get(Country.class, 1L); // Puts it in the cache
+		getSession().clear();
+		assertTrue(getSession().getSessionFactory().getCache().containsEntity(Country.class, 1L));
+
+		Adres adres = new Adres();
+		adres.setId(1L);
+		adres.setStreet("street");
+		adres.setCountry((Country) getSession().load(Country.class, 1L)); // Forcing proxy
+
+		DozerModel<Adres> model = new DozerModel<>(adres);
+		model.detach();
+		model = serialize(model);
+
+		Statistics statistics = getSession().getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+		DozerStatistics.reset();
+
+		DozerSettings.setSecondLevelCacheFirst(true);
+		try
+		{
+			Country country = model.getObject().getCountry();
+			assertFalse(country instanceof HibernateProxy);
+			assertEquals("nl", country.getName());
+
+			assertEquals(0, statistics.getPrepareStatementCount());
+			assertEquals(1, DozerStatistics.get(Counter.SECOND_LEVEL_CACHE_HITS));
+			assertEquals(0, DozerStatistics.get(Counter.SECOND_LEVEL_CACHE_MISSES));
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+
+	/**
+	 * Canonical reference data, detached graphs of different sessions should share one country instance that is
+	 * serialized as a token and reloaded after eviction
+	 */
+	@Test
+	public void testCanonicalReferenceData()
+	{
+		getSession().saveOrUpdate(new Country(740L, "be"));
+		for (long id = 740; id < 742; id++)
+		{
+			Adres adres = new Adres();
+			adres.setId(id);
+			adres.setStreet("street" + id);
+			adres.setCountry((Country) getSession().load(Country.class, 740L));
+			getSession().saveOrUpdate(adres);
+		}
+		getSession().flush();
+
+		closeSession();
+		openSession();
+
+		DozerSettings.setCanonicalReferenceData(true);
+		CanonicalCache.clear();
+		DozerStatistics.reset();
+		DozerModel<Adres> first = new DozerModel<>((Adres) getSession().get(Adres.class, 740L));
+		assertEquals("be", first.getObject().getCountry().getName());
+		first.detach();
+
+		closeSession();
+		openSession();
+
+		DozerModel<Adres> second = new DozerModel<>((Adres) getSession().get(Adres.class, 741L));
+		assertEquals("be", second.getObject().getCountry().getName());
+		second.detach();
+
+		assertEquals(1, CanonicalCache.size());
+		assertEquals(1, DozerStatistics.get(Counter.CANONICAL_MISSES));
+		assertEquals(1, DozerStatistics.get(Counter.CANONICAL_HITS));
+
+		DozerSerializer serializer = new DozerSerializer(getWicketTester().getApplication().getApplicationKey());
+		byte[] bytes = serializer.serialize(first);
+
+		@SuppressWarnings("unchecked")
+		DozerModel<Adres> read = (DozerModel<Adres>) serializer.deserialize(bytes);
+		Country country = read.getObject().getCountry();
+		assertTrue(country == second.getObject().getCountry());
+		assertFalse(country instanceof HibernateProxy);
+
+		// Reference data changed
+		CanonicalCache.evict(Country.class, 740L);
+		assertEquals(0, CanonicalCache.size());
+
+		@SuppressWarnings("unchecked")
+		DozerModel<Adres> reloaded = (DozerModel<Adres>) serializer.deserialize(bytes);
+		assertEquals("be", reloaded.getObject().getCountry().getName());
+		assertEquals(2, DozerStatistics.get(Counter.CANONICAL_MISSES));
+		assertEquals(1, CanonicalCache.size());
+
+		// Mutable entities are not shared, also not when loaded read-only
+		getSession().saveOrUpdate(new VersionedObject(801L, "versioned"));
+		getSession().flush();
+		getSession().clear();
+		VersionedObject versioned = (VersionedObject) getSession().get(VersionedObject.class, 801L);
+		getSession().setReadOnly(versioned, true);
+		assertNull(CanonicalCache.canonicalize(versioned, (SessionImplementor) getSession()));
+		assertEquals(1, CanonicalCache.size());
+	}
+
+	/**
+	 * Routing session finder, entity and proxy classes should be routed to their factory without asking the finder
+	 */
+	@Test
+	public void testRoutingSessionFinder()
+	{
+		savePersons(750, 751, true);
+
+		final SessionFinder original = SessionFinderHolder.getSessionFinder();
+		final SessionFactory factory = getSession().getSessionFactory();
+		final int[] classLookups = new int[1];
+
+		SessionFinderHolder.setSessionFinder(new FactorySessionFinder()
+		{
+			@Override
+			public org.hibernate.Session getHibernateSession(Class<?> clazz)
+			{
+				classLookups[0]++;
+				return original.getHibernateSession(clazz);
+			}
+
+			@Override
+			public Collection<SessionFactory> getSessionFactories()
+			{
+				return Collections.singleton(factory);
+			}
+
+			@Override
+			public org.hibernate.Session getHibernateSession(SessionFactory sessionFactory)
+			{
+				return original.getHibernateSession(null);
+			}
+		});
+		try
+		{
+			RoutingSessionFinder router = (RoutingSessionFinder) SessionFinderHolder.getSessionFinder();
+			assertTrue(router.getFinder() == SessionFinderHolder.getConfiguredSessionFinder());
+			assertTrue(router.getIndexSize() > 0);
+			assertTrue(router.getSessionFactory(Person.class) == factory);
+			assertTrue(router.getSessionFactory(getSession().load(Person.class, 750L).getClass()) == factory);
+			assertNull(router.getSessionFactory(NonHibernateObject.class));
+
+			classLookups[0] = 0;
+			DozerModel<Person> model = new DozerModel<>((Person) getSession().get(Person.class, 750L));
+			model.getObject().getAdresses().size();
+			model.detach();
+			assertFalse(model.getObject().getAdresses().isEmpty());
+			assertEquals(1, classLookups[0]); // The plain list of adresses
+
+			// Repeated detaches only ask the finder for the plain list
+			int rounds = 3;
+			for (int i = 0; i < rounds; i++)
+			{
+				model.detach();
+				model.getObject();
+			}
+			assertEquals(1 + rounds, classLookups[0]);
+		}
+		finally
+		{
+			SessionFinderHolder.setSessionFinder(original);
+		}
+	}
+
+	/**
+	 * Routing session finder, a class mapped by several factories should not be routed through a mapped superclass
+	 */
+	@Test
+	public void testRoutingAmbiguousClass()
+	{
+		final SessionFinder original = SessionFinderHolder.getSessionFinder();
+		final SessionFactory factory = getSession().getSessionFactory();
+		final ClassMetadata metadata = factory.getClassMetadata(RootTreeObject.class);
+
+		// A second factory mapping only the subclass
+		final SessionFactory other = (SessionFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+			new Class<?>[] { SessionFactory.class }, new InvocationHandler()
+			{
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args)
+				{
+					if ("getAllClassMetadata".equals(method.getName()))
+					{
+						return Collections.singletonMap(metadata.getEntityName(), metadata);
+					}
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+
+		final List<Class<?>> classLookups = new ArrayList<>();
+		RoutingSessionFinder router = new RoutingSessionFinder(new FactorySessionFinder()
+		{
+			@Override
+			public org.hibernate.Session getHibernateSession(Class<?> clazz)
+			{
+				classLookups.add(clazz);
+				return original.getHibernateSession(clazz);
+			}
+
+			@Override
+			public Collection<SessionFactory> getSessionFactories()
+			{
+				return Arrays.asList(factory, other);
+			}
+
+			@Override
+			public org.hibernate.Session getHibernateSession(SessionFactory sessionFactory)
+			{
+				return original.getHibernateSession(null);
+			}
+		});
+
+		assertTrue(router.getSessionFactory(AbstractTreeObject.class) == factory);
+		assertTrue(router.getSessionFactory(DescTreeObject.class) == factory);
+		assertNull(router.getSessionFactory(RootTreeObject.class));
+		RootTreeObject subclass = new RootTreeObject()
+		{
+			/** Default */
+			private static final long serialVersionUID = 1L;
+		};
+		assertNull(router.getSessionFactory(subclass.getClass()));
+
+		router.getHibernateSession(RootTreeObject.class);
+		assertEquals(Collections.<Class<?>> singletonList(RootTreeObject.class), classLookups);
+	}
+
+	/**
+	 * Equals
+	 */
+	@Test
+	public void testModelEquals()
+	{
+		Person person = new Person();
+		person.setId(1L);
+		person.setName("person");
+
+		assertTrue(new DozerModel<Person>(person).equals(new DozerModel<>(person)));
+		assertTrue(new DozerModel<Person>(person).equals(new Model<>(person)));
+
+		assertFalse(new DozerModel<Person>(person).equals(new DozerModel<>(new Person())));
+	}
+
+	/**
+	 * Windowed list model, only the window should be kept as detached models and moving the window should load the new
+	 * rows with one query
+	 */
+	@Test
+	public void testWindowedListModel()
+	{
+		List<Person> persons = savePersons(500, 600, false);
+
+		DozerWindowedListModel<Person> model = new DozerWindowedListModel<>(persons);
+		assertEquals(100, model.size());
+		assertEquals(0, model.getWindowSize());
+
+		Statistics statistics = getSession().getSessionFactory().getStatistics();
+		statistics.clear();
+		statistics.setStatisticsEnabled(true);
+		try
+		{
+			List<Person> page = model.getWindow(0, 10);
+			assertEquals(10, page.size());
+			assertEquals("person509", page.get(9).getName());
+			assertEquals(1, statistics.getPrepareStatementCount());
+
+			model.detach();
+			model = serialize(model);
+			statistics = getSession().getSessionFactory().getStatistics();
+			statistics.clear();
+
+			page = model.getWindow(5, 10);
+			assertEquals(5, model.getWindowStart());
+			assertEquals("person505", page.get(0).getName());
+			assertEquals("person514", page.get(9).getName());
+			assertEquals(1, statistics.getPrepareStatementCount());
+
+			DozerWindowedDataProvider<Person> provider = new DozerWindowedDataProvider<>(model);
+			assertEquals(100, provider.size());
+			Person last = provider.iterator(95, 10).next();
+			assertEquals("person595", provider.model(last).getObject().getName());
+			assertEquals(5, model.getWindowSize());
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+
+	/**
+	 * Coordinated detach, the models detached after the request ended should be detached together, models that are only
+	 * read are not registered
 	 */
 	@Test
-	public void testLoadedDetach()
+	public void testDetachCoordinator()
 	{
-		Person person = new Person();
-		person.setId(1L);
-		person.setName("test");
+		savePersons(720, 723, true);
 
-		Adres adres = new Adres();
-		adres.setId(1L);
-		adres.setStreet("street");
-		adres.setPerson(person);
-		person.getAdresses().add(adres);
+		DozerStatistics.reset();
 
-		getSession().saveOrUpdate(person);
-		getSession().flush();
-		getSession().clear();
+		RequestCycle requestCycle = RequestCycle.get();
+		DetachCoordinator coordinator = new DetachCoordinator();
+		requestCycle.setMetaData(DetachCoordinator.KEY, coordinator);
 
-		adres.setPerson((Person) getSession().load(Person.class, 1L)); // Forcing proxy
-		DozerModel<Adres> model = new DozerModel<>(adres);
-		model.detach();
-		model = serialize(model);
+		List<DozerModel<Person>> models = new ArrayList<>();
+		try
+		{
+			for (long id = 720; id < 723; id++)
+			{
+				DozerModel<Person> model = new DozerModel<>((Person) getSession().get(Person.class, id));
+				model.getObject().getAdresses().size();
+				model.getObject();
+				models.add(model);
+			}
+			DozerModel<Person> throwaway = new DozerModel<>((Person) getSession().get(Person.class, 720L));
+			throwaway.getObject().getName();
+			assertEquals(0, coordinator.getRegisteredCount());
+
+			// Request not ending
+			models.get(0).detach();
+			assertEquals(0, coordinator.getRegisteredCount());
+			assertEquals(0, DozerStatistics.get(Counter.FULL_DETACHES));
+
+			// Component detach, left to the coordinator
+			coordinator.setEnding(true);
+			for (DozerModel<Person> model : models)
+			{
+				model.detach();
+			}
+			assertEquals(3, coordinator.getRegisteredCount());
+			assertEquals(0, DozerStatistics.get(Counter.FULL_DETACHES));
+
+			coordinator.detachAll();
+			assertTrue(coordinator.isDone());
+			assertEquals(0, coordinator.getRegisteredCount());
+			assertEquals(3, coordinator.getModelCount());
+			assertEquals(3, DozerStatistics.get(Counter.FULL_DETACHES));
+			assertTrue(coordinator.getNodeCount() >= 6);
+			LOG.info("Coordinated detach: {} models, {} nodes, {} proxies in {} us", new Object[] {
+					coordinator.getModelCount(), coordinator.getNodeCount(), coordinator.getProxyCount(),
+					coordinator.getNanos() / 1000 });
+		}
+		finally
+		{
+			requestCycle.setMetaData(DetachCoordinator.KEY, null);
+		}
 
-		assertEquals(person, model.getObject().getPerson());
-		assertEquals(person.getAdresses().get(0), model.getObject().getPerson().getAdresses().get(0));
-		assertEquals(person.getName(), model.getObject().getPerson().getName());
+		for (int i = 0; i < models.size(); i++)
+		{
+			DozerModel<Person> model = serialize(models.get(i));
+			assertEquals("person" + (720 + i), model.getObject().getName());
+			assertEquals("street" + (720 + i), model.getObject().getAdresses().get(0).getStreet());
+		}
 	}
 
 	/**
-	 * Detach with list proxy
+	 * Session budget, the least recently detached models should be downgraded to a reference and reloaded on access
 	 */
 	@Test
-	public void testLoadedListDetach()
+	public void testSessionBudget()
 	{
-		Person person = new Person();
-		person.setId(1L);
-		person.setName("test");
+		savePersons(730, 735, true);
 
-		Adres adres = new Adres();
-		adres.setId(1L);
-		adres.setStreet("street");
-		adres.setPerson(person);
-		person.getAdresses().add(adres);
+		Session.get().bind();
+		String sessionId = Session.get().getId();
+		DozerStatistics.reset();
+		DozerSettings.setSessionBudget(Long.MAX_VALUE);
+		try
+		{
+			List<DozerModel<Person>> models = new ArrayList<>();
+			for (long id = 730; id < 735; id++)
+			{
+				DozerModel<Person> model = new DozerModel<>((Person) getSession().get(Person.class, id));
+				model.getObject().getAdresses().size();
+				models.add(model);
+			}
+
+			models.get(0).detach();
+			MemoryBudget budget = MemoryBudgetRegistry.getBudget(sessionId);
+			long size = budget.getUsedBytes();
+			assertTrue(size > 0);
+
+			// Room for two and a half models, the modified one can not be downgraded
+			models.get(1).getObject().setName("modified");
+			DozerSettings.setSessionBudget(size * 5 / 2);
+			for (DozerModel<Person> model : models.subList(1, models.size()))
+			{
+				model.detach();
+			}
+
+			// The idle models drop their state right away, so the charges are released
+			assertEquals(2, budget.getEntryCount());
+			assertEquals(3, budget.getDowngradeCount());
+			assertEquals(3, DozerStatistics.get(Counter.BUDGET_DOWNGRADES));
+			assertEquals(0, budget.getPendingBytes());
+			assertTrue(budget.getUsedBytes() <= budget.getLimit());
+			assertTrue(budget.getUsage() <= 1.0);
+
+			getSession().clear();
+			for (int i = 0; i < models.size(); i++)
+			{
+				Person person = models.get(i).getObject();
+				assertEquals(i == 1 ? "modified" : "person" + (730 + i), person.getName());
+				assertEquals("street" + (730 + i), person.getAdresses().get(0).getStreet());
+			}
+			assertEquals(3, DozerStatistics.get(Counter.BUDGET_RELOADS));
+			assertEquals(0, budget.getEntryCount());
+		}
+		finally
+		{
+			new MemoryBudgetRegistry().sessionUnbound(sessionId);
+		}
+		assertNull(MemoryBudgetRegistry.getBudget(sessionId));
+	}
 
-		getSession().saveOrUpdate(person);
+	/**
+	 * Streaming list model, the rows and their associations should be evicted, detached and spilled per chunk
+	 */
+	@Test
+	public void testStreamingListModel()
+	{
+		Company company = null;
+		for (long i = 600; i < 720; i++)
+		{
+			if (i % 10 == 0)
+			{
+				company = new Company();
+				company.setId(i);
+				company.setName("company" + i);
+				getSession().saveOrUpdate(company);
+			}
+
+			Person person = new Person();
+			person.setId(i);
+			person.setName("person" + i);
+			person.setOrganization(company);
+			getSession().saveOrUpdate(person);
+		}
 		getSession().flush();
 		getSession().clear();
 
-		person.setAdresses(Arrays.asList((Adres) getSession().load(Adres.class, 1L))); // Forcing proxy
+		// Held by the session before, so it stays
+		Company held = (Company) getSession().get(Company.class, 600L);
+
+		// Rows are only spilled for a bound session
+		Session.get().bind();
+
+		ScrollableResults results = getSession().createCriteria(Person.class)
+			.add(Restrictions.between("id", 600L, 719L)).addOrder(Order.asc("id")).scroll(ScrollMode.FORWARD_ONLY);
+		DozerListModel<Person> model;
+		DozerSettings.setSpillResidentRows(30);
+		try
+		{
+			model = DozerListModel.fromResults(results, 25, false);
+		}
+		finally
+		{
+			results.close();
+		}
+
+		PersistenceContext context = ((SessionImplementor) getSession()).getPersistenceContext();
+		assertEquals(1, context.getNumberOfManagedEntities());
+		assertTrue(getSession().contains(held));
+		assertEquals(120, model.size());
+		assertEquals(90, getSpillingRows(model).getSpilledCount());
 
-		DozerModel<Person> model = new DozerModel<>(person);
-		model.detach();
 		model = serialize(model);
+		assertEquals("person719", model.getObject().get(119).getName());
+		assertEquals("company710", model.getObject().get(119).getOrganization().getName());
+		assertTrue(model.getObject().get(0).getAdresses().isEmpty());
 
-		assertEquals(person, model.getObject());
-		assertEquals(adres, model.getObject().getAdresses().get(0));
+		new SpillFileRegistry().sessionUnbound(Session.get().getId());
 	}
 
 	/**
-	 * Tree test
+	 * Lazy list view, rendering one page of a detached list should only attach the rows of that page
 	 */
 	@Test
-	public void testWithTree()
+	public void testLazyListView()
 	{
-		DozerModel<RootTreeObject> model = new DozerModel<>(RootTreeObject.class, buildTree().getId());
+		List<Person> persons = savePersons(400, 500, false);
 
-		model.getObject().getName(); // Root initialization
+		DozerListModel<Person> model = new DozerListModel<>(persons);
 		model.detach();
 		model = serialize(model);
 
-		assertEquals(2, model.getObject().getChildren().size());
-		assertEquals(1, model.getObject().getChildren().get(0).getChildren().size());
+		DozerStatistics.reset();
+		List<Person> view = model.getObject();
+		assertEquals(100, view.size());
+		assertEquals(0, DozerStatistics.get(Counter.MODEL_ATTACHES));
+
+		// Second page of 10 rows
+		for (Person person : view.subList(10, 20))
+		{
+			assertTrue(person.getName().startsWith("person4"));
+		}
+		assertEquals(10, DozerStatistics.get(Counter.MODEL_ATTACHES));
+		assertEquals("person415", view.get(15).getName());
+		assertEquals(10, DozerStatistics.get(Counter.MODEL_ATTACHES));
+
+		try
+		{
+			view.add(new Person());
+			fail("View should be read-only");
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// Expected
+		}
 	}
 
 	/**
-	 * Tree test, using child as a starting point
+	 * Indexed list model, membership and removal should follow add/remove/clear without attaching any row
 	 */
 	@Test
-	public void testWithTreeUsingChild()
+	public void testListModelIndex()
 	{
-		buildTree();
-
-		DescTreeObject child = (DescTreeObject) getSession().load(DescTreeObject.class, 2L);
-		child.setParent((RootTreeObject) getSession().load(RootTreeObject.class, 1L));
+		List<Person> persons = savePersons(300, 350, false);
 
-		DozerModel<DescTreeObject> model = new DozerModel<>(child);
+		DozerListModel<Person> model = new DozerListModel<>(persons);
 		model.detach();
 		model = serialize(model);
 
-		assertEquals(1, model.getObject().getChildren().size());
-		assertEquals("root", model.getObject().getParent().getName());
+		Statistics statistics = getSession().getSessionFactory().getStatistics();
+		statistics.clear();
+		statistics.setStatisticsEnabled(true);
+		try
+		{
+			for (long i = 300; i < 350; i++)
+			{
+				assertTrue(model.contains(getSession().load(Person.class, i)));
+			}
+			assertFalse(model.contains(getSession().load(Person.class, 350L)));
+
+			assertTrue(model.remove((Person) getSession().load(Person.class, 310L)));
+			assertFalse(model.contains(getSession().load(Person.class, 310L)));
+			assertFalse(model.remove((Person) getSession().load(Person.class, 310L)));
+			assertEquals(49, model.size());
+
+			model.addModel(new DozerModel<>(Person.class, 310L));
+			assertTrue(model.contains(getSession().load(Person.class, 310L)));
+			assertTrue(model.removeModel(new DozerModel<>(Person.class, 320L)));
+			assertFalse(model.contains(getSession().load(Person.class, 320L)));
+
+			assertEquals(0, statistics.getPrepareStatementCount());
+
+			model.clear();
+			assertFalse(model.contains(getSession().load(Person.class, 300L)));
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(false);
+		}
 	}
 
 	/**
-	 * Tree
+	 * Membership of an entity is answered from the index, once built the rows are not searched again (also not with
+	 * rows without key)
 	 */
 	@Test
-	public void testTree()
+	public void testListModelIndexLookups()
 	{
-		DozerModel<AbstractTreeObject> model = new DozerModel<>(buildTree());
-		model.detach();
-		model = serialize(model);
+		final int[] keyLookups = new int[1];
+		DozerListModel<Person> model = new DozerListModel<>();
+		for (long i = 850; i < 950; i++)
+		{
+			Person person = new Person();
+			person.setId(i);
+			model.addModel(new DozerModel<Person>(person)
+			{
+				/** Default */
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public ModelKey getKey()
+				{
+					keyLookups[0]++;
+					return super.getKey();
+				}
+			});
+		}
+		Person transientPerson = new Person();
+		model.add(transientPerson);
+
+		assertTrue(model.contains(getSession().load(Person.class, 850L)));
+		keyLookups[0] = 0;
+		for (long i = 850; i < 950; i++)
+		{
+			assertTrue(model.contains(getSession().load(Person.class, i)));
+			assertFalse(model.contains(getSession().load(Person.class, i + 100)));
+		}
+		assertTrue(model.contains(transientPerson));
+		assertEquals(0, keyLookups[0]);
+
+		assertTrue(model.remove((Person) getSession().load(Person.class, 949L)));
+		assertFalse(model.contains(getSession().load(Person.class, 949L)));
+		assertEquals(100, model.size());
 	}
 
 	/**
-	 * Test a tree on which 2 branches resolve to the same node
+	 * Equals, hashCode and list lookups on detached models should use the key and not attach anything
 	 */
 	@Test
-	public void testTreeWithSameBranches()
+	public void testEqualsWithoutAttach()
 	{
-		DozerModel<AbstractTreeObject> model = new DozerModel<>(buildTree());
+		Person person = new Person();
+		person.setId(1L);
+		person.setName("person");
+		getSession().saveOrUpdate(person);
+		getSession().flush();
+		getSession().clear();
+
+		Person loaded = (Person) getSession().get(Person.class, 1L);
+		DozerModel<Person> model = new DozerModel<>(loaded);
 		model.detach();
 		model = serialize(model);
 
-		AbstractTreeObject newChild = new DescTreeObject();
-		newChild.setName("Temp");
-		newChild.getChildren().add((AbstractTreeObject) getSession().load(DescTreeObject.class, 3L));
-		model.getObject().getChildren().get(1).getChildren().add(newChild);
-		model.detach();
+		DozerListModel<Person> listModel = new DozerListModel<>(Arrays.asList(loaded));
+		listModel.detach();
 
-		assertFalse(model.getObject().getChildren().get(1).getChildren().get(0).getChildren().get(0) instanceof HibernateProxy);
+		Set<DozerModel<Person>> set = new HashSet<>();
+		set.add(model);
+
+		Statistics statistics = getSession().getSessionFactory().getStatistics();
+		statistics.clear();
+		statistics.setStatisticsEnabled(true);
+		try
+		{
+			assertTrue(set.contains(new DozerModel<>((Person) getSession().load(Person.class, 1L))));
+			assertTrue(listModel.contains(getSession().load(Person.class, 1L)));
+			assertFalse(model.getPendingProperties().isEmpty());
+			assertEquals(0, statistics.getPrepareStatementCount());
+
+			NonHibernateObject object = new NonHibernateObject();
+			DozerModel<NonHibernateObject> nonEntity = new DozerModel<>(object);
+			nonEntity.detach();
+			assertTrue(nonEntity.equals(nonEntity));
+			assertFalse(nonEntity.equals(new DozerModel<>(object)));
+		}
+		finally
+		{
+			statistics.setStatisticsEnabled(false);
+		}
 	}
 
 	/**
-	 * Abstract property in mapping
+	 * A row added while its entity was transient keeps no key, it is not found by the key of the saved entity; rows
+	 * set after the save are
 	 */
 	@Test
-	public void testWithAbstractProperty()
+	public void testListModelIndexAfterSave()
 	{
 		Person person = new Person();
-		person.setId(1L);
-		person.setName("name");
-
-		Company company = new Company();
-		company.setId(1L);
+		person.setName("person");
 
-		Adres adres = new Adres();
-		adres.setStreet("street");
-		company.setAdres(adres);
+		DozerListModel<Person> model = new DozerListModel<>();
+		model.add(person);
+		assertTrue(model.contains(person));
+		assertFalse(model.contains(getSession().load(Person.class, 760L)));
 
-		person.setOrganization(company);
+		person.setId(760L);
+		getSession().saveOrUpdate(person);
+		getSession().flush();
 
-		DozerModel<Person> model = new DozerModel<>(person);
-		model.detach();
-		model = serialize(model);
+		assertFalse(model.contains(getSession().load(Person.class, 760L)));
+		assertFalse(model.remove(person));
+		assertEquals(1, model.size());
 
-		assertEquals(company, model.getObject().getOrganization());
-		assertEquals(adres, ((Company) model.getObject().getOrganization()).getAdres());
+		model.setObject(Arrays.asList(person));
+		assertTrue(model.contains(getSession().load(Person.class, 760L)));
+		assertTrue(model.remove(person));
+		assertEquals(0, model.size());
+		assertFalse(model.contains(person));
 	}
 
 	/**
-	 * Test a collection that is attached, next the session is flushed. Caused a lazy-init.
+	 * Looking up rows should not read back spilled rows, their keys are kept next to them
 	 */
 	@Test
-	public void testCollectionWithFlush()
+	public void testListModelIndexSpilled()
 	{
-		Person person = new Person();
-		person.setId(1L);
-		person.setName("person");
-		getSession().saveOrUpdate(person);
+		List<Person> persons = savePersons(761, 781, false);
 
-		Adres adres = new Adres();
-		adres.setId(1L);
-		adres.setStreet("street");
-		adres.setPerson(person);
-		person.getAdresses().add(adres);
-		getSession().saveOrUpdate(adres);
+		Session.get().bind();
 
-		getSession().flush();
-		getSession().clear();
+		DozerSettings.setSpillResidentRows(4);
+		List<Person> loaded = new ArrayList<>();
+		for (Person person : persons)
+		{
+			loaded.add((Person) getSession().get(Person.class, person.getId()));
+		}
 
-		DozerModel<Person> model = new DozerModel<>((Person) getSession().load(Person.class, 1L));
+		DozerListModel<Person> model = new DozerListModel<>(loaded);
 		model.detach();
 		model = serialize(model);
 
-		// Trigger attach
-		model.getObject();
-
-		// Force flush
-		getSession().flush();
+		SpillingList<DozerModel<Person>> rows = getSpillingRows(model);
+		assertEquals(16, rows.getSpilledCount());
 
-		// Check adress
-		assertEquals("street", model.getObject().getAdresses().get(0).getStreet());
+		for (long i = 761; i < 781; i++)
+		{
+			assertTrue(model.contains(getSession().load(Person.class, i)));
+		}
+		assertFalse(model.contains(getSession().load(Person.class, 781L)));
+		assertFalse(model.contains(new Person()));
+		assertEquals(16, rows.getSpilledCount());
+
+		assertTrue(model.remove((Person) getSession().load(Person.class, 770L)));
+		assertFalse(model.contains(getSession().load(Person.class, 770L)));
+		assertEquals(15, rows.getSpilledCount());
+		assertEquals(19, model.size());
 	}
 
 	/**
-	 * Equals
+	 * The key of a model is fixed when its object is set: a model of a transient entity keeps its identity hash code
+	 * after the entity is saved, and equals and hashCode do not use the session
 	 */
 	@Test
-	public void testModelEquals()
+	public void testKeyFixedWhenSet()
 	{
 		Person person = new Person();
-		person.setId(1L);
 		person.setName("person");
 
-		assertTrue(new DozerModel<Person>(person).equals(new DozerModel<>(person)));
-		assertTrue(new DozerModel<Person>(person).equals(new Model<>(person)));
+		DozerModel<Person> model = new DozerModel<>(person);
+		assertNull(model.getKey());
+		Set<DozerModel<Person>> set = new HashSet<>();
+		set.add(model);
 
-		assertFalse(new DozerModel<Person>(person).equals(new DozerModel<>(new Person())));
+		person.setId(790L);
+		getSession().saveOrUpdate(person);
+		getSession().flush();
+
+		assertNull(model.getKey());
+		assertTrue(set.contains(model));
+		assertFalse(new DozerModel<>(person).equals(model));
+
+		DozerModel<Person> saved = new DozerModel<>(person);
+		assertNotNull(saved.getKey());
+
+		final SessionFinder original = SessionFinderHolder.getSessionFinder();
+		final int[] lookups = new int[1];
+		SessionFinderHolder.setSessionFinder(new SessionFinder()
+		{
+			@Override
+			public org.hibernate.Session getHibernateSession(Class<?> clazz)
+			{
+				lookups[0]++;
+				return original.getHibernateSession(clazz);
+			}
+		});
+		try
+		{
+			assertEquals(saved.hashCode(), new DozerModel<>(person).hashCode());
+			lookups[0] = 0;
+			for (int i = 0; i < 10; i++)
+			{
+				assertTrue(set.contains(model));
+				assertFalse(saved.equals(model));
+				saved.hashCode();
+			}
+			assertEquals(0, lookups[0]);
+		}
+		finally
+		{
+			SessionFinderHolder.setSessionFinder(original);
+		}
 	}
 
 	/**
@@ -649,6 +2423,129 @@ public class DozerModelTest extends AbstractWicketHibernateTest
 		assertNotNull(field.get(model));
 	}
 
+	/**
+	 * Id-bags, arrays and custom collection types should be detached without Hibernate collections (so without
+	 * session state), lazy and initialized, and re-attached
+	 * 
+	 * @throws ReflectiveOperationException
+	 */
+	@Test
+	public void testDetachCollectionTypes() throws ReflectiveOperationException
+	{
+		HibernateCollectionType.register(CustomBag.class, HibernateCollectionType.CUSTOM);
+
+		Adres adres = new Adres();
+		adres.setId(1L);
+		adres.setStreet("street");
+		getSession().saveOrUpdate(adres);
+
+		CollectionObject obj = new CollectionObject();
+		obj.setId(1L);
+		obj.getTags().addAll(Arrays.asList("a", "b", "a"));
+		obj.setCodes(new String[] { "x", "y" });
+		obj.setAdresses(new Adres[] { adres });
+		obj.getLabels().addAll(Arrays.asList("first", "second"));
+		getSession().saveOrUpdate(obj);
+		getSession().flush();
+		closeSession();
+		openSession();
+
+		String applicationKey = getWicketTester().getApplication().getApplicationKey();
+		Field detachedField = DozerModel.class.getDeclaredField("detachedObject");
+		detachedField.setAccessible(true);
+
+		for (String initialized : new String[] { "none", "id-bag", "custom" })
+		{
+			CollectionObject loaded = (CollectionObject) getSession().get(CollectionObject.class, 1L);
+			assertTrue(loaded.getLabels() instanceof CustomBag);
+			if ("id-bag".equals(initialized))
+			{
+				Hibernate.initialize(loaded.getTags());
+			}
+			else if ("custom".equals(initialized))
+			{
+				Hibernate.initialize(loaded.getLabels());
+			}
+
+			DozerModel<CollectionObject> model = new DozerModel<>(loaded);
+			model.detach();
+
+			// Initialized collections become plain collections, the others lightweight proxies
+			CollectionObject detached = (CollectionObject) detachedField.get(model);
+			assertEquals("id-bag".equals(initialized) ? ArrayList.class : null, plainClass(detached.getTags()));
+			assertEquals("custom".equals(initialized) ? ArrayList.class : null, plainClass(detached.getLabels()));
+			assertEquals(String[].class, detached.getCodes().getClass());
+			assertFalse(detached.getAdresses()[0] instanceof HibernateProxy);
+			assertNoSessionState(detached);
+
+			DozerSerializer serializer = new DozerSerializer(applicationKey);
+			byte[] page = serializer.serialize(model);
+
+			closeSession();
+			openSession();
+
+			@SuppressWarnings("unchecked")
+			DozerModel<CollectionObject> read = (DozerModel<CollectionObject>) serializer.deserialize(page);
+			assertEquals(Arrays.asList("a", "b", "a"), new ArrayList<>(read.getObject().getTags()));
+			assertEquals(Arrays.asList("first", "second"), new ArrayList<>(read.getObject().getLabels()));
+			assertTrue(Arrays.equals(new String[] { "x", "y" }, read.getObject().getCodes()));
+			assertEquals("street", read.getObject().getAdresses()[0].getStreet());
+
+			getSession().clear();
+		}
+	}
+
+	/**
+	 * @param value
+	 *            a detached collection
+	 * @return its class when it is a plain collection, <code>null</code> when it is a lightweight proxy
+	 */
+	private Class<?> plainClass(Object value)
+	{
+		if (value instanceof Proxied)
+		{
+			return null;
+		}
+		assertFalse(value instanceof PersistentCollection);
+		return value.getClass();
+	}
+
+	/**
+	 * Serializes a detached graph, failing on any Hibernate collection, proxy or session (other than the lightweight
+	 * proxies)
+	 * 
+	 * @param detached
+	 *            the detached graph
+	 */
+	private void assertNoSessionState(Object detached)
+	{
+		try
+		{
+			ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream())
+			{
+				{
+					enableReplaceObject(true);
+				}
+
+				@Override
+				protected Object replaceObject(Object obj) throws IOException
+				{
+					// Our own proxies only carry the detached property definition
+					assertFalse(obj.getClass().getName(), !(obj instanceof Proxied)
+						&& (obj instanceof PersistentCollection || obj instanceof HibernateProxy)
+						|| obj instanceof SessionImplementor);
+					return obj;
+				}
+			};
+			out.writeObject(detached);
+			out.close();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
 	/**
 	 * @see nl.dries.wicket.hibernate.dozer.AbstractWicketHibernateTest#getEntities()
 	 */
@@ -656,7 +2553,8 @@ public class DozerModelTest extends AbstractWicketHibernateTest
 	protected List<Class<? extends Serializable>> getEntities()
 	{
 		return Arrays.asList(Adres.class, Person.class, AbstractTreeObject.class, DescTreeObject.class,
-			RootTreeObject.class, AbstractOrganization.class, Company.class, MapObject.class);
+			RootTreeObject.class, AbstractOrganization.class, Company.class, MapObject.class, Country.class,
+			VersionedObject.class, CollectionObject.class);
 	}
 
 	/**
@@ -692,4 +2590,57 @@ public class DozerModelTest extends AbstractWicketHibernateTest
 
 		return out;
 	}
+
+	/**
+	 * Subclass with state of its own
+	 *
+	 * @author dries
+	 */
+	public static class LabeledModel extends DozerModel<Person>
+	{
+		/** Default */
+		private static final long serialVersionUID = 1L;
+
+		/** Label */
+		private String label;
+
+		/**
+		 * Construct, for reading
+		 */
+		public LabeledModel()
+		{
+		}
+
+		/**
+		 * Construct
+		 *
+		 * @param person
+		 * @param label
+		 */
+		public LabeledModel(Person person, String label)
+		{
+			super(person);
+			this.label = label;
+		}
+
+		/**
+		 * @see nl.dries.wicket.hibernate.dozer.DozerModel#writeExternal(java.io.ObjectOutput)
+		 */
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException
+		{
+			super.writeExternal(out);
+			out.writeUTF(label);
+		}
+
+		/**
+		 * @see nl.dries.wicket.hibernate.dozer.DozerModel#readExternal(java.io.ObjectInput)
+		 */
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+		{
+			super.readExternal(in);
+			label = in.readUTF();
+		}
+	}
 }
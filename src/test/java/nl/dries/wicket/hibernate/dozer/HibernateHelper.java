@@ -34,6 +34,9 @@ public final class HibernateHelper
 		cfg.setProperty("hibernate.show_sql", "true");
 		cfg.setProperty("hibernate.hbm2ddl.auto", "create");
 
+		cfg.setProperty("hibernate.cache.use_second_level_cache", "true");
+		cfg.setProperty("hibernate.cache.region.factory_class", "org.hibernate.cache.ehcache.EhCacheRegionFactory");
+
 		cfg.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver");
 		cfg.setProperty("hibernate.connection.url", "jdbc:hsqldb:mem:testdb");
 		cfg.setProperty("hibernate.connection.username", "sa");
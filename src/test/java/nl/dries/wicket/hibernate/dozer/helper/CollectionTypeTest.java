@@ -1,10 +1,17 @@
 package nl.dries.wicket.hibernate.dozer.helper;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
 import org.hibernate.collection.internal.PersistentBag;
+import org.hibernate.collection.internal.PersistentIdentifierBag;
 import org.hibernate.collection.internal.PersistentList;
 import org.hibernate.collection.internal.PersistentMap;
 import org.hibernate.collection.internal.PersistentSet;
@@ -19,20 +26,6 @@ import org.junit.Test;
  */
 public class CollectionTypeTest
 {
-	/**
-	 * Test constructing persistent collections
-	 */
-	@Test
-	public void testConstructPersistentInstance()
-	{
-		assertNotNull(HibernateCollectionType.BAG.createCollection(null));
-		assertNotNull(HibernateCollectionType.LIST.createCollection(null));
-		assertNotNull(HibernateCollectionType.SET.createCollection(null));
-		assertNotNull(HibernateCollectionType.SORTED_SET.createCollection(null));
-		assertNotNull(HibernateCollectionType.MAP.createCollection(null));
-		assertNotNull(HibernateCollectionType.SORTED_MAP.createCollection(null));
-	}
-
 	/**
 	 * Determine type test
 	 */
@@ -47,25 +40,58 @@ public class CollectionTypeTest
 		assertEquals(HibernateCollectionType.MAP, HibernateCollectionType.determineType(new PersistentMap()));
 		assertEquals(HibernateCollectionType.SORTED_MAP,
 			HibernateCollectionType.determineType(new PersistentSortedMap()));
+		assertEquals(HibernateCollectionType.ID_BAG,
+			HibernateCollectionType.determineType(new PersistentIdentifierBag()));
+		assertEquals(HibernateCollectionType.BAG, HibernateCollectionType.determineType(new PersistentBag()
+		{
+			/** Default */
+			private static final long serialVersionUID = 1L;
+		}));
 	}
 
 	/**
-	 * Test HibernateCollectionType implements the correct interface
+	 * Test the plain collection of each HibernateCollectionType implements its interface
 	 */
 	@Test
-	public void testDetermineTypeInterface() throws Exception
+	public void testDetermineTypeInterface()
 	{
 		assertTrue(HibernateCollectionType.BAG.getPlainInterface().isInstance(
-			HibernateCollectionType.BAG.createCollection(null)));
+			HibernateCollectionType.BAG.createPlainCollection(new PersistentBag())));
 		assertTrue(HibernateCollectionType.LIST.getPlainInterface().isInstance(
-			HibernateCollectionType.LIST.createCollection(null)));
+			HibernateCollectionType.LIST.createPlainCollection(new PersistentList())));
 		assertTrue(HibernateCollectionType.SET.getPlainInterface().isInstance(
-			HibernateCollectionType.SET.createCollection(null)));
+			HibernateCollectionType.SET.createPlainCollection(new PersistentSet())));
 		assertTrue(HibernateCollectionType.SORTED_SET.getPlainInterface().isInstance(
-			HibernateCollectionType.SORTED_SET.createCollection(null)));
+			HibernateCollectionType.SORTED_SET.createPlainCollection(new PersistentSortedSet(null,
+				new TreeSet<String>()))));
 		assertTrue(HibernateCollectionType.MAP.getPlainInterface().isInstance(
-			HibernateCollectionType.MAP.createCollection(null)));
+			HibernateCollectionType.MAP.createPlainCollection(new PersistentMap())));
 		assertTrue(HibernateCollectionType.SORTED_MAP.getPlainInterface().isInstance(
-			HibernateCollectionType.SORTED_MAP.createCollection(null)));
+			HibernateCollectionType.SORTED_MAP.createPlainCollection(new PersistentSortedMap(null,
+				new TreeMap<String, String>()))));
+		assertTrue(HibernateCollectionType.ID_BAG.getPlainInterface().isInstance(
+			HibernateCollectionType.ID_BAG.createPlainCollection(new PersistentIdentifierBag())));
+	}
+
+	/**
+	 * Plain collections should be of the plain type and keep the comparator of sorted collections
+	 */
+	@Test
+	public void testCreatePlainCollection()
+	{
+		PersistentSortedSet sortedSet = new PersistentSortedSet(null, new TreeSet<>(Collections.reverseOrder()));
+		Object plain = HibernateCollectionType.SORTED_SET.createPlainCollection(sortedSet);
+		assertTrue(plain instanceof TreeSet);
+		assertEquals(Collections.reverseOrder(), ((TreeSet<?>) plain).comparator());
+
+		PersistentBag bag = new PersistentBag(null, Arrays.asList("a", "b"));
+		assertTrue(HibernateCollectionType.BAG.createPlainCollection(bag) instanceof ArrayList);
+		assertTrue(HibernateCollectionType.MAP.createPlainCollection(new PersistentMap()) instanceof HashMap);
+
+		// Custom collections follow the collection interface they implement
+		plain = HibernateCollectionType.CUSTOM.createPlainCollection(sortedSet);
+		assertTrue(plain instanceof TreeSet);
+		assertEquals(Collections.reverseOrder(), ((TreeSet<?>) plain).comparator());
+		assertTrue(HibernateCollectionType.CUSTOM.createPlainCollection(bag) instanceof ArrayList);
 	}
 }
@@ -4,6 +4,7 @@ import java.io.Serializable;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
 
@@ -30,6 +31,10 @@ public class Adres implements Serializable
 	@ManyToOne
 	private Person person;
 
+	/** */
+	@ManyToOne(fetch = FetchType.LAZY)
+	private Country country;
+
 	/**
 	 * @return the id
 	 */
@@ -81,6 +86,23 @@ public class Adres implements Serializable
 		this.person = person;
 	}
 
+	/**
+	 * @return the country
+	 */
+	public Country getCountry()
+	{
+		return country;
+	}
+
+	/**
+	 * @param country
+	 *            the country to set
+	 */
+	public void setCountry(Country country)
+	{
+		this.country = country;
+	}
+
 	/**
 	 * @see java.lang.Object#hashCode()
 	 */
@@ -0,0 +1,130 @@
+package nl.dries.wicket.hibernate.dozer.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.JoinTable;
+import javax.persistence.ManyToMany;
+import javax.persistence.OrderColumn;
+
+import org.hibernate.annotations.CollectionId;
+import org.hibernate.annotations.CollectionType;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Type;
+
+/**
+ * Entity with an id-bag, arrays and a custom collection type
+ * 
+ * @author dries
+ */
+@Entity
+public class CollectionObject implements Serializable
+{
+	/** Default */
+	private static final long serialVersionUID = 1L;
+
+	/** */
+	@Id
+	private Long id;
+
+	/** Id-bag */
+	@ElementCollection
+	@JoinTable(name = "collection_tags", joinColumns = @JoinColumn(name = "collectionobject_id"))
+	@GenericGenerator(name = "tag_id", strategy = "increment")
+	@CollectionId(columns = @Column(name = "tag_id"), type = @Type(type = "long"), generator = "tag_id")
+	@Column(name = "tag")
+	private List<String> tags = new ArrayList<>();
+
+	/** Array of values */
+	@ElementCollection
+	@JoinTable(name = "collection_codes", joinColumns = @JoinColumn(name = "collectionobject_id"))
+	@OrderColumn(name = "idx")
+	@Column(name = "code")
+	private String[] codes = new String[0];
+
+	/** Array of entities */
+	@ManyToMany
+	@JoinTable(name = "collection_adresses")
+	@OrderColumn(name = "idx")
+	private Adres[] adresses = new Adres[0];
+
+	/** Custom collection type */
+	@ElementCollection
+	@JoinTable(name = "collection_labels", joinColumns = @JoinColumn(name = "collectionobject_id"))
+	@CollectionType(type = "nl.dries.wicket.hibernate.dozer.model.CustomBagType")
+	@Column(name = "label")
+	private List<String> labels = new ArrayList<>();
+
+	/**
+	 * @return the id
+	 */
+	public Long getId()
+	{
+		return id;
+	}
+
+	/**
+	 * @param id
+	 *            the id to set
+	 */
+	public void setId(Long id)
+	{
+		this.id = id;
+	}
+
+	/**
+	 * @return the tags
+	 */
+	public List<String> getTags()
+	{
+		return tags;
+	}
+
+	/**
+	 * @return the codes
+	 */
+	public String[] getCodes()
+	{
+		return codes;
+	}
+
+	/**
+	 * @param codes
+	 *            the codes to set
+	 */
+	public void setCodes(String[] codes)
+	{
+		this.codes = codes;
+	}
+
+	/**
+	 * @return the adresses
+	 */
+	public Adres[] getAdresses()
+	{
+		return adresses;
+	}
+
+	/**
+	 * @param adresses
+	 *            the adresses to set
+	 */
+	public void setAdresses(Adres[] adresses)
+	{
+		this.adresses = adresses;
+	}
+
+	/**
+	 * @return the labels
+	 */
+	public List<String> getLabels()
+	{
+		return labels;
+	}
+}
@@ -0,0 +1,41 @@
+package nl.dries.wicket.hibernate.dozer.model;
+
+import java.util.Collection;
+
+import org.hibernate.collection.internal.PersistentBag;
+import org.hibernate.engine.spi.SessionImplementor;
+
+/**
+ * Persistent collection of the {@link CustomBagType}
+ * 
+ * @author dries
+ */
+public class CustomBag extends PersistentBag
+{
+	/** Default */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Construct
+	 * 
+	 * @param session
+	 *            the {@link SessionImplementor}
+	 */
+	public CustomBag(SessionImplementor session)
+	{
+		super(session);
+	}
+
+	/**
+	 * Construct
+	 * 
+	 * @param session
+	 *            the {@link SessionImplementor}
+	 * @param collection
+	 *            the wrapped collection
+	 */
+	public CustomBag(SessionImplementor session, Collection<?> collection)
+	{
+		super(session, collection);
+	}
+}
@@ -0,0 +1,94 @@
+package nl.dries.wicket.hibernate.dozer.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.HibernateException;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.usertype.UserCollectionType;
+
+/**
+ * Custom collection type, a bag held in a {@link CustomBag}
+ * 
+ * @author dries
+ */
+public class CustomBagType implements UserCollectionType
+{
+	/**
+	 * @see org.hibernate.usertype.UserCollectionType#instantiate(org.hibernate.engine.spi.SessionImplementor,
+	 *      org.hibernate.persister.collection.CollectionPersister)
+	 */
+	@Override
+	public PersistentCollection instantiate(SessionImplementor session, CollectionPersister persister)
+		throws HibernateException
+	{
+		return new CustomBag(session);
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserCollectionType#wrap(org.hibernate.engine.spi.SessionImplementor,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public PersistentCollection wrap(SessionImplementor session, Object collection)
+	{
+		return new CustomBag(session, (Collection<?>) collection);
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserCollectionType#getElementsIterator(java.lang.Object)
+	 */
+	@Override
+	public Iterator<?> getElementsIterator(Object collection)
+	{
+		return ((Collection<?>) collection).iterator();
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserCollectionType#contains(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public boolean contains(Object collection, Object entity)
+	{
+		return ((Collection<?>) collection).contains(entity);
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserCollectionType#indexOf(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public Object indexOf(Object collection, Object entity)
+	{
+		return Integer.valueOf(((List<?>) collection).indexOf(entity));
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserCollectionType#replaceElements(java.lang.Object, java.lang.Object,
+	 *      org.hibernate.persister.collection.CollectionPersister, java.lang.Object, java.util.Map,
+	 *      org.hibernate.engine.spi.SessionImplementor)
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public Object replaceElements(Object original, Object target, CollectionPersister persister, Object owner,
+		Map copyCache, SessionImplementor session) throws HibernateException
+	{
+		Collection result = (Collection) target;
+		result.clear();
+		result.addAll((Collection) original);
+		return result;
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserCollectionType#instantiate(int)
+	 */
+	@Override
+	public Object instantiate(int anticipatedSize)
+	{
+		return new ArrayList<>(Math.max(anticipatedSize, 0));
+	}
+}
@@ -0,0 +1,140 @@
+package nl.dries.wicket.hibernate.dozer.model;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Version;
+
+import org.hibernate.Hibernate;
+
+/**
+ * Entity with optimistic locking version
+ * 
+ * @author dries
+ */
+@Entity(name = "versioned")
+public class VersionedObject implements Serializable
+{
+	/** Default */
+	private static final long serialVersionUID = 1L;
+
+	/** */
+	@Id
+	private Long id;
+
+	/** */
+	@Column
+	private String name;
+
+	/** */
+	@Version
+	private Integer version;
+
+	/**
+	 * Construct
+	 */
+	public VersionedObject()
+	{
+	}
+
+	/**
+	 * Construct
+	 * 
+	 * @param id
+	 * @param name
+	 */
+	public VersionedObject(Long id, String name)
+	{
+		this.id = id;
+		this.name = name;
+	}
+
+	/**
+	 * @return the id
+	 */
+	public Long getId()
+	{
+		return id;
+	}
+
+	/**
+	 * @param id
+	 *            the id to set
+	 */
+	public void setId(Long id)
+	{
+		this.id = id;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @param name
+	 *            the name to set
+	 */
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @return the version
+	 */
+	public Integer getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((getId() == null) ? 0 : getId().hashCode());
+		return result;
+	}
+
+	/**
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+		if (obj == null)
+		{
+			return false;
+		}
+		if (Hibernate.getClass(this) != Hibernate.getClass(obj))
+		{
+			return false;
+		}
+		VersionedObject other = (VersionedObject) obj;
+		if (getId() == null)
+		{
+			if (other.getId() != null)
+			{
+				return false;
+			}
+		}
+		else if (!getId().equals(other.getId()))
+		{
+			return false;
+		}
+		return true;
+	}
+}
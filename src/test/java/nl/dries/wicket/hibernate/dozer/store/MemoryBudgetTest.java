@@ -0,0 +1,158 @@
+package nl.dries.wicket.hibernate.dozer.store;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the {@link MemoryBudget} class
+ *
+ * @author dries
+ */
+public class MemoryBudgetTest
+{
+	/**
+	 * Exceeding the limit should ask the least recently charged owners first, their bytes stay charged until released
+	 */
+	@Test
+	public void testDowngradeLeastRecentlyCharged()
+	{
+		MemoryBudget budget = new MemoryBudget(250);
+		Owner first = new Owner(true);
+		Owner second = new Owner(true);
+		Owner third = new Owner(true);
+
+		long firstHandle = budget.charge(first, 100);
+		long secondHandle = budget.charge(second, 100);
+		budget.charge(third, 100);
+
+		Assert.assertTrue(first.requested);
+		Assert.assertFalse(second.requested);
+		Assert.assertEquals(300, budget.getUsedBytes());
+		Assert.assertEquals(100, budget.getPendingBytes());
+		Assert.assertEquals(1, budget.getDowngradeCount());
+
+		// The pending downgrade already covers the excess
+		budget.charge(new Owner(true), 50);
+		Assert.assertFalse(second.requested);
+		Assert.assertEquals(1, budget.getDowngradeCount());
+
+		budget.release(firstHandle);
+		Assert.assertEquals(250, budget.getUsedBytes());
+		Assert.assertEquals(0, budget.getPendingBytes());
+
+		budget.release(secondHandle);
+		Assert.assertEquals(150, budget.getUsedBytes());
+		Assert.assertEquals(2, budget.getEntryCount());
+	}
+
+	/**
+	 * An idle owner that drops its state right away should release its bytes
+	 */
+	@Test
+	public void testIdleOwnerReleases()
+	{
+		MemoryBudget budget = new MemoryBudget(150);
+		Owner idle = new Owner(true);
+		idle.budget = budget;
+		idle.handle = budget.charge(idle, 100);
+
+		budget.charge(new Owner(true), 100);
+
+		Assert.assertTrue(idle.requested);
+		Assert.assertEquals(100, budget.getUsedBytes());
+		Assert.assertEquals(0, budget.getPendingBytes());
+		Assert.assertEquals(1, budget.getEntryCount());
+	}
+
+	/**
+	 * Owners with unsaved changes should not be asked
+	 */
+	@Test
+	public void testSkipModifiedOwner()
+	{
+		MemoryBudget budget = new MemoryBudget(250);
+		Owner modified = new Owner(false);
+		Owner first = new Owner(true);
+		Owner second = new Owner(true);
+
+		budget.charge(modified, 100);
+		budget.charge(first, 100);
+		budget.charge(second, 100);
+
+		Assert.assertFalse(modified.requested);
+		Assert.assertTrue(first.requested);
+		Assert.assertFalse(second.requested);
+		Assert.assertEquals(3, budget.getEntryCount());
+		Assert.assertEquals(1, budget.getDowngradeCount());
+	}
+
+	/**
+	 * An owner larger than the limit should be asked right away, but stay charged until it releases
+	 */
+	@Test
+	public void testOversizedOwner()
+	{
+		MemoryBudget budget = new MemoryBudget(50);
+		Owner owner = new Owner(true);
+
+		long handle = budget.charge(owner, 100);
+		Assert.assertTrue(owner.requested);
+		Assert.assertEquals(100, budget.getUsedBytes());
+
+		budget.release(handle);
+		Assert.assertEquals(0, budget.getUsedBytes());
+		Assert.assertEquals(0, budget.getPendingBytes());
+	}
+
+	/**
+	 * Test owner
+	 *
+	 * @author dries
+	 */
+	private static final class Owner implements MemoryBudget.Downgradable
+	{
+		/** Whether the state is unmodified */
+		private final boolean clean;
+
+		/** Whether a downgrade is requested */
+		private boolean requested;
+
+		/** Budget to release the charge to when asked, <code>null</code> when the owner is in use */
+		private MemoryBudget budget;
+
+		/** Handle of the charge */
+		private long handle;
+
+		/**
+		 * Construct
+		 *
+		 * @param clean
+		 */
+		Owner(boolean clean)
+		{
+			this.clean = clean;
+		}
+
+		/**
+		 * @see nl.dries.wicket.hibernate.dozer.store.MemoryBudget.Downgradable#isClean()
+		 */
+		@Override
+		public boolean isClean()
+		{
+			return clean;
+		}
+
+		/**
+		 * @see nl.dries.wicket.hibernate.dozer.store.MemoryBudget.Downgradable#requestDowngrade()
+		 */
+		@Override
+		public void requestDowngrade()
+		{
+			requested = true;
+			if (budget != null)
+			{
+				budget.release(handle);
+			}
+		}
+	}
+}
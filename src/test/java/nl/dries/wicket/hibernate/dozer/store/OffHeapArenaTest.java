@@ -0,0 +1,143 @@
+package nl.dries.wicket.hibernate.dozer.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the {@link OffHeapArena} class
+ *
+ * @author dries
+ */
+public class OffHeapArenaTest
+{
+	/**
+	 * Data spanning multiple chunks should be read back unchanged
+	 */
+	@Test
+	public void testStoreAndRead()
+	{
+		OffHeapArena arena = new OffHeapArena(1024, 64, 2);
+		Object owner = new Object();
+
+		byte[] data = bytes(150, 7);
+		long handle = arena.store(data, owner);
+
+		Assert.assertTrue(handle >= 0);
+		Assert.assertArrayEquals(data, arena.read(handle));
+		Assert.assertEquals(150, arena.getUsedBytes());
+		Assert.assertEquals(1, arena.getEntryCount());
+		Assert.assertEquals(1024, arena.getAllocatedBytes());
+
+		Assert.assertArrayEquals(data, arena.remove(handle));
+		Assert.assertNull(arena.read(handle));
+		Assert.assertEquals(0, arena.getUsedBytes());
+		Assert.assertEquals(0d, arena.getOccupancy(), 0d);
+	}
+
+	/**
+	 * Freed chunks should be reused instead of allocating a new slab
+	 */
+	@Test
+	public void testChunkReuse()
+	{
+		OffHeapArena arena = new OffHeapArena(256, 64, 4);
+		Object owner = new Object();
+
+		long first = arena.store(bytes(256, 1), owner);
+		arena.free(first);
+		long second = arena.store(bytes(200, 2), owner);
+
+		Assert.assertEquals(256, arena.getAllocatedBytes());
+		Assert.assertArrayEquals(bytes(200, 2), arena.read(second));
+	}
+
+	/**
+	 * A full arena should evict the least recently used entry to the heap and notify the listener
+	 */
+	@Test
+	public void testEviction()
+	{
+		OffHeapArena arena = new OffHeapArena(256, 64, 1);
+		final List<Object> evicted = new ArrayList<>();
+		arena.setEvictionListener(new OffHeapArena.EvictionListener()
+		{
+			@Override
+			public void evicted(Object owner, long handle, int length)
+			{
+				evicted.add(owner);
+			}
+		});
+
+		Object owner1 = new Object();
+		Object owner2 = new Object();
+		Object owner3 = new Object();
+		long handle1 = arena.store(bytes(128, 1), owner1);
+		long handle2 = arena.store(bytes(128, 2), owner2);
+		arena.read(handle1);
+		long handle3 = arena.store(bytes(100, 3), owner3);
+
+		Assert.assertEquals(Arrays.asList(owner2), evicted);
+		Assert.assertEquals(2, arena.getEntryCount());
+		Assert.assertEquals(1, arena.getEvictedCount());
+		Assert.assertArrayEquals(bytes(128, 2), arena.remove(handle2));
+		Assert.assertArrayEquals(bytes(128, 1), arena.read(handle1));
+		Assert.assertArrayEquals(bytes(100, 3), arena.read(handle3));
+		Assert.assertEquals(0, arena.getEvictedCount());
+	}
+
+	/**
+	 * The heap copy of an evicted entry should be dropped once its owner is garbage collected
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testEvictedOwnerCollected() throws InterruptedException
+	{
+		OffHeapArena arena = new OffHeapArena(256, 64, 1);
+
+		Object owner1 = new Object();
+		Object owner2 = new Object();
+		arena.store(bytes(256, 1), owner1);
+		arena.store(bytes(256, 2), owner2);
+		Assert.assertEquals(1, arena.getEvictedCount());
+
+		owner1 = null;
+		for (int i = 0; i < 50 && arena.getEvictedCount() > 0; i++)
+		{
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, arena.getEvictedCount());
+		Assert.assertEquals(1, arena.getEntryCount());
+		Assert.assertNotNull(owner2);
+	}
+
+	/**
+	 * Data larger than the arena should be refused
+	 */
+	@Test
+	public void testTooLarge()
+	{
+		OffHeapArena arena = new OffHeapArena(256, 64, 1);
+		Assert.assertEquals(-1, arena.store(bytes(257, 1), new Object()));
+	}
+
+	/**
+	 * @param length
+	 * @param seed
+	 * @return test data
+	 */
+	private byte[] bytes(int length, int seed)
+	{
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			data[i] = (byte) (i * seed);
+		}
+		return data;
+	}
+}